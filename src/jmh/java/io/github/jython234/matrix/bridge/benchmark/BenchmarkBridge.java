@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.benchmark;
+
+import io.github.jython234.matrix.appservice.Util;
+import io.github.jython234.matrix.appservice.event.TypingMatrixEvent;
+import io.github.jython234.matrix.bridge.MatrixBridge;
+import io.github.jython234.matrix.bridge.MatrixEventHandler;
+import io.github.jython234.matrix.bridge.network.transport.InMemoryTransport;
+import io.github.jython234.matrix.bridge.network.transport.MatrixTransport;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * A bridge with a single event handler, configured in a temporary directory
+ * so it can be created inside a benchmark's setup. Its requests are answered by an
+ * {@link InMemoryTransport} instead of a homeserver.
+ *
+ * @author jython234
+ */
+public class BenchmarkBridge extends MatrixBridge {
+    private final File directory;
+    public long typingEvents = 0;
+
+    private BenchmarkBridge(File directory) {
+        super(directory.getAbsolutePath());
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a new bridge in a fresh temporary directory.
+     * @return The bridge.
+     * @throws IOException If the configuration could not be written.
+     */
+    public static BenchmarkBridge create() throws IOException {
+        var directory = Files.createTempDirectory("matrix-bridge-java-benchmark").toFile();
+        Util.copyResourceTo("testRegistration.yml", new File(directory, "registration.yml"));
+
+        var config = "serverURL: \"http://localhost:8008\"\n"
+                + "publicServerURL: \"http://localhost:8008\"\n"
+                + "matrixDomain: \"localhost\"\n"
+                + "appservicePort: 9000\n"
+                + "db:\n"
+                + "  type: \"leveldb\"\n"
+                + "  directory: \"" + new File(directory, "db").getAbsolutePath() + "\"\n"
+                + "  compression: false\n"
+                + "  cacheSize: 16\n";
+        Files.write(new File(directory, "bridge.yml").toPath(), config.getBytes(StandardCharsets.UTF_8));
+
+        return new BenchmarkBridge(directory);
+    }
+
+    /**
+     * Closes the database and deletes the temporary directory.
+     * @throws IOException If the directory could not be deleted.
+     */
+    public void destroy() throws IOException {
+        this.getDatabase().close();
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    /**
+     * Returns the transport this bridge's requests are sent through, to add routes to.
+     * @return The transport.
+     */
+    public InMemoryTransport getTransport() {
+        return (InMemoryTransport) this.getClientManager().getTransport();
+    }
+
+    @Override
+    protected MatrixTransport createTransport() {
+        return new InMemoryTransport();
+    }
+
+    @MatrixEventHandler
+    public void onTypingEvent(TypingMatrixEvent event) {
+        this.typingEvents++;
+    }
+
+    @Override
+    protected void onStart() {
+
+    }
+
+    @Override
+    protected void onStop() {
+
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.benchmark;
+
+import io.github.jython234.matrix.bridge.configuration.BridgeConfig;
+import io.github.jython234.matrix.bridge.db.Room;
+import io.github.jython234.matrix.bridge.db.User;
+import io.github.jython234.matrix.bridge.db.leveldb.ByteUtils;
+import io.github.jython234.matrix.bridge.db.leveldb.LevelDBDatabaseImpl;
+import org.apache.commons.io.FileUtils;
+import org.iq80.leveldb.CompressionType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ByteUtils} (de)serialization and {@link LevelDBDatabaseImpl} reads and writes.
+ *
+ * @author jython234
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmark {
+    private File directory;
+    private LevelDBDatabaseImpl database;
+
+    private User user;
+    private Room room;
+    private byte[] userBytes;
+    private byte[] roomBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("matrix-bridge-java-benchmark-db").toFile();
+
+        var dbInfo = new BridgeConfig.LevelDBInfo();
+        dbInfo.directory = this.directory.getAbsolutePath();
+        dbInfo.cacheSize = 16;
+        dbInfo.compressionType = CompressionType.NONE;
+        this.database = new LevelDBDatabaseImpl(null, dbInfo);
+
+        this.user = new User(this.database, User.Type.REMOTE_USER, "@!as_benchmark:localhost");
+        this.user.getAdditionalData().put("remoteId", "123456789");
+        this.user.getAdditionalData().put("avatar", "mxc://localhost/avatar");
+        this.room = new Room(this.database, "remote-room", "!benchmark:localhost");
+        this.room.getAdditionalData().put("topic", "A benchmark room");
+
+        this.userBytes = ByteUtils.serializeUser(this.user);
+        this.roomBytes = ByteUtils.serializeRoom(this.room);
+
+        this.database.putUser(this.user);
+        this.database.putRoom(this.room);
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        this.database.close();
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    @Benchmark
+    public byte[] serializeUser() throws IOException {
+        return ByteUtils.serializeUser(this.user);
+    }
+
+    @Benchmark
+    public User deserializeUser() throws IOException {
+        return ByteUtils.deserializeUser(this.userBytes, this.database);
+    }
+
+    @Benchmark
+    public byte[] serializeRoom() throws IOException {
+        return ByteUtils.serializeRoom(this.room);
+    }
+
+    @Benchmark
+    public Room deserializeRoom() throws IOException {
+        return ByteUtils.deserializeRoom(this.roomBytes, this.database);
+    }
+
+    @Benchmark
+    public User getUser() throws IOException {
+        return this.database.getUser(this.user.id);
+    }
+
+    @Benchmark
+    public void putUser() throws IOException {
+        this.database.putUser(this.user);
+    }
+
+    @Benchmark
+    public Room getRoomByMatrixId() throws IOException {
+        return this.database.getRoomByMatrixId(this.room.getMatrixId());
+    }
+
+    @Benchmark
+    public void putRoom() throws IOException {
+        this.database.putRoom(this.room);
+    }
+}
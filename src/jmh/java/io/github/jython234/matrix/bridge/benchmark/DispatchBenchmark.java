@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.benchmark;
+
+import io.github.jython234.matrix.appservice.event.TypingMatrixEvent;
+import io.github.jython234.matrix.bridge.MatrixBridgeEventHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks dispatching an event through {@link MatrixBridgeEventHandler#onMatrixEvent} to an
+ * <code>@MatrixEventHandler</code> method, against calling the same method with {@link Method#invoke(Object, Object...)}
+ * as dispatch used to.
+ *
+ * @author jython234
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private BenchmarkBridge bridge;
+    private MatrixBridgeEventHandler eventHandler;
+    private TypingMatrixEvent event;
+    private Method method;
+
+    @Setup
+    public void setup() throws IOException {
+        this.bridge = BenchmarkBridge.create();
+        this.eventHandler = new MatrixBridgeEventHandler(this.bridge);
+
+        this.event = new TypingMatrixEvent();
+        this.event.roomId = "!benchmark:localhost";
+
+        try {
+            this.method = BenchmarkBridge.class.getMethod("onTypingEvent", TypingMatrixEvent.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        this.bridge.destroy();
+    }
+
+    @Benchmark
+    public long onMatrixEvent() {
+        this.eventHandler.onMatrixEvent(this.event);
+        return this.bridge.typingEvents;
+    }
+
+    @Benchmark
+    public long methodInvoke() throws IllegalAccessException, InvocationTargetException {
+        this.method.invoke(this.bridge, this.event);
+        return this.bridge.typingEvents;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import io.github.jython234.matrix.bridge.network.MatrixClientManager;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkResult;
+import io.github.jython234.matrix.bridge.network.room.JoinedMembersData;
+import io.github.jython234.matrix.bridge.network.room.KickBanData;
+import io.github.jython234.matrix.bridge.network.room.PowerLevelsData;
+import io.github.jython234.matrix.bridge.network.transport.InMemoryTransport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks URI building in {@link MatrixClientManager}, GSON (de)serialization of the network DTOs,
+ * and the whole path of a request through the client, answered by an in-memory transport.
+ *
+ * @author jython234
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkBenchmark {
+    // Same configuration as MatrixClientManager.gson
+    private static final Gson gson = new GsonBuilder().create();
+
+    private BenchmarkBridge bridge;
+    private MatrixClientManager clientManager;
+
+    private PowerLevelsData powerLevels;
+    private String powerLevelsJson;
+    private String joinedMembersJson;
+
+    @Setup
+    public void setup() throws IOException {
+        this.bridge = BenchmarkBridge.create();
+        this.clientManager = this.bridge.getClientManager();
+        this.bridge.getTransport()
+                .route("PUT", "rooms/.*/send/.*", request -> InMemoryTransport.json(200, "{\"event_id\":\"$benchmark:localhost\"}"))
+                .route("GET", "profile/.*/displayname", request -> InMemoryTransport.json(200, "{\"displayname\":\"Benchmark\"}"));
+
+        this.powerLevels = new PowerLevelsData();
+        for(int i = 0; i < 50; i++) {
+            this.powerLevels.users.put("@user" + i + ":localhost", i % 3 == 0 ? 100 : 50);
+        }
+        this.powerLevelsJson = gson.toJson(this.powerLevels);
+
+        var sb = new StringBuilder("{\"joined\":{");
+        for(int i = 0; i < 200; i++) {
+            if(i > 0) sb.append(',');
+            sb.append("\"@user").append(i).append(":localhost\":{\"display_name\":\"User ").append(i)
+                    .append("\",\"avatar_url\":\"mxc://localhost/avatar").append(i).append("\"}");
+        }
+        this.joinedMembersJson = sb.append("}}").toString();
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        this.bridge.destroy();
+    }
+
+    @Benchmark
+    public URI getURIAsBridge() {
+        return this.clientManager.getURI("rooms/!room:localhost/send/m.room.message/1234", true);
+    }
+
+    @Benchmark
+    public URI getURIAsUser() {
+        return this.clientManager.getURI("rooms/!room:localhost/send/m.room.message/1234", "@!as_user:localhost");
+    }
+
+    @Benchmark
+    public MatrixNetworkResult sendMessage() throws MatrixNetworkException {
+        return this.clientManager.getBridgeClient().sendSimpleMessage("!room:localhost", "Hello world");
+    }
+
+    @Benchmark
+    public MatrixNetworkResult<String> getDisplayName() throws MatrixNetworkException {
+        return this.clientManager.getBridgeClient().getDisplayName();
+    }
+
+    @Benchmark
+    public String serializeKickBan() {
+        return gson.toJson(new KickBanData("Spamming", "@spammer:localhost"));
+    }
+
+    @Benchmark
+    public String serializePowerLevels() {
+        return gson.toJson(this.powerLevels);
+    }
+
+    @Benchmark
+    public PowerLevelsData deserializePowerLevels() {
+        return gson.fromJson(this.powerLevelsJson, PowerLevelsData.class);
+    }
+
+    @Benchmark
+    public JoinedMembersData deserializeJoinedMembers() {
+        return gson.fromJson(this.joinedMembersJson, JoinedMembersData.class);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps each concrete event class to every {@link EventHandlerInvoker} that should receive it: the handlers
+ * for the class itself and for any of its superclasses or interfaces, for example a handler taking {@link MatrixEvent}.
+ *
+ * Walking the class hierarchy is only done the first time an event class is seen, the result is cached
+ * and every later lookup is a single read of a {@link ConcurrentHashMap}.
+ *
+ * The handlers are ordered by their {@link MatrixEventHandler#priority() priority}, the highest first. Handlers with the
+ * same priority are ordered from the most to the least specific type: first the handlers for the class itself,
+ * then for each superclass going up, then for interfaces. Handlers for the same type keep the order they were registered in.
+ *
+ * @author jython234
+ */
+final class DispatchTable {
+    private final Map<Class<?>, List<EventHandlerInvoker>> registered = new LinkedHashMap<>();
+    private final Map<Class<?>, List<EventHandlerInvoker>> table = new ConcurrentHashMap<>();
+    private volatile boolean receivesEchoes;
+
+    /**
+     * Registers a handler. This must only be done while the bridge is being created, before any event is dispatched.
+     * @param type The event type the handler accepts.
+     * @param invoker The handler.
+     */
+    synchronized void register(Class<? extends MatrixEvent> type, EventHandlerInvoker invoker) {
+        this.registered.computeIfAbsent(type, key -> new ArrayList<>()).add(invoker);
+        this.table.clear();
+        if(invoker.receivesEchoes()) this.receivesEchoes = true;
+    }
+
+    /**
+     * Returns if any registered handler wants events sent by the bridge itself. If none do, echoes can be dropped right away.
+     * @return If any handler {@link EventHandlerInvoker#receivesEchoes() receives echoes}.
+     */
+    boolean receivesEchoes() {
+        return this.receivesEchoes;
+    }
+
+    /**
+     * Returns the handlers for an event class.
+     * @param eventClass The concrete class of the event.
+     * @return The handlers, in the order they should be called. Empty if there are none.
+     */
+    List<EventHandlerInvoker> get(Class<?> eventClass) {
+        var invokers = this.table.get(eventClass);
+        if(invokers == null) {
+            // Racing threads compute the same list, so it doesn't matter whose is kept
+            invokers = this.compute(eventClass);
+            var existing = this.table.putIfAbsent(eventClass, invokers);
+            if(existing != null) invokers = existing;
+        }
+        return invokers;
+    }
+
+    private synchronized List<EventHandlerInvoker> compute(Class<?> eventClass) {
+        var invokers = new ArrayList<EventHandlerInvoker>();
+        for(var type = eventClass; type != null; type = type.getSuperclass()) {
+            invokers.addAll(this.registered.getOrDefault(type, Collections.emptyList()));
+        }
+        this.registered.forEach((type, handlers) -> {
+            if(type.isInterface() && type.isAssignableFrom(eventClass)) invokers.addAll(handlers);
+        });
+        invokers.sort(Comparator.comparingInt(EventHandlerInvoker::getPriority).reversed()); // Stable, so ties keep their order
+
+        return invokers.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(invokers);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import io.github.jython234.matrix.bridge.network.MatrixClientManager;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes echoes: events the homeserver sends to the appservice that were sent by the bridge itself,
+ * either as the bridge user or as one of its puppets. These can be dropped before any handler sees them.
+ *
+ * An event is an echo if the bridge recently sent an event with the same ID, or if its sender is the
+ * bridge user or matches one of the user namespaces in <code>registration.yml</code>. The namespaces are
+ * combined into a single pattern when the bridge starts.
+ *
+ * @author jython234
+ */
+final class EchoFilter {
+    private final String bridgeUserId;
+    private final Pattern namespace;
+    private final MatrixClientManager clientManager;
+
+    private EchoFilter(String bridgeUserId, Pattern namespace, MatrixClientManager clientManager) {
+        this.bridgeUserId = bridgeUserId;
+        this.namespace = namespace;
+        this.clientManager = clientManager;
+    }
+
+    /**
+     * Creates a filter for the user namespaces in a registration file.
+     * @param registration The appservice's <code>registration.yml</code>.
+     * @param bridgeUserId The full user ID of the bridge user.
+     * @param clientManager The client manager that records the events the bridge sends.
+     * @return The filter.
+     * @throws IOException If the registration file could not be read.
+     */
+    @SuppressWarnings("unchecked")
+    static EchoFilter load(File registration, String bridgeUserId, MatrixClientManager clientManager) throws IOException {
+        Map map;
+        try(var in = new FileInputStream(registration)) {
+            map = new Yaml().load(in);
+        }
+
+        var joiner = new StringJoiner("|");
+        var namespaces = map == null ? null : (Map) map.get("namespaces");
+        var users = namespaces == null ? null : (List<Map>) namespaces.get("users");
+        if(users != null) {
+            for(var user : users) {
+                var regex = (String) user.get("regex");
+                if(regex != null) joiner.add("(?:" + regex + ")");
+            }
+        }
+
+        return new EchoFilter(bridgeUserId, joiner.length() == 0 ? null : Pattern.compile(joiner.toString()), clientManager);
+    }
+
+    /**
+     * Creates a filter that only recognizes the bridge user and events the bridge sent, for when
+     * the registration file can't be read.
+     * @param bridgeUserId The full user ID of the bridge user.
+     * @param clientManager The client manager that records the events the bridge sends.
+     * @return The filter.
+     */
+    static EchoFilter bridgeUserOnly(String bridgeUserId, MatrixClientManager clientManager) {
+        return new EchoFilter(bridgeUserId, null, clientManager);
+    }
+
+    /**
+     * Checks if an event was sent by the bridge.
+     * @param event The event.
+     * @return If it is an echo of something the bridge sent.
+     */
+    boolean isEcho(MatrixEvent event) {
+        var eventId = EventField.EVENT_ID.get(event);
+        if(eventId != null && this.clientManager.wasSentByBridge(eventId)) return true;
+
+        var sender = EventField.SENDER.get(event);
+        if(sender == null) return false;
+
+        return sender.equals(this.bridgeUserId) || (this.namespace != null && this.namespace.matcher(sender).matches());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import io.github.jython234.matrix.bridge.concurrent.LaneExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Collects the events for a batch handler that arrive one at a time, and passes them to the handler in batches.
+ *
+ * There is no timer: the first event added to an empty batch queues a flush on the dispatch lanes, and every event
+ * that arrives before the flush runs joins the same batch. Under light load a batch is a single event and is handled
+ * right away, and the more the handler falls behind, the larger its batches get. Batches are handled one at a time,
+ * in the order their events arrived.
+ *
+ * @author jython234
+ */
+final class EventBatcher {
+    /**
+     * The most events passed to a handler at once, larger batches are split.
+     */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    private final LaneExecutor lanes;
+    private final Consumer<List<MatrixEvent>> handler;
+
+    private List<MatrixEvent> pending = new ArrayList<>();
+    private List<Runnable> callbacks = new ArrayList<>();
+    private boolean scheduled;
+
+    /**
+     * Creates a new batcher.
+     * @param lanes The lanes the batches are handled on. All of this batcher's batches use the same lane.
+     * @param handler Called with each batch.
+     */
+    EventBatcher(LaneExecutor lanes, Consumer<List<MatrixEvent>> handler) {
+        this.lanes = lanes;
+        this.handler = handler;
+    }
+
+    /**
+     * Adds an event to the next batch.
+     * @param event The event.
+     * @throws InterruptedException If the thread was interrupted while waiting for space in the lanes.
+     */
+    void add(MatrixEvent event) throws InterruptedException {
+        this.add(event, null);
+    }
+
+    /**
+     * Adds an event to the next batch.
+     * @param event The event.
+     * @param onHandled Run once the batch with the event has been handled, or <code>null</code>.
+     * @throws InterruptedException If the thread was interrupted while waiting for space in the lanes.
+     */
+    void add(MatrixEvent event, Runnable onHandled) throws InterruptedException {
+        synchronized (this) {
+            this.pending.add(event);
+            if(onHandled != null) this.callbacks.add(onHandled);
+            if(this.scheduled) return;
+            this.scheduled = true;
+        }
+
+        try {
+            this.lanes.execute(this, this::flush);
+        } catch (InterruptedException | RuntimeException e) {
+            synchronized (this) {
+                this.scheduled = false; // So the next event tries again
+            }
+            throw e;
+        }
+    }
+
+    private void flush() {
+        List<MatrixEvent> batch;
+        List<Runnable> handled;
+        synchronized (this) {
+            batch = this.pending;
+            handled = this.callbacks.isEmpty() ? Collections.emptyList() : this.callbacks;
+            this.pending = new ArrayList<>();
+            if(!handled.isEmpty()) this.callbacks = new ArrayList<>();
+            this.scheduled = false;
+        }
+
+        try {
+            for(int i = 0; i < batch.size(); i += MAX_BATCH_SIZE) {
+                this.handler.accept(Collections.unmodifiableList(batch.subList(i, Math.min(batch.size(), i + MAX_BATCH_SIZE))));
+            }
+        } finally {
+            for(var callback : handled) {
+                callback.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.bridge.db.BridgeDatabase;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers the IDs of recently received events, so events the homeserver sends again when it
+ * retries a transaction can be dropped before they are handled a second time.
+ *
+ * IDs are kept in insertion order with the time they were first seen, so both the oldest ID (once
+ * there are more than the capacity) and expired IDs are removed from the head in constant time.
+ * The set is exact: a probabilistic filter would take less memory, but a false positive would silently
+ * drop a real event, and at this capacity the exact set only takes a few megabytes.
+ *
+ * The IDs are saved in the background every tenth of the capacity, so a restart forgets at most that
+ * many of them. Saving copies the whole set, which is why it never runs on the thread that received the event.
+ *
+ * @author jython234
+ */
+final class EventDeduplicator {
+    static final String DATABASE_KEY = "matrix-bridge-java.dedup";
+
+    private final LinkedHashMap<String, Long> seen;
+    private final int capacity;
+    private final long windowMillis;
+
+    private final BridgeDatabase database;
+    private final Executor saveExecutor;
+    private final Logger logger;
+    private final int saveInterval;
+    private final AtomicBoolean saving = new AtomicBoolean();
+    private int unsaved = 0;
+
+    /**
+     * Creates a new deduplicator.
+     * @param capacity The maximum amount of event IDs to remember. 0 disables deduplication.
+     * @param windowMillis How long an event ID is remembered for, in milliseconds.
+     * @param database The database to save the IDs in, or <code>null</code> to only keep them in memory.
+     * @param saveExecutor The executor the IDs are saved on.
+     * @param logger The logger to report failures to save or load the IDs to.
+     */
+    EventDeduplicator(int capacity, long windowMillis, BridgeDatabase database, Executor saveExecutor, Logger logger) {
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        this.database = database;
+        this.saveExecutor = saveExecutor;
+        this.logger = logger;
+        this.saveInterval = Math.max(1, capacity / 10);
+
+        this.seen = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return this.size() > EventDeduplicator.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Checks if an event was already received, and remembers it if it wasn't. If the event then can't be
+     * processed, it must be {@link #forget(String) forgotten} again so it isn't dropped when the homeserver retries it.
+     * @param eventId The event's ID. Events without an ID are never duplicates.
+     * @return If the event was already received within the window.
+     */
+    boolean isDuplicate(String eventId) {
+        if(eventId == null || this.capacity == 0) return false;
+
+        var now = System.currentTimeMillis();
+        boolean save;
+        synchronized (this) {
+            this.expire(now);
+            if(this.seen.containsKey(eventId)) return true;
+
+            this.seen.put(eventId, now);
+            save = this.database != null && ++this.unsaved >= this.saveInterval;
+            if(save) this.unsaved = 0;
+        }
+
+        if(save) this.saveLater();
+        return false;
+    }
+
+    /**
+     * Remembers an event that was received, but not through {@link #isDuplicate(String)}.
+     * @param eventId The event's ID.
+     */
+    void remember(String eventId) {
+        this.isDuplicate(eventId);
+    }
+
+    /**
+     * Forgets an event that was received but could not be processed, so it is handled when it's received again.
+     * @param eventId The event's ID.
+     */
+    void forget(String eventId) {
+        if(eventId == null || this.capacity == 0) return;
+
+        synchronized (this) {
+            this.seen.remove(eventId);
+        }
+    }
+
+    // Saves the IDs on the executor, unless a save is already waiting to run there
+    private void saveLater() {
+        if(!this.saving.compareAndSet(false, true)) return;
+
+        try {
+            this.saveExecutor.execute(() -> {
+                this.saving.set(false); // IDs recorded from now on may not be in this save
+                this.save();
+            });
+        } catch (RejectedExecutionException e) {
+            this.saving.set(false); // Shutting down, the IDs are saved one last time when the bridge stops
+        }
+    }
+
+    private void expire(long now) {
+        var iterator = this.seen.values().iterator();
+        while(iterator.hasNext() && now - iterator.next() > this.windowMillis) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Loads the IDs saved in the database, if there is one.
+     */
+    @SuppressWarnings("unchecked")
+    void load() {
+        if(this.database == null || this.capacity == 0) return;
+
+        try {
+            var saved = (LinkedHashMap<String, Long>) this.database.getExtraData(DATABASE_KEY);
+            if(saved == null) return;
+
+            synchronized (this) {
+                this.seen.putAll(saved);
+                this.expire(System.currentTimeMillis());
+            }
+        } catch (IOException | ClassCastException e) {
+            this.logger.warn("Failed to load remembered event IDs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the IDs in the database, if there is one.
+     */
+    void save() {
+        if(this.database == null || this.capacity == 0) return;
+
+        LinkedHashMap<String, Long> copy;
+        synchronized (this) {
+            copy = new LinkedHashMap<>(this.seen);
+        }
+
+        try {
+            this.database.putExtraData(DATABASE_KEY, copy);
+        } catch (IOException e) {
+            this.logger.warn("Failed to save remembered event IDs: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reads a String field that many event classes have, such as <code>roomId</code>, even though
+ * {@link MatrixEvent} has no common method for it. The field is looked up once per event class.
+ *
+ * @author jython234
+ */
+final class EventField {
+    static final EventField ROOM_ID = new EventField("roomId");
+    static final EventField EVENT_ID = new EventField("eventId");
+    static final EventField SENDER = new EventField("sender");
+
+    private final ClassValue<Field> fields;
+
+    private EventField(String name) {
+        this.fields = new ClassValue<>() {
+            @Override
+            protected Field computeValue(Class<?> type) {
+                try {
+                    var field = type.getField(name);
+                    return field.getType() == String.class ? field : null;
+                } catch (NoSuchFieldException e) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the field from an event.
+     * @param event The event.
+     * @return The value of the field, or <code>null</code> if the event's class doesn't have it.
+     */
+    String get(MatrixEvent event) {
+        var field = this.fields.get(event.getClass());
+        if(field == null) return null;
+
+        try {
+            return (String) field.get(event);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+}
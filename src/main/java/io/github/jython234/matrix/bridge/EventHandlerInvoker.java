@@ -0,0 +1,239 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Calls a {@link MatrixEventHandler} method without going through {@link Method#invoke(Object, Object...)} on every event.
+ *
+ * The method is compiled once into a direct call using {@link LambdaMetafactory}, which the JIT can inline like
+ * any other lambda. If that isn't allowed (for example the bridge's package isn't open to this module) it falls back
+ * to a {@link MethodHandle}, and if even that fails, to plain reflection.
+ *
+ * The attributes of the method's {@link MatrixEventHandler} annotation are read at the same time, and its
+ * patterns are compiled into a single check done by {@link #accepts(MatrixEvent, boolean)} before every call.
+ *
+ * @author jython234
+ */
+final class EventHandlerInvoker {
+    /**
+     * How an invoker calls its method, from fastest to slowest.
+     */
+    enum Kind {
+        LAMBDA,
+        METHOD_HANDLE,
+        REFLECTION
+    }
+
+    private static final MethodType GENERIC_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Method method;
+    private final Kind kind;
+    private final BiConsumer<Object, Object> target;
+    private final boolean receivesEchoes;
+    private final boolean async;
+    private final int priority;
+    private final Predicate<MatrixEvent> filter;
+
+    private EventHandlerInvoker(Method method, Kind kind, BiConsumer<Object, Object> target, Predicate<MatrixEvent> filter) {
+        this.method = method;
+        this.kind = kind;
+        this.target = target;
+
+        var annotation = method.getAnnotation(MatrixEventHandler.class);
+        this.receivesEchoes = annotation != null && !annotation.ignoreOwnPuppets();
+        this.async = annotation != null && annotation.async();
+        this.priority = annotation != null ? annotation.priority() : 0;
+        this.filter = filter;
+    }
+
+    // Compiles the room ID and sender patterns of the method's annotation, or returns null if it has none
+    private static Predicate<MatrixEvent> filter(Method method) {
+        var annotation = method.getAnnotation(MatrixEventHandler.class);
+        if(annotation == null) return null;
+
+        Predicate<MatrixEvent> filter = null;
+        filter = and(filter, matching(method, EventField.ROOM_ID, annotation.roomIdPattern()));
+        filter = and(filter, matching(method, EventField.SENDER, annotation.senderPattern()));
+        return filter;
+    }
+
+    private static Predicate<MatrixEvent> matching(Method method, EventField field, String regex) {
+        if(regex.isEmpty()) return null;
+
+        try {
+            var pattern = Pattern.compile(regex);
+            return event -> {
+                var value = field.get(event);
+                return value != null && pattern.matcher(value).matches();
+            };
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid pattern in @MatrixEventHandler of " + method.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Predicate<MatrixEvent> and(Predicate<MatrixEvent> first, Predicate<MatrixEvent> second) {
+        if(first == null) return second;
+        return second == null ? first : first.and(second);
+    }
+
+    /**
+     * Creates the fastest invoker that is allowed for a method.
+     * @param method The event handler method. Its first parameter must be a {@link MatrixEvent}, or a {@link List} of them.
+     * @return The invoker.
+     * @throws IllegalArgumentException If a pattern in the method's {@link MatrixEventHandler} annotation is invalid.
+     */
+    static EventHandlerInvoker of(Method method) {
+        // Done first so an invalid pattern is reported, instead of being mistaken for a failure of a strategy below
+        var filter = filter(method);
+
+        // A lambda can't ignore the bridge argument, so static methods start with a method handle
+        if(!Modifier.isStatic(method.getModifiers())) {
+            try {
+                return new EventHandlerInvoker(method, Kind.LAMBDA, compile(method), filter);
+            } catch (IllegalAccessException | LambdaConversionException | LinkageError | SecurityException e) {
+                // Not allowed to define a class next to the bridge, try a method handle instead
+            }
+        }
+
+        try {
+            var handle = unreflect(method);
+            return new EventHandlerInvoker(method, Kind.METHOD_HANDLE, (bridge, event) -> {
+                try {
+                    handle.invokeExact(bridge, event);
+                } catch (Throwable e) {
+                    throw EventHandlerInvoker.<RuntimeException>sneakyThrow(e);
+                }
+            }, filter);
+        } catch (IllegalAccessException | SecurityException e) {
+            return new EventHandlerInvoker(method, Kind.REFLECTION, (bridge, event) -> {
+                try {
+                    method.invoke(bridge, event);
+                } catch (InvocationTargetException ex) {
+                    throw EventHandlerInvoker.<RuntimeException>sneakyThrow(ex.getCause());
+                } catch (IllegalAccessException ex) {
+                    throw EventHandlerInvoker.<RuntimeException>sneakyThrow(ex);
+                }
+            }, filter);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Object, Object> compile(Method method) throws IllegalAccessException, LambdaConversionException {
+        var lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup());
+        var handle = lookup.unreflect(method);
+        var site = LambdaMetafactory.metafactory(lookup, "accept", MethodType.methodType(BiConsumer.class),
+                GENERIC_TYPE, handle, MethodType.methodType(void.class, method.getDeclaringClass(), method.getParameterTypes()[0]));
+
+        try {
+            return (BiConsumer<Object, Object>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            // The factory captures nothing, so the only thing it can throw is an Error
+            throw EventHandlerInvoker.<RuntimeException>sneakyThrow(e);
+        }
+    }
+
+    private static MethodHandle unreflect(Method method) throws IllegalAccessException {
+        method.trySetAccessible(); // Lets the lookup use non-public methods, if the bridge's package is open to us
+        var handle = MethodHandles.lookup().unreflect(method);
+        if(Modifier.isStatic(method.getModifiers())) handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        return handle.asType(GENERIC_TYPE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> E sneakyThrow(Throwable e) throws E {
+        throw (E) e;
+    }
+
+    /**
+     * Calls the method. Exceptions thrown by the method, including checked ones, are thrown as they are.
+     * @param bridge The bridge the method belongs to.
+     * @param event The event.
+     */
+    void invoke(MatrixBridge bridge, MatrixEvent event) {
+        this.target.accept(bridge, event);
+    }
+
+    /**
+     * Calls a batch handler, a method taking a {@link List} of events.
+     * @param bridge The bridge the method belongs to.
+     * @param events The events, in the order they were received.
+     */
+    void invokeBatch(MatrixBridge bridge, List<? extends MatrixEvent> events) {
+        this.target.accept(bridge, events);
+    }
+
+    Method getMethod() {
+        return this.method;
+    }
+
+    Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * Checks if an event should be passed to the method, according to its annotation's attributes.
+     * @param event The event.
+     * @param echo If the event was sent by the bridge itself.
+     * @return If the method should be called.
+     */
+    boolean accepts(MatrixEvent event, boolean echo) {
+        if(echo && !this.receivesEchoes) return false;
+        return this.filter == null || this.filter.test(event);
+    }
+
+    boolean isAsync() {
+        return this.async;
+    }
+
+    int getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Returns if the method wants events sent by the bridge itself.
+     * @return If the method's annotation has <code>ignoreOwnPuppets = false</code>.
+     */
+    boolean receivesEchoes() {
+        return this.receivesEchoes;
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only log of events on disk, read back in the order they were written.
+ *
+ * The log is split into segment files named <code>segment-&lt;index&gt;.log</code>. Each record is the length of the
+ * record as an int, followed by the event's class name, a newline and the event as JSON. A segment is deleted once
+ * every event in it has been handled, and all of them are deleted when the log is empty, so the log only
+ * takes up disk space while it has events in it.
+ *
+ * Events are read ahead of being handled, and handlers may finish them out of order. How far the log has been
+ * handled without a gap is saved in <code>committed.offset</code> whenever it moves, so after a restart only the events
+ * that weren't handled yet are read again. An event whose handlers finished just before the bridge stopped may be
+ * handled twice, but none are lost.
+ *
+ * @author jython234
+ */
+final class EventSpillLog implements Closeable {
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final String OFFSET_NAME = "committed.offset";
+    private static final Gson gson = new GsonBuilder().create();
+
+    /**
+     * An event read from the log, which stays in it until it is {@link #commit(Entry) committed}.
+     */
+    static final class Entry {
+        final MatrixEvent event;
+        final long sequence;
+        private final long segment;
+        private final long end;
+        private final int length;
+        private boolean handled;
+
+        private Entry(MatrixEvent event, long sequence, long segment, long end, int length) {
+            this.event = event;
+            this.sequence = sequence;
+            this.segment = segment;
+            this.end = end;
+            this.length = length;
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final Logger logger;
+    private final Deque<Long> segments = new ArrayDeque<>(); // Indexes, oldest first
+
+    private DataOutputStream out; // Appends to the newest segment
+    private long writeSize;
+    private RandomAccessFile in; // Reads the segment after the last event read
+    private long readSegment = -1;
+    private long readPosition;
+
+    private final Deque<Entry> reading = new ArrayDeque<>(); // Read but not committed yet, oldest first
+    private long committedSegment = -1; // Every event before this position has been handled
+    private long committedPosition;
+
+    private long count; // Events that weren't handled yet, including the ones being read
+    private long unread;
+    private long readSequence; // Events are numbered in the order they are read, starting with the ones left from before
+    private long writeSequence;
+    private long bytes;
+
+    /**
+     * Opens the log in a directory, creating it if needed. Events left in it from before that weren't handled are kept.
+     * @param directory The directory.
+     * @param logger The logger problems with the log are reported to.
+     * @throws IOException If the directory could not be created or its segments could not be read.
+     */
+    EventSpillLog(File directory, Logger logger) throws IOException {
+        this(directory, SEGMENT_SIZE, logger);
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed. Events left in it from before that weren't handled are kept.
+     * @param directory The directory.
+     * @param segmentSize The size a segment is allowed to grow to before a new one is started, in bytes.
+     * @param logger The logger problems with the log are reported to.
+     * @throws IOException If the directory could not be created or its segments could not be read.
+     */
+    EventSpillLog(File directory, long segmentSize, Logger logger) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.logger = logger;
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory.getAbsolutePath());
+        }
+        this.loadOffset();
+
+        var indexes = new ArrayList<Long>();
+        var files = directory.list();
+        if(files != null) {
+            for(var name : files) {
+                var matcher = SEGMENT_NAME.matcher(name);
+                if(matcher.matches()) indexes.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+        indexes.sort(null);
+
+        for(var index : indexes) {
+            // Segments before the committed one were handled completely
+            var records = index < this.committedSegment ? 0 : this.scan(this.segment(index), index == this.committedSegment ? this.committedPosition : 0);
+            if(records > 0) {
+                this.segments.addLast(index);
+                this.count += records;
+            } else {
+                Files.delete(this.segment(index).toPath());
+            }
+        }
+        this.unread = this.count;
+        this.writeSequence = this.count;
+        if(this.count == 0) {
+            Files.deleteIfExists(this.offsetFile().toPath());
+            this.committedSegment = -1;
+            this.committedPosition = 0;
+        }
+    }
+
+    private void loadOffset() {
+        var file = this.offsetFile();
+        if(!file.isFile()) return;
+
+        try(var offset = new DataInputStream(new FileInputStream(file))) {
+            this.committedSegment = offset.readLong();
+            this.committedPosition = offset.readLong();
+        } catch (IOException e) {
+            this.logger.warn("Failed to read how far the events on disk were handled, handling all of them again: " + e.getMessage());
+            this.committedSegment = -1;
+            this.committedPosition = 0;
+        }
+    }
+
+    // Counts the records in a segment from a position on, and cuts off a record that was only partly written
+    private long scan(File file, long start) throws IOException {
+        try(var raf = new RandomAccessFile(file, "rw")) {
+            var length = raf.length();
+            long position = 0;
+            long records = 0;
+            while(position + 4 <= length) {
+                raf.seek(position);
+                var size = raf.readInt();
+                if(size < 0 || position + 4 + size > length) break;
+
+                if(position >= start) {
+                    records++;
+                    this.bytes += 4 + size;
+                }
+                position += 4 + size;
+            }
+
+            if(position < length) {
+                this.logger.warn("Discarding " + (length - position) + " bytes of a partly written event in " + file.getName());
+                raf.setLength(position);
+            }
+            return records;
+        }
+    }
+
+    private File segment(long index) {
+        return new File(this.directory, "segment-" + index + ".log");
+    }
+
+    private File offsetFile() {
+        return new File(this.directory, OFFSET_NAME);
+    }
+
+    /**
+     * Writes an event to the end of the log.
+     * @param event The event.
+     * @return The event's sequence number, which its {@link Entry} has when it is read back.
+     * @throws IOException If the event could not be written.
+     */
+    synchronized long append(MatrixEvent event) throws IOException {
+        var record = (event.getClass().getName() + "\n" + gson.toJson(event)).getBytes(StandardCharsets.UTF_8);
+        if(this.out == null || this.writeSize >= this.segmentSize) this.roll();
+
+        this.out.writeInt(record.length);
+        this.out.write(record);
+        this.out.flush();
+
+        this.writeSize += 4 + record.length;
+        this.bytes += 4 + record.length;
+        this.count++;
+        this.unread++;
+        return this.writeSequence++;
+    }
+
+    // Starts a new segment, events left from before the bridge started are never appended to
+    private void roll() throws IOException {
+        if(this.out != null) this.out.close();
+
+        var index = this.segments.isEmpty() ? 0 : this.segments.peekLast() + 1;
+        this.segments.addLast(index);
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.segment(index))));
+        this.writeSize = 0;
+    }
+
+    /**
+     * Reads the next event in the log. It stays in the log until it is committed, and the next call returns
+     * the event after it. Events that can't be read back, for example because their class no longer exists, are skipped.
+     * @return The event, or <code>null</code> if every event in the log has been read.
+     * @throws IOException If the log could not be read.
+     */
+    synchronized Entry next() throws IOException {
+        while(this.unread > 0) {
+            if(this.in == null) {
+                var index = this.segmentAfter(this.readSegment);
+                if(index == null) throw new IllegalStateException("Events are left to read, but no segment has them");
+
+                this.in = new RandomAccessFile(this.segment(index), "r");
+                this.readSegment = index;
+                this.readPosition = index == this.committedSegment ? this.committedPosition : 0;
+            }
+            if(this.readPosition >= this.in.length()) {
+                // Every event in this segment has been read, and as there are still events it isn't the newest one
+                this.in.close();
+                this.in = null;
+                continue;
+            }
+
+            this.in.seek(this.readPosition);
+            var data = new byte[this.in.readInt()];
+            this.in.readFully(data);
+            this.readPosition += 4 + data.length;
+            this.unread--;
+
+            var entry = new Entry(this.decode(data), this.readSequence++, this.readSegment, this.readPosition, 4 + data.length);
+            this.reading.addLast(entry);
+            if(entry.event != null) return entry;
+            this.commit(entry);
+        }
+        return null;
+    }
+
+    private Long segmentAfter(long index) {
+        for(var segment : this.segments) {
+            if(segment > index) return segment;
+        }
+        return null;
+    }
+
+    /**
+     * Removes an event once it has been handled. Events may be committed in any order, but each one
+     * is only removed from disk once every event before it has been committed too.
+     * @param entry The event, as returned by {@link #next()}.
+     * @throws IOException If the log's files could not be written or deleted.
+     */
+    synchronized void commit(Entry entry) throws IOException {
+        if(entry.handled) throw new IllegalStateException("The event was already committed");
+        entry.handled = true;
+
+        var advanced = false;
+        while(!this.reading.isEmpty() && this.reading.peekFirst().handled) {
+            var handled = this.reading.removeFirst();
+            this.committedSegment = handled.segment;
+            this.committedPosition = handled.end;
+            this.bytes -= handled.length;
+            this.count--;
+            advanced = true;
+        }
+        if(!advanced) return;
+
+        if(this.count == 0) {
+            this.clear();
+            return;
+        }
+        while(this.segments.peekFirst() < this.committedSegment) {
+            Files.delete(this.segment(this.segments.removeFirst()).toPath());
+        }
+        this.saveOffset();
+    }
+
+    // Replaces the offset file in one step, so a crash leaves either the old offset or the new one
+    private void saveOffset() throws IOException {
+        var file = this.offsetFile();
+        var tmp = new File(this.directory, OFFSET_NAME + ".tmp");
+        try(var offset = new DataOutputStream(new FileOutputStream(tmp))) {
+            offset.writeLong(this.committedSegment);
+            offset.writeLong(this.committedPosition);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Deletes every segment once the log is empty, the next event starts a new one
+    private void clear() throws IOException {
+        this.close();
+        while(!this.segments.isEmpty()) {
+            Files.delete(this.segment(this.segments.removeFirst()).toPath());
+        }
+        Files.deleteIfExists(this.offsetFile().toPath());
+        this.readSegment = -1;
+        this.committedSegment = -1;
+        this.committedPosition = 0;
+        this.bytes = 0;
+    }
+
+    /**
+     * Reads every event that wasn't handled yet, without changing what {@link #next()} returns.
+     * @param action Called with each event, oldest first.
+     * @throws IOException If the log could not be read.
+     */
+    synchronized void forEach(Consumer<MatrixEvent> action) throws IOException {
+        for(var index : this.segments) {
+            try(var raf = new RandomAccessFile(this.segment(index), "r")) {
+                var position = index == this.committedSegment ? this.committedPosition : 0;
+                var length = raf.length();
+                while(position + 4 <= length) {
+                    raf.seek(position);
+                    var data = new byte[raf.readInt()];
+                    raf.readFully(data);
+                    position += 4 + data.length;
+
+                    var event = this.decode(data);
+                    if(event != null) action.accept(event);
+                }
+            }
+        }
+    }
+
+    private MatrixEvent decode(byte[] data) {
+        var record = new String(data, StandardCharsets.UTF_8);
+        var separator = record.indexOf('\n');
+        try {
+            var type = Class.forName(record.substring(0, Math.max(separator, 0)));
+            return gson.fromJson(record.substring(separator + 1), type.asSubclass(MatrixEvent.class));
+        } catch (ClassNotFoundException | ClassCastException | JsonParseException e) {
+            this.logger.warn("Skipping an event that could not be read back from disk: " + e.getClass().getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get the amount of events in the log that weren't handled yet.
+     * @return The amount of events.
+     */
+    synchronized long size() {
+        return this.count;
+    }
+
+    /**
+     * Get the size of the events in the log on disk.
+     * @return The size, in bytes.
+     */
+    synchronized long sizeBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Closes the log's files. Events still in the log are kept on disk.
+     * @throws IOException If the files could not be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if(this.out != null) this.out.close();
+        } finally {
+            this.out = null;
+            if(this.in != null) this.in.close();
+            this.in = null;
+        }
+    }
+}
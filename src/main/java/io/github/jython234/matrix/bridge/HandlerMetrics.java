@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import io.github.jython234.matrix.bridge.metrics.Counter;
+import io.github.jython234.matrix.bridge.metrics.Histogram;
+import io.github.jython234.matrix.bridge.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the metrics of every {@link MatrixEventHandler} method into the bridge's {@link MetricsRegistry},
+ * keyed by the method and the Java class of the event, for example
+ * <code>handler.latency[MyBridge.onMessage(MatrixEvent) MessageMatrixEvent]</code>:
+ * <ul>
+ *     <li><code>handler.invocations[method event]</code>: times the method was called</li>
+ *     <li><code>handler.latency[method event]</code>: how long each call took, in microseconds</li>
+ *     <li><code>handler.errors[method event]</code>: calls that threw an exception</li>
+ *     <li><code>handler.slow[method event]</code>: calls that took longer than the slow handler threshold</li>
+ *     <li><code>handler.batch.size[method]</code>: how many events each call of a batch handler received</li>
+ * </ul>
+ *
+ * The event's class is used rather than its type, because the type is chosen by whoever sent the event, and a handler
+ * for every event would get a new set of metrics for each custom type. Batch handlers leave out the event, as one
+ * call can receive events of different classes.
+ *
+ * Slow calls are also logged, at most once a minute for each method and event class.
+ *
+ * @author jython234
+ */
+final class HandlerMetrics {
+    private static final long WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private final MetricsRegistry registry;
+    private final Logger logger;
+    private final long slowThreshold;
+
+    private final Map<Method, Map<Class<?>, Stats>> stats = new ConcurrentHashMap<>();
+    private final Map<Method, Stats> batchStats = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the metrics for a bridge's handlers.
+     * @param registry The bridge's metrics.
+     * @param logger The logger slow calls are reported to.
+     * @param slowThresholdMillis Calls that take longer than this (in milliseconds) are reported, 0 to never report them.
+     */
+    HandlerMetrics(MetricsRegistry registry, Logger logger, long slowThresholdMillis) {
+        this.registry = registry;
+        this.logger = logger;
+        this.slowThreshold = slowThresholdMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Records a single call of a handler.
+     * @param invoker The handler that was called.
+     * @param event The event it was called with.
+     * @param nanos How long the call took, in nanoseconds.
+     * @param failed If the call threw an exception.
+     */
+    void record(EventHandlerInvoker invoker, MatrixEvent event, long nanos, boolean failed) {
+        this.record(this.stats(invoker, event.getClass()), nanos, failed);
+    }
+
+    /**
+     * Records a single call of a batch handler.
+     * @param invoker The handler that was called.
+     * @param events How many events it was called with.
+     * @param nanos How long the call took, in nanoseconds.
+     * @param failed If the call threw an exception.
+     */
+    void recordBatch(EventHandlerInvoker invoker, int events, long nanos, boolean failed) {
+        var stats = this.batchStats.get(invoker.getMethod());
+        if(stats == null) stats = this.batchStats.computeIfAbsent(invoker.getMethod(), method -> new Stats(signature(method), null));
+        stats.batchSize.record(events);
+        this.record(stats, nanos, failed);
+    }
+
+    private Stats stats(EventHandlerInvoker invoker, Class<?> eventClass) {
+        var byClass = this.stats.computeIfAbsent(invoker.getMethod(), key -> new ConcurrentHashMap<>());
+        var stats = byClass.get(eventClass);
+        if(stats == null) stats = byClass.computeIfAbsent(eventClass, key -> new Stats(signature(invoker.getMethod()), key.getSimpleName()));
+        return stats;
+    }
+
+    // Tells apart overloads, and methods with the same name in different bridges
+    private static String signature(Method method) {
+        return method.getDeclaringClass().getSimpleName() + "." + method.getName() + "(" + method.getParameterTypes()[0].getSimpleName() + ")";
+    }
+
+    private void record(Stats stats, long nanos, boolean failed) {
+        stats.invocations.increment();
+        stats.latency.record(nanos / 1000);
+        if(failed) stats.errors.increment();
+        if(nanos > this.slowThreshold) this.slow(stats, nanos);
+    }
+
+    private void slow(Stats stats, long nanos) {
+        stats.slow.increment();
+        stats.suppressed.incrementAndGet();
+
+        var now = System.nanoTime();
+        var last = stats.lastWarning.get();
+        if(last != 0 && now - last < WARNING_INTERVAL) return;
+        if(!stats.lastWarning.compareAndSet(last, now)) return; // Another thread is logging it
+
+        var count = stats.suppressed.getAndSet(0);
+        this.logger.warn("Event handler " + stats.key + " took " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms"
+                + (count > 1 ? " (" + count + " slow calls since the last warning)" : ""));
+    }
+
+    private final class Stats {
+        private final String key;
+        private final Counter invocations;
+        private final Histogram latency;
+        private final Counter errors;
+        private final Counter slow;
+        private final Histogram batchSize;
+        private final AtomicLong lastWarning = new AtomicLong();
+        private final AtomicLong suppressed = new AtomicLong();
+
+        // eventClass is null for a batch handler
+        private Stats(String method, String eventClass) {
+            this.key = eventClass == null ? method : method + " " + eventClass;
+            this.invocations = registry.counter("handler.invocations[" + key + "]");
+            this.latency = registry.histogram("handler.latency[" + key + "]");
+            this.errors = registry.counter("handler.errors[" + key + "]");
+            this.slow = registry.counter("handler.slow[" + key + "]");
+            this.batchSize = eventClass == null ? registry.histogram("handler.batch.size[" + method + "]") : null;
+        }
+    }
+}
@@ -31,12 +31,19 @@ import io.github.jython234.matrix.appservice.Util;
 import io.github.jython234.matrix.appservice.event.MatrixEvent;
 import io.github.jython234.matrix.appservice.exception.KeyNotFoundException;
 import io.github.jython234.matrix.appservice.network.CreateRoomRequest;
+import io.github.jython234.matrix.bridge.concurrent.BridgeExecutor;
+import io.github.jython234.matrix.bridge.concurrent.LaneExecutor;
 import io.github.jython234.matrix.bridge.configuration.BridgeConfig;
 import io.github.jython234.matrix.bridge.configuration.BridgeConfigLoader;
 import io.github.jython234.matrix.bridge.db.BridgeDatabase;
 import io.github.jython234.matrix.bridge.db.leveldb.LevelDBDatabaseImpl;
 import io.github.jython234.matrix.bridge.db.mongo.MongoDatabaseImpl;
+import io.github.jython234.matrix.bridge.metrics.DefaultMetricsRegistry;
+import io.github.jython234.matrix.bridge.metrics.MetricsRegistry;
 import io.github.jython234.matrix.bridge.network.MatrixClientManager;
+import io.github.jython234.matrix.bridge.network.transport.InMemoryTransport;
+import io.github.jython234.matrix.bridge.network.transport.JdkHttpTransport;
+import io.github.jython234.matrix.bridge.network.transport.MatrixTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +51,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.WildcardType;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -64,9 +73,19 @@ public abstract class MatrixBridge {
     private String configDirectory;
     private BridgeConfig config;
 
+    private BridgeExecutor executor;
+    private LaneExecutor dispatchLanes;
+    private SpillingEventQueue eventQueue;
+    private EventDeduplicator eventDeduplicator;
+    private EchoFilter echoFilter;
+    private HandlerMetrics handlerMetrics;
     private BridgeDatabase database;
 
+    private MetricsRegistry metrics;
+
     protected Map<Class<? extends MatrixEvent>, List<Method>> eventHandlers;
+    final DispatchTable dispatchTable = new DispatchTable(); // The same methods, compiled and merged by event class
+    final DispatchTable batchTable = new DispatchTable(); // Methods taking a List of events, by the type of event in the List
 
     private MatrixClientManager clientManager;
 
@@ -93,6 +112,18 @@ public abstract class MatrixBridge {
         this.configDirectory = configDirectory;
         this.loadConfig();
 
+        var threading = this.config.getThreadingInfo();
+        this.executor = new BridgeExecutor(threading.mode, threading.poolSize);
+        this.dispatchLanes = new LaneExecutor(this.executor, threading.dispatchLanes, threading.maxQueuedEvents);
+        if(threading.asyncDispatch && threading.spillEvents) {
+            try {
+                var log = new EventSpillLog(new File(configDirectory + File.separator + "event-spill"), this.logger);
+                this.eventQueue = new SpillingEventQueue(this.dispatchLanes, log, this.logger);
+            } catch (IOException e) {
+                this.logger.warn("Failed to open the event spill directory, transactions will wait when the event queue is full: " + e.getMessage());
+            }
+        }
+
         this.appservice = new MatrixAppservice(configDirectory + File.separator + "registration.yml", this.config.getServerURL());
         this.appservice.setEventHandler(eventHandler == null ? new MatrixBridgeEventHandler(this) : eventHandler);
 
@@ -101,7 +132,28 @@ public abstract class MatrixBridge {
 
         this.setupDatabase();
 
-        this.clientManager = new MatrixClientManager(this);
+        this.metrics = this.createMetricsRegistry();
+        this.metrics.gauge("events.queued", this.dispatchLanes::getQueued);
+        if(this.eventQueue != null) {
+            this.metrics.gauge("events.spilled", this.eventQueue::getSpilled);
+            this.metrics.gauge("events.spilled.bytes", this.eventQueue::getSpilledBytes);
+        }
+
+        var events = this.config.getEventInfo();
+        this.eventDeduplicator = new EventDeduplicator(events.dedupCapacity, events.dedupWindow * 1000L, events.persistDedup ? this.database : null, this.executor, this.logger);
+        this.eventDeduplicator.load();
+        this.handlerMetrics = new HandlerMetrics(this.metrics, this.logger, events.slowHandlerThreshold);
+        this.clientManager = new MatrixClientManager(this, this.createTransport());
+
+        if(events.suppressEchoes) {
+            var bridgeUserId = "@" + this.appservice.getRegistration().getSenderLocalpart() + ":" + this.config.getMatrixDomain();
+            try {
+                this.echoFilter = EchoFilter.load(new File(configDirectory + File.separator + "registration.yml"), bridgeUserId, this.clientManager);
+            } catch (IOException | RuntimeException e) {
+                this.logger.warn("Failed to read user namespaces from registration.yml, only the bridge user's echoes will be suppressed: " + e.getMessage());
+                this.echoFilter = EchoFilter.bridgeUserOnly(bridgeUserId, this.clientManager);
+            }
+        }
     }
 
     private void loadConfig() {
@@ -153,11 +205,42 @@ public abstract class MatrixBridge {
                         list.add(method);
                         this.eventHandlers.put(type, list);
                     }
+
+                    // Compile it now so dispatching an event doesn't go through reflection
+                    final var invoker = EventHandlerInvoker.of(method);
+                    if(invoker.getKind() != EventHandlerInvoker.Kind.LAMBDA) {
+                        this.logger.debug("Event handler " + method.getName() + " could not be compiled, using " + invoker.getKind());
+                    }
+                    this.dispatchTable.register(type, invoker);
+                } else if(annotation instanceof MatrixEventHandler
+                        && method.getParameterTypes().length > 0
+                        && getBatchType(method) != null) {
+
+                    // A batch handler, it isn't in eventHandlers as it can't be called with a single event
+                    final var invoker = EventHandlerInvoker.of(method);
+                    if(invoker.getKind() != EventHandlerInvoker.Kind.LAMBDA) {
+                        this.logger.debug("Event handler " + method.getName() + " could not be compiled, using " + invoker.getKind());
+                    }
+                    this.batchTable.register(getBatchType(method), invoker);
                 }
             }
         }
     }
 
+    // The type of event in a List<SomeEvent> or List<? extends SomeEvent> parameter, or null if it isn't one
+    private static Class<? extends MatrixEvent> getBatchType(Method method) {
+        if(method.getParameterTypes()[0] != List.class) return null;
+
+        var type = method.getGenericParameterTypes()[0];
+        if(!(type instanceof ParameterizedType)) return null;
+
+        var argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+        if(argument instanceof WildcardType) argument = ((WildcardType) argument).getUpperBounds()[0];
+        if(!(argument instanceof Class) || !MatrixEvent.class.isAssignableFrom((Class<?>) argument)) return null;
+
+        return ((Class<?>) argument).asSubclass(MatrixEvent.class);
+    }
+
     private void setupDatabase() {
         switch (this.config.getDbInfo().type) {
             case MONGO:
@@ -185,7 +268,12 @@ public abstract class MatrixBridge {
                 this.setName("ShutdownThread");
 
                 logger.info("Running shutdown hook!");
+                if(dispatchLanes.getQueued() > 0) {
+                    logger.warn(dispatchLanes.getQueued() + " events are still waiting to be handled and may be lost");
+                }
                 try {
+                    if(eventQueue != null) eventQueue.close(); // Events on disk are handled after the next start
+                    eventDeduplicator.save();
                     database.close();
                     logger.info("Closed database");
                 } catch (IOException e) {
@@ -193,12 +281,15 @@ public abstract class MatrixBridge {
                     logger.error("IOException: " + e.getMessage());
                     e.printStackTrace();
                 } finally {
+                    executor.close();
                     onStop();
                 }
             }
         });
 
         this.onStart();
+        // Events left on disk count as received, so the homeserver's retries of them are dropped
+        if(this.eventQueue != null) this.eventQueue.start(event -> this.eventDeduplicator.remember(EventField.EVENT_ID.get(event)));
         this.appservice.run(new String[]{"--server.port=" + this.config.getAppservicePort()});
     }
 
@@ -240,6 +331,28 @@ public abstract class MatrixBridge {
         // Stub to be overridden
     }
 
+    /**
+     * Creates the {@link MetricsRegistry} that the bridge records all of its metrics into. This is
+     * called once from the constructor, so it must not depend on fields of the subclass.
+     *
+     * Override this to forward the bridge's metrics to your own monitoring system.
+     * @return A new {@link MetricsRegistry}, by default a {@link DefaultMetricsRegistry}.
+     */
+    protected MetricsRegistry createMetricsRegistry() {
+        return new DefaultMetricsRegistry();
+    }
+
+    /**
+     * Creates the {@link MatrixTransport} that every request to the homeserver is sent through. This is
+     * called once from the constructor, so it must not depend on fields of the subclass.
+     *
+     * Override this to use a different HTTP stack, or an {@link InMemoryTransport} to run the bridge without a homeserver.
+     * @return A new {@link MatrixTransport}, by default a {@link JdkHttpTransport}.
+     */
+    protected MatrixTransport createTransport() {
+        return new JdkHttpTransport();
+    }
+
     public Logger getBridgeLogger() {
         return this.logger;
     }
@@ -252,10 +365,49 @@ public abstract class MatrixBridge {
         return this.appservice;
     }
 
+    /**
+     * Get the executor the bridge runs blocking work on, such as homeserver requests and database access.
+     * Bridge implementations can use it for their own blocking work too.
+     * @return The bridge's executor.
+     */
+    public BridgeExecutor getExecutor() {
+        return this.executor;
+    }
+
+    EventDeduplicator getEventDeduplicator() {
+        return this.eventDeduplicator;
+    }
+
+    /**
+     * Returns the filter that recognizes events sent by the bridge itself.
+     * @return The filter, or <code>null</code> if echoes aren't suppressed.
+     */
+    EchoFilter getEchoFilter() {
+        return this.echoFilter;
+    }
+
+    HandlerMetrics getHandlerMetrics() {
+        return this.handlerMetrics;
+    }
+
+    // The lanes events are handled in when asynchronous dispatch is enabled
+    LaneExecutor getDispatchLanes() {
+        return this.dispatchLanes;
+    }
+
+    // Queues events in the dispatch lanes, or on disk when they are full. null if events aren't spilled to disk
+    SpillingEventQueue getEventQueue() {
+        return this.eventQueue;
+    }
+
     public BridgeDatabase getDatabase() {
         return this.database;
     }
 
+    public MetricsRegistry getMetrics() {
+        return this.metrics;
+    }
+
     public MatrixClientManager getClientManager() {
         return clientManager;
     }
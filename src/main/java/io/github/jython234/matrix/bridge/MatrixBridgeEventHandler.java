@@ -31,7 +31,13 @@ import io.github.jython234.matrix.appservice.event.MatrixEvent;
 import io.github.jython234.matrix.appservice.network.CreateRoomRequest;
 import io.github.jython234.matrix.appservice.network.CreateUserRequest;
 
-import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Processes events between the appservice and the bridge.
@@ -40,23 +46,242 @@ import java.lang.reflect.InvocationTargetException;
  */
 public class MatrixBridgeEventHandler implements EventHandler {
     private MatrixBridge bridge;
+    private final boolean asyncDispatch;
+    private final SpillingEventQueue eventQueue;
+    private final Map<EventHandlerInvoker, EventBatcher> batchers = new ConcurrentHashMap<>();
 
     public MatrixBridgeEventHandler(MatrixBridge bridge) {
         this.bridge = bridge;
+        this.asyncDispatch = bridge.getConfig().getThreadingInfo().asyncDispatch;
+        this.eventQueue = this.asyncDispatch ? bridge.getEventQueue() : null;
+        if(this.eventQueue != null) this.eventQueue.setDispatcher(this::dispatchSpilled);
     }
 
+    /**
+     * Processes an event received by the appservice. If asynchronous dispatch is enabled in the
+     * <code>threads</code> section of the bridge config, the event is only queued and this returns right away,
+     * so the homeserver's transaction is acknowledged without waiting for the handlers. Otherwise, only
+     * the handlers marked {@link MatrixEventHandler#async() async} are queued. When the queue is full, events
+     * are written to disk and handled once there is room again, unless <code>spillEvents</code> is disabled.
+     *
+     * Batch handlers, methods taking a {@link List} of events, are always called on the dispatch lanes. They receive
+     * the event together with the other events that arrive before they get to run, which may span several transactions,
+     * or only part of one: the appservice passes events one at a time and doesn't say where a transaction ends.
+     *
+     * Events that were already received, because the homeserver retried a transaction, are dropped. So are
+     * events sent by the bridge itself, if echo suppression is enabled and no handler asked for them.
+     * @param matrixEvent The event to process.
+     */
     @Override
     public void onMatrixEvent(MatrixEvent matrixEvent) {
-        if(this.bridge.eventHandlers.containsKey(matrixEvent.getClass())) {
-            this.bridge.eventHandlers.get(matrixEvent.getClass()).forEach((method -> {
+        try {
+            for(var invoker : this.handle(matrixEvent, false, null)) {
+                this.batchers.computeIfAbsent(invoker, this::createBatcher).add(matrixEvent);
+            }
+        } catch (InterruptedException e) {
+            // Fail the transaction, so the homeserver sends it again
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to queue event \"" + matrixEvent.getType() + "\"", e);
+        }
+    }
+
+    /**
+     * Processes an event on the bridge's executor instead of the calling thread. Events for the same
+     * room are processed one at a time, in the order they were passed to this method or {@link #onMatrixEvent(MatrixEvent)},
+     * including the events that were written to disk.
+     * @param matrixEvent The event to process.
+     * @return A future that completes once every handler has processed the event. Batch handlers may not have been called yet.
+     * @see MatrixBridge#getExecutor()
+     */
+    public CompletableFuture<Void> onMatrixEventAsync(MatrixEvent matrixEvent) {
+        var future = new CompletableFuture<Void>();
+        try {
+            for(var invoker : this.handle(matrixEvent, true, () -> future.complete(null))) {
+                this.batchers.computeIfAbsent(invoker, this::createBatcher).add(matrixEvent);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // Dispatches an event to its handlers, and returns the batch handlers that accept it. onHandled, if there is
+    // one, runs once the other handlers are done, and async queues them even if asynchronous dispatch is disabled
+    private List<EventHandlerInvoker> handle(MatrixEvent matrixEvent, boolean async, Runnable onHandled) throws InterruptedException {
+        if(this.isDuplicate(matrixEvent)) {
+            if(onHandled != null) onHandled.run();
+            return Collections.emptyList();
+        }
+
+        // The cache must see every event in the order it arrived in, including the bridge's own
+        this.bridge.getClientManager().getPowerLevelsCache().onEvent(EventField.ROOM_ID.get(matrixEvent), matrixEvent);
+        var echo = this.isEcho(matrixEvent);
+        var handlers = this.select(this.bridge.dispatchTable, matrixEvent, echo);
+        var batchHandlers = this.select(this.bridge.batchTable, matrixEvent, echo);
+
+        try {
+            if(this.eventQueue != null && !(handlers.isEmpty() && batchHandlers.isEmpty())) {
+                // Batch handlers of an event written to disk get it when it's read back, so they see it in order too
+                var task = handlers.isEmpty() ? null : this.dispatchTask(matrixEvent, handlers, onHandled);
+                if(!this.eventQueue.offer(matrixEvent, task, onHandled)) return Collections.emptyList();
+                if(task == null && onHandled != null) onHandled.run();
+            } else if(handlers.isEmpty()) {
+                if(onHandled != null) onHandled.run();
+            } else if(this.asyncDispatch || async) {
+                this.queue(matrixEvent, this.dispatchTask(matrixEvent, handlers, onHandled));
+            } else {
+                this.dispatchInline(matrixEvent, handlers);
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            // The transaction fails, so the event must not be dropped when the homeserver sends it again
+            this.forget(matrixEvent);
+            throw e;
+        }
+        return batchHandlers;
+    }
+
+    private Runnable dispatchTask(MatrixEvent matrixEvent, List<EventHandlerInvoker> handlers, Runnable onHandled) {
+        if(onHandled == null) return () -> this.dispatch(matrixEvent, handlers);
+        return () -> {
+            try {
+                this.dispatch(matrixEvent, handlers);
+            } finally {
+                onHandled.run();
+            }
+        };
+    }
+
+    private boolean isDuplicate(MatrixEvent matrixEvent) {
+        var eventId = EventField.EVENT_ID.get(matrixEvent);
+        if(!this.bridge.getEventDeduplicator().isDuplicate(eventId)) return false;
+
+        this.bridge.getMetrics().counter("events.duplicates").increment();
+        this.bridge.getBridgeLogger().debug("Dropping event " + eventId + ", it was already received");
+        return true;
+    }
+
+    private void forget(MatrixEvent matrixEvent) {
+        this.bridge.getEventDeduplicator().forget(EventField.EVENT_ID.get(matrixEvent));
+    }
+
+    private boolean isEcho(MatrixEvent matrixEvent) {
+        var filter = this.bridge.getEchoFilter();
+        if(filter == null || !filter.isEcho(matrixEvent)) return false;
+
+        this.bridge.getMetrics().counter("events.echoes").increment();
+        return true;
+    }
+
+    // The handlers in a table that accept an event, without calling any of them
+    private List<EventHandlerInvoker> select(DispatchTable table, MatrixEvent matrixEvent, boolean echo) {
+        if(echo && !table.receivesEchoes()) return Collections.emptyList();
+
+        // Includes the handlers for the event's supertypes
+        var invokers = table.get(matrixEvent.getClass());
+        List<EventHandlerInvoker> accepted = null; // Only copied once a handler is left out
+        for(int i = 0; i < invokers.size(); i++) {
+            var invoker = invokers.get(i);
+            if(invoker.accepts(matrixEvent, echo)) {
+                if(accepted != null) accepted.add(invoker);
+            } else if(accepted == null) {
+                accepted = new ArrayList<>(invokers.subList(0, i));
+            }
+        }
+        return accepted == null ? invokers : accepted;
+    }
+
+    private void queue(MatrixEvent matrixEvent, Runnable task) throws InterruptedException {
+        this.bridge.getDispatchLanes().execute(EventField.ROOM_ID.get(matrixEvent), task);
+    }
+
+    // Calls the handlers on this thread, except the async ones which are queued after them
+    private void dispatchInline(MatrixEvent matrixEvent, List<EventHandlerInvoker> handlers) throws InterruptedException {
+        List<EventHandlerInvoker> async = null;
+        for(var invoker : handlers) {
+            if(invoker.isAsync()) {
+                if(async == null) async = new ArrayList<>();
+                async.add(invoker);
+            } else {
+                this.invoke(invoker, matrixEvent);
+            }
+        }
+
+        if(async != null) {
+            final var queued = async;
+            this.queue(matrixEvent, () -> this.dispatch(matrixEvent, queued));
+        }
+    }
+
+    // Events read back from disk were already deduplicated and counted when they arrived, or when the bridge started
+    private void dispatchSpilled(MatrixEvent matrixEvent, Runnable onHandled) throws InterruptedException {
+        var filter = this.bridge.getEchoFilter();
+        var echo = filter != null && filter.isEcho(matrixEvent);
+        var handlers = this.select(this.bridge.dispatchTable, matrixEvent, echo);
+        var batchHandlers = this.select(this.bridge.batchTable, matrixEvent, echo);
+
+        var remaining = new AtomicInteger(batchHandlers.size() + (handlers.isEmpty() ? 0 : 1));
+        if(remaining.get() == 0) {
+            onHandled.run();
+            return;
+        }
+        Runnable finished = () -> {
+            if(remaining.decrementAndGet() == 0) onHandled.run();
+        };
+
+        if(!handlers.isEmpty()) {
+            this.queue(matrixEvent, () -> {
                 try {
-                    method.invoke(this.bridge, matrixEvent);
-                } catch (IllegalAccessException | InvocationTargetException e) {
-                    this.bridge.getBridgeLogger().warn("Failed to process event \"" + matrixEvent.getType() + "\" " + matrixEvent.getClass().getName() + ": ");
-                    this.bridge.getBridgeLogger().warn(e.getClass().getName() + ": " + e.getMessage());
-                    e.printStackTrace(System.err);
+                    this.dispatch(matrixEvent, handlers);
+                } finally {
+                    finished.run();
                 }
-            }));
+            });
+        }
+        for(var invoker : batchHandlers) {
+            this.batchers.computeIfAbsent(invoker, this::createBatcher).add(matrixEvent, finished);
+        }
+    }
+
+    private void dispatch(MatrixEvent matrixEvent, List<EventHandlerInvoker> handlers) {
+        for(var invoker : handlers) {
+            this.invoke(invoker, matrixEvent);
+        }
+    }
+
+    private void invoke(EventHandlerInvoker invoker, MatrixEvent matrixEvent) {
+        var start = System.nanoTime();
+        var failed = true;
+        try {
+            invoker.invoke(this.bridge, matrixEvent);
+            failed = false;
+        } catch (Exception e) {
+            this.bridge.getBridgeLogger().warn("Failed to process event \"" + matrixEvent.getType() + "\" " + matrixEvent.getClass().getName() + ": ");
+            this.bridge.getBridgeLogger().warn(e.getClass().getName() + ": " + e.getMessage());
+            e.printStackTrace(System.err);
+        } finally {
+            this.bridge.getHandlerMetrics().record(invoker, matrixEvent, System.nanoTime() - start, failed);
+        }
+    }
+
+    private EventBatcher createBatcher(EventHandlerInvoker invoker) {
+        return new EventBatcher(this.bridge.getDispatchLanes(), events -> this.invokeBatch(invoker, events));
+    }
+
+    private void invokeBatch(EventHandlerInvoker invoker, List<MatrixEvent> events) {
+        var start = System.nanoTime();
+        var failed = true;
+        try {
+            invoker.invokeBatch(this.bridge, events);
+            failed = false;
+        } catch (Exception e) {
+            this.bridge.getBridgeLogger().warn("Failed to process a batch of " + events.size() + " events in " + invoker.getMethod().getName() + ": ");
+            this.bridge.getBridgeLogger().warn(e.getClass().getName() + ": " + e.getMessage());
+            e.printStackTrace(System.err);
+        } finally {
+            this.bridge.getHandlerMetrics().recordBatch(invoker, events.size(), System.nanoTime() - start, failed);
         }
     }
 
@@ -35,7 +35,24 @@ import java.lang.annotation.*;
  * specific {@link io.github.jython234.matrix.appservice.event.MatrixEvent} you want to handle, and
  * mark it with this annotation. This must be done in your class that extends {@link MatrixBridge}.
  *
- * The method will be called whenever that Matrix Event is received.
+ * The method will be called whenever that Matrix Event is received. A method taking a supertype,
+ * such as {@link io.github.jython234.matrix.appservice.event.MatrixEvent} itself, receives every event of
+ * that type, after the methods for the more specific types.
+ *
+ * A method can also take a {@link java.util.List} of events, such as <code>List&lt;MessageMatrixEvent&gt;</code>,
+ * to receive them in batches and write them to its remote network or database in bulk. Batches are formed
+ * from the events that arrive while the method is busy, so they grow as it falls behind and are a single event
+ * under light load. See {@link MatrixBridgeEventHandler#onMatrixEvent(io.github.jython234.matrix.appservice.event.MatrixEvent)}.
+ *
+ * Events sent by the bridge user or one of its puppets ("echoes") are not passed to the method,
+ * unless {@link #ignoreOwnPuppets()} is <code>false</code>.
+ *
+ * The other attributes narrow down which events the method receives and when. They are compiled once
+ * when the bridge is created, and events that don't match them are skipped without calling the method:
+ * <pre>
+ * &#64;MatrixEventHandler(roomIdPattern = "!.*:example\\.org", priority = 10)
+ * public void onMessage(MessageMatrixEvent event) { ... }
+ * </pre>
  *
  * @author jython234
  */
@@ -44,4 +61,37 @@ import java.lang.annotation.*;
 @Retention(RetentionPolicy.RUNTIME)
 @Inherited
 public @interface MatrixEventHandler {
+    /**
+     * If events sent by the bridge user or one of its puppets should be left out. This only has an
+     * effect while <code>suppressEchoes</code> is enabled in the <code>events</code> section of the bridge config.
+     * @return <code>false</code> to also receive the bridge's own events.
+     */
+    boolean ignoreOwnPuppets() default true;
+
+    /**
+     * If the method should run on the bridge's executor instead of the thread that received the event.
+     * Events for the same room are still passed to the method one at a time, in the order they arrived.
+     * Has no effect if asynchronous dispatch is enabled in the bridge config, as every method is run that way then.
+     * @return <code>true</code> to run the method asynchronously.
+     */
+    boolean async() default false;
+
+    /**
+     * The order in which the methods receiving an event are called, the highest priority first.
+     * Methods with the same priority are called from the most to the least specific event type.
+     * @return The priority, 0 by default.
+     */
+    int priority() default 0;
+
+    /**
+     * A regular expression the event's room ID must match completely. Events that aren't in a room never match.
+     * @return The pattern, or an empty String for events in any room.
+     */
+    String roomIdPattern() default "";
+
+    /**
+     * A regular expression the event's sender must match completely. Events without a sender never match.
+     * @return The pattern, or an empty String for events from any sender.
+     */
+    String senderPattern() default "";
 }
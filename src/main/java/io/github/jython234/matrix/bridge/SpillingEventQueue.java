@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import io.github.jython234.matrix.bridge.concurrent.LaneExecutor;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Queues events for asynchronous dispatch in the bridge's {@link LaneExecutor}, and writes the events that don't
+ * fit in it to an {@link EventSpillLog} instead of making the homeserver wait. A background thread moves the events
+ * on disk back into the lanes as soon as there is room, so memory use stays the same however far the handlers fall behind.
+ *
+ * Once an event has been written to disk, every later event is too until every event on disk has been handled,
+ * so events are still handled in the order they arrived. An event is only removed from disk once its handlers
+ * have finished, so events that were read back but not handled yet are read again after a restart.
+ *
+ * @author jython234
+ */
+final class SpillingEventQueue implements Closeable {
+    /**
+     * Passes events read back from disk to their handlers.
+     */
+    interface Dispatcher {
+        /**
+         * Passes an event to its handlers, which may run later on the dispatch lanes.
+         * @param event The event.
+         * @param onHandled Must be run once every handler has finished with the event.
+         * @throws InterruptedException If the thread was interrupted while waiting for room in the lanes.
+         */
+        void dispatch(MatrixEvent event, Runnable onHandled) throws InterruptedException;
+    }
+
+    private final LaneExecutor lanes;
+    private final EventSpillLog log;
+    private final Logger logger;
+
+    private volatile Dispatcher dispatcher;
+    private final Map<Long, Runnable> callbacks = new HashMap<>(); // By the sequence number of the event on disk
+    private boolean draining;
+    private boolean closed;
+
+    /**
+     * Creates a new queue.
+     * @param lanes The lanes events are handled in.
+     * @param log The log events are written to when the lanes are full.
+     * @param logger The logger.
+     */
+    SpillingEventQueue(LaneExecutor lanes, EventSpillLog log, Logger logger) {
+        this.lanes = lanes;
+        this.log = log;
+        this.logger = logger;
+    }
+
+    /**
+     * Sets how events read back from disk are handled. This must be set before any event is queued.
+     * @param dispatcher Passes an event to its handlers.
+     */
+    void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Queues an event in the lane for its room, or writes it to disk if the lanes are full or
+     * earlier events are still on disk. If it can't be written, this waits for room in the lanes instead.
+     * @param event The event.
+     * @param task Passes the event to its handlers if it fits in the lanes, or <code>null</code> if it only has batch handlers.
+     * @param onHandled Run once the event has been handled if it is written to disk, or <code>null</code>. It isn't
+     *                  kept across restarts.
+     * @return <code>true</code> if the task was queued, or <code>false</code> if the event was written to disk
+     *         and will be passed to the {@link Dispatcher} instead.
+     * @throws InterruptedException If the thread was interrupted while waiting for room in the lanes.
+     */
+    boolean offer(MatrixEvent event, Runnable task, Runnable onHandled) throws InterruptedException {
+        var roomId = EventField.ROOM_ID.get(event);
+        synchronized (this) {
+            if(!this.closed) {
+                var spilled = this.log.size();
+                if(spilled == 0 && (task == null || this.lanes.tryExecute(roomId, task))) return true;
+
+                try {
+                    var sequence = this.log.append(event);
+                    if(onHandled != null) this.callbacks.put(sequence, onHandled);
+                    if(spilled == 0) this.logger.info("Event handlers are falling behind, writing new events to disk");
+                    this.startDraining();
+                    return false;
+                } catch (IOException e) {
+                    this.logger.warn("Failed to write event to disk, waiting for room in the queue instead: " + e.getMessage());
+                }
+            }
+        }
+        if(task != null) this.lanes.execute(roomId, task);
+        return true;
+    }
+
+    /**
+     * Starts handling the events left on disk from before the bridge was restarted. This must be called
+     * before the appservice receives any events, so copies of them the homeserver sends again can be dropped.
+     * @param recovered Called with each event left on disk before any of them are handled.
+     */
+    synchronized void start(Consumer<MatrixEvent> recovered) {
+        if(this.log.size() == 0) return;
+
+        this.logger.info(this.log.size() + " events were left on disk, handling them");
+        try {
+            this.log.forEach(recovered);
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the events left on disk ahead of handling them: " + e.getMessage());
+        }
+        this.startDraining();
+    }
+
+    private synchronized void startDraining() {
+        if(this.draining || this.dispatcher == null) return;
+        this.draining = true;
+
+        var thread = new Thread(this::drain, "MatrixBridge-EventSpill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void drain() {
+        try {
+            while(true) {
+                EventSpillLog.Entry entry;
+                Runnable callback;
+                synchronized (this) {
+                    entry = this.closed ? null : this.log.next();
+                    if(entry == null) {
+                        this.draining = false;
+                        if(!this.closed) this.logger.info("Every event written to disk has been queued again");
+                        return;
+                    }
+                    callback = this.callbacks.remove(entry.sequence);
+                }
+
+                this.dispatcher.dispatch(entry.event, () -> {
+                    this.commit(entry);
+                    if(callback != null) callback.run();
+                });
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            this.logger.error("Stopped reading events from disk: " + e.getClass().getName() + ": " + e.getMessage());
+            synchronized (this) {
+                this.draining = false; // The next event written to disk tries again
+            }
+        }
+    }
+
+    // Only removed once it is handled, so it is kept on disk if the bridge stops before that
+    private synchronized void commit(EventSpillLog.Entry entry) {
+        if(this.closed) return;
+
+        try {
+            this.log.commit(entry);
+        } catch (IOException e) {
+            this.logger.warn("Failed to remove a handled event from disk, it may be handled again after a restart: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the amount of events on disk.
+     * @return The amount of events.
+     */
+    long getSpilled() {
+        return this.log.size();
+    }
+
+    /**
+     * Get the size of the events on disk.
+     * @return The size, in bytes.
+     */
+    long getSpilledBytes() {
+        return this.log.sizeBytes();
+    }
+
+    /**
+     * Stops writing events to disk. The events on disk are kept and handled when the bridge starts again.
+     * @throws IOException If the log could not be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.closed = true;
+        this.log.close();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor the bridge runs its blocking work on, such as homeserver requests,
+ * database access and event handling. The kind of pool is chosen with {@link ExecutorMode}.
+ *
+ * @author jython234
+ */
+public class BridgeExecutor implements Executor, Closeable {
+    private final Logger logger = LoggerFactory.getLogger("MatrixBridge-Executor");
+
+    private final ExecutorMode mode;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new executor.
+     * @param mode The kind of pool to use. If {@link ExecutorMode#VIRTUAL} isn't supported by the runtime
+     *             {@link ExecutorMode#FIXED} is used instead, see {@link #getMode()}.
+     * @param poolSize The amount of threads for {@link ExecutorMode#FIXED} and the parallelism for
+     *                 {@link ExecutorMode#WORK_STEALING}. This is ignored for virtual threads.
+     */
+    public BridgeExecutor(ExecutorMode mode, int poolSize) {
+        if(poolSize <= 0) throw new IllegalArgumentException("Pool size must be positive!");
+
+        ExecutorService executor = null;
+        if(mode == ExecutorMode.VIRTUAL) {
+            executor = newVirtualThreadExecutor();
+            if(executor == null) {
+                this.logger.warn("Virtual threads are not supported by this Java runtime, using a fixed pool of " + poolSize + " threads instead");
+                mode = ExecutorMode.FIXED;
+            }
+        }
+
+        switch (mode) {
+            case FIXED:
+                executor = Executors.newFixedThreadPool(poolSize, new WorkerThreadFactory());
+                break;
+            case WORK_STEALING:
+                executor = new ForkJoinPool(poolSize, pool -> {
+                    var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("MatrixBridge-Worker-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, true);
+                break;
+        }
+
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() only exists on Java 21+, and we are compiled for Java 10
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        this.executor.execute(task);
+    }
+
+    /**
+     * Runs a task on this executor.
+     * @param task The task to run.
+     * @param <T> The type of the task's result.
+     * @return A {@link Future} that completes with the task's result.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return this.executor.submit(task);
+    }
+
+    /**
+     * Runs a task on this executor.
+     * @param task The task to run.
+     * @param <T> The type of the task's result.
+     * @return A {@link CompletableFuture} that completes with the task's result, or completes exceptionally
+     *         with a {@link CompletionException} wrapping any exception the task threw.
+     */
+    public <T> CompletableFuture<T> supply(Callable<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, this);
+    }
+
+    /**
+     * Runs a list of tasks on this executor, with at most <code>parallelism</code> of them running at the same time.
+     * This blocks until the last task has been started, but does not wait for the tasks to finish.
+     * @param tasks The tasks to run, they are started in order.
+     * @param parallelism The maximum amount of tasks running at the same time.
+     * @param <T> The type of the tasks' results.
+     * @return A {@link CompletableFuture} for each task, in the same order as <code>tasks</code>.
+     * @throws InterruptedException If the thread was interrupted while waiting to start a task. Tasks that were
+     *                              already started keep running.
+     */
+    public <T> List<CompletableFuture<T>> supplyAll(List<? extends Callable<T>> tasks, int parallelism) throws InterruptedException {
+        var permits = new Semaphore(parallelism);
+        var futures = new ArrayList<CompletableFuture<T>>(tasks.size());
+        for(var task : tasks) {
+            permits.acquire();
+            var future = this.supply(task);
+            future.whenComplete((result, error) -> permits.release());
+            futures.add(future);
+        }
+        return futures;
+    }
+
+    /**
+     * Runs a list of tasks with at most <code>parallelism</code> of them running at the same time, and waits for all of them to finish.
+     *
+     * Unlike {@link #supplyAll(List, int)} the calling thread runs tasks as well instead of only waiting for
+     * the pool, so this is safe to call from a task that is itself running on this executor: if every thread
+     * of the pool is busy, the calling thread simply runs all the tasks by itself.
+     * If a task throws an exception, the tasks that haven't been started yet are cancelled.
+     * @param tasks The tasks to run, they are started in order.
+     * @param parallelism The maximum amount of tasks running at the same time.
+     * @param <T> The type of the tasks' results.
+     * @return A completed {@link CompletableFuture} for each task, in the same order as <code>tasks</code>.
+     * @throws InterruptedException If the thread was interrupted while waiting for the tasks. Tasks that were
+     *                              already started keep running.
+     */
+    public <T> List<CompletableFuture<T>> runAll(List<? extends Callable<T>> tasks, int parallelism) throws InterruptedException {
+        if(parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive!");
+
+        var futures = new ArrayList<CompletableFuture<T>>(tasks.size());
+        for(int i = 0; i < tasks.size(); i++) {
+            futures.add(new CompletableFuture<>());
+        }
+
+        // Whoever claims an index completes its future, so every future completes once the caller has drained the list
+        var next = new AtomicInteger();
+        var failed = new AtomicBoolean();
+        Runnable worker = () -> {
+            int i;
+            while((i = next.getAndIncrement()) < tasks.size()) {
+                var future = futures.get(i);
+                if(failed.get()) {
+                    future.cancel(false);
+                    continue;
+                }
+
+                try {
+                    future.complete(tasks.get(i).call());
+                } catch (Throwable t) {
+                    failed.set(true);
+                    future.completeExceptionally(t);
+                }
+            }
+        };
+
+        var helpers = Math.min(parallelism, tasks.size()) - 1;
+        try {
+            for(int i = 0; i < helpers; i++) {
+                this.executor.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            this.logger.debug("Executor rejected a helper, running the remaining tasks on the calling thread");
+        }
+        worker.run();
+
+        for(var future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException | CancellationException e) {
+                // The caller looks at the futures itself
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Get the kind of pool this executor is using. This may be different than the mode
+     * it was created with if virtual threads are not supported.
+     * @return The executor's mode.
+     */
+    public ExecutorMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Stops accepting new tasks and waits a few seconds for running tasks to finish.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        try {
+            if(!this.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            var thread = new Thread(runnable, "MatrixBridge-Worker-" + this.counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
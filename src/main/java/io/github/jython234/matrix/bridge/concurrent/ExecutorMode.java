@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.concurrent;
+
+/**
+ * The kinds of thread pools a {@link BridgeExecutor} can use.
+ *
+ * @author jython234
+ */
+public enum ExecutorMode {
+    /**
+     * A fixed amount of platform threads sharing one queue. This is the default.
+     */
+    FIXED("fixed"),
+    /**
+     * A fork/join pool where each thread has its own queue and idle threads steal work from busy ones.
+     */
+    WORK_STEALING("work-stealing"),
+    /**
+     * A new virtual thread for every task, so blocking tasks don't tie up platform threads.
+     * Only available on Java 21 and later, on older runtimes {@link #FIXED} is used instead.
+     */
+    VIRTUAL("virtual");
+
+    private final String name;
+
+    ExecutorMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the name of this mode as used in the config file.
+     * @return The mode's name, for example "work-stealing"
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get a mode by the name used in the config file.
+     * @param name The mode's name, for example "work-stealing"
+     * @return The matching mode.
+     * @throws IllegalArgumentException If there is no mode with that name.
+     */
+    public static ExecutorMode fromName(String name) {
+        for(var mode : values()) {
+            if(mode.name.equalsIgnoreCase(name)) return mode;
+        }
+        throw new IllegalArgumentException("Unknown executor mode: \"" + name + "\", must be one of: fixed, work-stealing, virtual");
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs tasks on another executor in a fixed amount of serial lanes. Every task has a key, and tasks with the
+ * same key always go to the same lane, where they run one at a time in the order they were submitted.
+ * Different lanes run in parallel.
+ *
+ * Lanes don't own threads, a lane that has work borrows a thread from the underlying executor and gives
+ * it back after a batch of tasks, so a busy lane can't starve the others.
+ *
+ * @author jython234
+ */
+public class LaneExecutor {
+    private static final int BATCH_SIZE = 32;
+
+    private final Logger logger = LoggerFactory.getLogger("MatrixBridge-Executor");
+
+    private final Executor executor;
+    private final Lane[] lanes;
+    private final int maxQueued;
+    private final Semaphore capacity;
+
+    /**
+     * Creates a new lane executor.
+     * @param executor The executor the lanes run their tasks on.
+     * @param lanes The amount of lanes.
+     * @param maxQueued The maximum amount of tasks waiting or running in all the lanes together.
+     *                  {@link #execute(Object, Runnable)} blocks while this many are queued.
+     */
+    public LaneExecutor(Executor executor, int lanes, int maxQueued) {
+        if(lanes <= 0) throw new IllegalArgumentException("There must be at least one lane!");
+        if(maxQueued <= 0) throw new IllegalArgumentException("The maximum amount of queued tasks must be positive!");
+
+        this.executor = executor;
+        this.lanes = new Lane[lanes];
+        for(int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane();
+        }
+        this.maxQueued = maxQueued;
+        this.capacity = new Semaphore(maxQueued);
+    }
+
+    /**
+     * Queues a task in the lane for its key. Exceptions thrown by the task are logged and don't stop the lane.
+     * @param key The key, tasks with equal keys run in order. <code>null</code> is treated as a key of its own.
+     * @param task The task.
+     * @throws InterruptedException If the thread was interrupted while waiting for room in the lanes.
+     * @throws RejectedExecutionException If the underlying executor has been shut down.
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+        this.capacity.acquire();
+        this.lanes[this.laneOf(key)].add(task);
+    }
+
+    /**
+     * Queues a task in the lane for its key, unless the lanes are full.
+     * @param key The key, tasks with equal keys run in order. <code>null</code> is treated as a key of its own.
+     * @param task The task.
+     * @return If the task was queued, <code>false</code> if the maximum amount of tasks are already queued.
+     * @throws RejectedExecutionException If the underlying executor has been shut down.
+     */
+    public boolean tryExecute(Object key, Runnable task) {
+        if(!this.capacity.tryAcquire()) return false;
+
+        this.lanes[this.laneOf(key)].add(task);
+        return true;
+    }
+
+    private int laneOf(Object key) {
+        var hash = key == null ? 0 : key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), this.lanes.length);
+    }
+
+    /**
+     * Get the amount of lanes.
+     * @return The amount of lanes.
+     */
+    public int getLaneCount() {
+        return this.lanes.length;
+    }
+
+    /**
+     * Get the amount of tasks waiting or running in all the lanes.
+     * @return The amount of queued tasks.
+     */
+    public int getQueued() {
+        return this.maxQueued - this.capacity.availablePermits();
+    }
+
+    private class Lane implements Runnable {
+        private final Queue<Runnable> queue = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        private void add(Runnable task) {
+            synchronized (this) {
+                this.queue.add(task);
+                if(this.scheduled) return; // Will be picked up by the batch that is already running
+                this.scheduled = true;
+            }
+            this.schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    capacity.release(this.queue.size());
+                    this.queue.clear();
+                    this.scheduled = false;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            for(int i = 0; i < BATCH_SIZE; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = this.queue.poll();
+                    if(task == null) {
+                        this.scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.warn("Uncaught exception in a lane task: " + e.getClass().getName() + ": " + e.getMessage());
+                } finally {
+                    capacity.release();
+                }
+            }
+
+            // Give the thread back to the executor and continue later, so other lanes get a turn
+            this.schedule();
+        }
+    }
+}
@@ -26,8 +26,11 @@
  */
 package io.github.jython234.matrix.bridge.configuration;
 
+import io.github.jython234.matrix.bridge.concurrent.ExecutorMode;
 import org.iq80.leveldb.CompressionType;
 
+import java.io.File;
+
 /**
  * Represents the bridge's YAML configuration file.
  * It is loaded using the {@link BridgeConfigLoader} class.
@@ -70,6 +73,29 @@ public class BridgeConfig {
      */
     protected DbInfo dbInfo;
 
+    /**
+     * Contains media repository settings, such as how large
+     * files are downloaded. This section is optional.
+     */
+    protected MediaInfo mediaInfo;
+
+    /**
+     * Contains settings for how the bridge talks to the homeserver,
+     * such as concurrency limits. This section is optional.
+     */
+    protected NetworkInfo networkInfo;
+
+    /**
+     * Contains settings for the threads the bridge runs blocking
+     * work on. This section is optional.
+     */
+    protected ThreadingInfo threadingInfo;
+
+    /**
+     * Contains settings for how events received from the
+     * homeserver are handled. This section is optional.
+     */
+    protected EventInfo eventInfo;
 
     /**
      * Represents the database information in the config file.
@@ -129,6 +155,149 @@ public class BridgeConfig {
         public String database;
     }
 
+    /**
+     * Represents the media settings in the config file. Every
+     * value has a default, so the whole section may be left out.
+     *
+     * @author jython234
+     */
+    public static class MediaInfo {
+        /**
+         * The size of each segment (in megabytes) when downloading a large file
+         * using HTTP Range requests.
+         */
+        public int segmentSize = 8;
+        /**
+         * How many segments of a single large file are downloaded at the same time.
+         */
+        public int parallelSegments = 4;
+        /**
+         * The directory where downloaded thumbnails are cached.
+         */
+        public String cacheDirectory = System.getProperty("java.io.tmpdir") + File.separator + "matrix-bridge-java-media";
+        /**
+         * The maximum total size (in megabytes) of the cached thumbnails. When it is exceeded
+         * the least recently used thumbnails are deleted. <code>0</code> disables the limit.
+         */
+        public int cacheSize = 256;
+    }
+
+    /**
+     * Represents the network settings in the config file. Every
+     * value has a default, so the whole section may be left out.
+     *
+     * @author jython234
+     */
+    public static class NetworkInfo {
+        /**
+         * How many requests of a bulk operation (such as inviting or banning a list of users)
+         * may be running at the same time.
+         */
+        public int bulkConcurrency = 8;
+        /**
+         * The maximum amount of bulk operation requests started per second, shared between
+         * all bulk operations. Set to 0 to disable rate limiting.
+         */
+        public int bulkRequestsPerSecond = 20;
+        /**
+         * The maximum amount of requests being sent to the homeserver at the same time.
+         * If {@link #adaptiveConcurrency} is enabled this is the upper bound of the limit.
+         */
+        public int maxInFlightRequests = 64;
+        /**
+         * If the in-flight request limit should adapt to the homeserver's latency, growing while
+         * requests are as fast as usual and shrinking when they start queueing.
+         */
+        public boolean adaptiveConcurrency = true;
+        /**
+         * If the homeserver should be asked to compress its responses with gzip or deflate.
+         * Compressed responses are decompressed while they are parsed.
+         */
+        public boolean compression = true;
+        /**
+         * The maximum total size (in megabytes) of request bodies being sent to the homeserver at the same time.
+         */
+        public int maxInFlightSize = 32;
+        /**
+         * The maximum amount of requests waiting to be sent. Any more requests are rejected.
+         */
+        public int maxQueuedRequests = 1024;
+        /**
+         * The maximum total size (in megabytes) of request bodies waiting to be sent. Any more requests are rejected.
+         */
+        public int maxQueuedSize = 64;
+    }
+
+    /**
+     * Represents the threading settings in the config file. Every
+     * value has a default, so the whole section may be left out.
+     *
+     * @author jython234
+     * @see io.github.jython234.matrix.bridge.concurrent.BridgeExecutor
+     */
+    public static class ThreadingInfo {
+        /**
+         * The kind of thread pool used for homeserver requests, database access and event handling.
+         */
+        public ExecutorMode mode = ExecutorMode.FIXED;
+        /**
+         * The amount of threads in the pool. This is ignored when using virtual threads.
+         */
+        public int poolSize = Runtime.getRuntime().availableProcessors() * 4;
+        /**
+         * If events should be handled on the thread pool instead of while the homeserver waits for its
+         * transaction to be acknowledged. Events in the same room are still handled in order.
+         */
+        public boolean asyncDispatch = false;
+        /**
+         * The amount of lanes events are spread across by room when {@link #asyncDispatch} is enabled.
+         * Each lane handles one event at a time.
+         */
+        public int dispatchLanes = Runtime.getRuntime().availableProcessors();
+        /**
+         * The maximum amount of events waiting to be handled when {@link #asyncDispatch} is enabled. When it
+         * is reached, new transactions aren't acknowledged until there is room again, unless {@link #spillEvents} is enabled.
+         */
+        public int maxQueuedEvents = 10000;
+        /**
+         * If events that don't fit in {@link #maxQueuedEvents} should be written to disk instead, in the
+         * <code>event-spill</code> directory next to the config file, and handled once there is room again.
+         * They are kept across restarts.
+         */
+        public boolean spillEvents = true;
+    }
+
+    /**
+     * Represents the event handling settings in the config file. Every
+     * value has a default, so the whole section may be left out.
+     *
+     * @author jython234
+     */
+    public static class EventInfo {
+        /**
+         * How many event IDs are remembered to drop events the homeserver sends again
+         * when it retries a transaction. 0 disables deduplication.
+         */
+        public int dedupCapacity = 10000;
+        /**
+         * How long (in seconds) an event ID is remembered for.
+         */
+        public int dedupWindow = 3600;
+        /**
+         * If the remembered event IDs should be saved in the database, so events
+         * sent again after the bridge restarts are dropped too.
+         */
+        public boolean persistDedup = true;
+        /**
+         * If events sent by the bridge user or its puppets should be dropped before they reach event handlers.
+         */
+        public boolean suppressEchoes = true;
+        /**
+         * How long (in milliseconds) an event handler may take before a warning is logged. 0 disables the warnings.
+         */
+        public int slowHandlerThreshold = 1000;
+    }
+
     /**
      * Get the matrix homeserver's URL.
      * @return The matrix homeserver's URL.
@@ -168,4 +337,36 @@ public class BridgeConfig {
     public DbInfo getDbInfo() {
         return this.dbInfo;
     }
+
+    /**
+     * Get the media settings.
+     * @return Media settings.
+     */
+    public MediaInfo getMediaInfo() {
+        return this.mediaInfo;
+    }
+
+    /**
+     * Get the network settings.
+     * @return Network settings.
+     */
+    public NetworkInfo getNetworkInfo() {
+        return this.networkInfo;
+    }
+
+    /**
+     * Get the threading settings.
+     * @return Threading settings.
+     */
+    public ThreadingInfo getThreadingInfo() {
+        return this.threadingInfo;
+    }
+
+    /**
+     * Get the event handling settings.
+     * @return Event handling settings.
+     */
+    public EventInfo getEventInfo() {
+        return this.eventInfo;
+    }
 }
@@ -27,6 +27,7 @@
 package io.github.jython234.matrix.bridge.configuration;
 
 import io.github.jython234.matrix.appservice.exception.KeyNotFoundException;
+import io.github.jython234.matrix.bridge.concurrent.ExecutorMode;
 import org.iq80.leveldb.CompressionType;
 import org.yaml.snakeyaml.Yaml;
 
@@ -127,6 +128,85 @@ public class BridgeConfigLoader {
                 throw new RuntimeException("BridgeDatabase type must either be \"mongodb\" or \"leveldb\"");
         }
 
+        config.mediaInfo = new BridgeConfig.MediaInfo();
+        var mediaInfoMap = (Map) map.get("media");
+        if(mediaInfoMap != null) {
+            var media = config.mediaInfo;
+            media.segmentSize = (int) mediaInfoMap.getOrDefault("segmentSize", media.segmentSize);
+            media.parallelSegments = (int) mediaInfoMap.getOrDefault("parallelSegments", media.parallelSegments);
+            media.cacheDirectory = (String) mediaInfoMap.getOrDefault("cacheDirectory", media.cacheDirectory);
+            media.cacheSize = (int) mediaInfoMap.getOrDefault("cacheSize", media.cacheSize);
+
+            if(media.segmentSize <= 0 || media.parallelSegments <= 0) {
+                throw new RuntimeException("Media segment size and parallel segment count must be positive!");
+            }
+            if(media.cacheSize < 0) {
+                throw new RuntimeException("Media cache size must not be negative!");
+            }
+        }
+
+        config.networkInfo = new BridgeConfig.NetworkInfo();
+        var networkInfoMap = (Map) map.get("network");
+        if(networkInfoMap != null) {
+            var network = config.networkInfo;
+            network.bulkConcurrency = (int) networkInfoMap.getOrDefault("bulkConcurrency", network.bulkConcurrency);
+            network.bulkRequestsPerSecond = (int) networkInfoMap.getOrDefault("bulkRequestsPerSecond", network.bulkRequestsPerSecond);
+
+            network.maxInFlightRequests = (int) networkInfoMap.getOrDefault("maxInFlightRequests", network.maxInFlightRequests);
+            network.adaptiveConcurrency = (boolean) networkInfoMap.getOrDefault("adaptiveConcurrency", network.adaptiveConcurrency);
+            network.compression = (boolean) networkInfoMap.getOrDefault("compression", network.compression);
+            network.maxInFlightSize = (int) networkInfoMap.getOrDefault("maxInFlightSize", network.maxInFlightSize);
+            network.maxQueuedRequests = (int) networkInfoMap.getOrDefault("maxQueuedRequests", network.maxQueuedRequests);
+            network.maxQueuedSize = (int) networkInfoMap.getOrDefault("maxQueuedSize", network.maxQueuedSize);
+
+            if(network.bulkConcurrency <= 0 || network.bulkRequestsPerSecond < 0) {
+                throw new RuntimeException("Bulk concurrency must be positive and bulk requests per second must not be negative!");
+            }
+
+            if(network.maxInFlightRequests <= 0 || network.maxInFlightSize <= 0 || network.maxQueuedRequests < 0 || network.maxQueuedSize < 0) {
+                throw new RuntimeException("In-flight limits must be positive and queue limits must not be negative!");
+            }
+        }
+
+        config.threadingInfo = new BridgeConfig.ThreadingInfo();
+        var threadingInfoMap = (Map) map.get("threads");
+        if(threadingInfoMap != null) {
+            var threading = config.threadingInfo;
+            if(threadingInfoMap.containsKey("mode")) {
+                threading.mode = ExecutorMode.fromName((String) threadingInfoMap.get("mode"));
+            }
+            threading.poolSize = (int) threadingInfoMap.getOrDefault("poolSize", threading.poolSize);
+            threading.asyncDispatch = (boolean) threadingInfoMap.getOrDefault("asyncDispatch", threading.asyncDispatch);
+            threading.dispatchLanes = (int) threadingInfoMap.getOrDefault("dispatchLanes", threading.dispatchLanes);
+            threading.maxQueuedEvents = (int) threadingInfoMap.getOrDefault("maxQueuedEvents", threading.maxQueuedEvents);
+            threading.spillEvents = (boolean) threadingInfoMap.getOrDefault("spillEvents", threading.spillEvents);
+
+            if(threading.poolSize <= 0) {
+                throw new RuntimeException("Thread pool size must be positive!");
+            }
+            if(threading.dispatchLanes <= 0 || threading.maxQueuedEvents <= 0) {
+                throw new RuntimeException("Dispatch lanes and maximum queued events must be positive!");
+            }
+        }
+
+        config.eventInfo = new BridgeConfig.EventInfo();
+        var eventInfoMap = (Map) map.get("events");
+        if(eventInfoMap != null) {
+            var events = config.eventInfo;
+            events.dedupCapacity = (int) eventInfoMap.getOrDefault("dedupCapacity", events.dedupCapacity);
+            events.dedupWindow = (int) eventInfoMap.getOrDefault("dedupWindow", events.dedupWindow);
+            events.persistDedup = (boolean) eventInfoMap.getOrDefault("persistDedup", events.persistDedup);
+            events.suppressEchoes = (boolean) eventInfoMap.getOrDefault("suppressEchoes", events.suppressEchoes);
+            events.slowHandlerThreshold = (int) eventInfoMap.getOrDefault("slowHandlerThreshold", events.slowHandlerThreshold);
+
+            if(events.dedupCapacity < 0 || events.dedupWindow <= 0) {
+                throw new RuntimeException("Deduplication capacity must not be negative and its window must be positive!");
+            }
+            if(events.slowHandlerThreshold < 0) {
+                throw new RuntimeException("Slow handler threshold must not be negative!");
+            }
+        }
+
         return config;
     }
 }
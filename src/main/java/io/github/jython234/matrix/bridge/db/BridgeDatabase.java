@@ -33,6 +33,9 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Interface which represents a supported database (Mongo or leveldb). This
@@ -248,4 +251,82 @@ public abstract class BridgeDatabase implements Closeable {
      * @see #putExtraData(String, Serializable)
      */
     public abstract void deleteExtraData(String key) throws IOException;
+
+    // ASYNC ----------------------------------------------------------------
+
+    /**
+     * Get the executor that the asynchronous methods run on. This is the bridge's executor,
+     * or the common fork/join pool if this database isn't attached to a bridge.
+     * @return The executor.
+     * @see MatrixBridge#getExecutor()
+     */
+    protected Executor getExecutor() {
+        return this.bridge != null ? this.bridge.getExecutor() : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Asynchronous version of {@link #getUser(String)}, run on the bridge's executor.
+     * @param id The ID of the user.
+     * @return A future that completes with the User, or <code>null</code> if it doesn't exist.
+     */
+    public CompletableFuture<User> getUserAsync(String id) {
+        return this.async(() -> this.getUser(id));
+    }
+
+    /**
+     * Asynchronous version of {@link #putUser(User)}, run on the bridge's executor.
+     * @param user The User to be inserted.
+     * @return A future that completes once the user has been inserted.
+     */
+    public CompletableFuture<Void> putUserAsync(User user) {
+        return this.async(() -> {
+            this.putUser(user);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #getRoom(String)}, run on the bridge's executor.
+     * @param id The ID of the room (not matrix ID).
+     * @return A future that completes with the Room entry, or <code>null</code> if it doesn't exist.
+     */
+    public CompletableFuture<Room> getRoomAsync(String id) {
+        return this.async(() -> this.getRoom(id));
+    }
+
+    /**
+     * Asynchronous version of {@link #getRoomByMatrixId(String)}, run on the bridge's executor.
+     * @param matrixId The matrix ID of the room.
+     * @return A future that completes with the Room entry, or <code>null</code> if it doesn't exist.
+     */
+    public CompletableFuture<Room> getRoomByMatrixIdAsync(String matrixId) {
+        return this.async(() -> this.getRoomByMatrixId(matrixId));
+    }
+
+    /**
+     * Asynchronous version of {@link #putRoom(Room)}, run on the bridge's executor.
+     * @param room The {@link Room} to be inserted.
+     * @return A future that completes once the room has been inserted.
+     */
+    public CompletableFuture<Void> putRoomAsync(Room room) {
+        return this.async(() -> {
+            this.putRoom(room);
+            return null;
+        });
+    }
+
+    private interface DatabaseOperation<T> {
+        T run() throws IOException;
+    }
+
+    // Failed operations complete the future with a DatabaseException, like the synchronous update methods throw
+    private <T> CompletableFuture<T> async(DatabaseOperation<T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return operation.run();
+            } catch (IOException e) {
+                throw new DatabaseException(e);
+            }
+        }, this.getExecutor());
+    }
 }
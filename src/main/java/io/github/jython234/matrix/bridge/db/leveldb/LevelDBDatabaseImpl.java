@@ -128,11 +128,15 @@ public class LevelDBDatabaseImpl extends BridgeDatabase {
     protected void _putRoom(Room room, boolean doReverseMapping) throws IOException {
         var key = ByteUtils.getRoomKeyValue(room.id, false);
 
-        this.database.put(key, ByteUtils.serializeRoom(room));
-        if(doReverseMapping && room.getMatrixId() != null && !room.getMatrixId().equals("")) {
-            // Add a reverse mapping with the key being the matrixId and the value as the normal id, so we can retrieve the actual Room data
-            // if we have either the normal id or the matrixId
-            this.database.put(ByteUtils.getRoomKeyValue(room.getMatrixId(), true), key);
+        // Use a batch so the room and its reverse mapping are always written together
+        try(var batch = this.database.createWriteBatch()) {
+            batch.put(key, ByteUtils.serializeRoom(room));
+            if(doReverseMapping && room.getMatrixId() != null && !room.getMatrixId().equals("")) {
+                // Add a reverse mapping with the key being the matrixId and the value as the normal id, so we can retrieve the actual Room data
+                // if we have either the normal id or the matrixId
+                batch.put(ByteUtils.getRoomKeyValue(room.getMatrixId(), true), key);
+            }
+            this.database.write(batch);
         }
     }
 
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Holds all of the bridge's metrics by name. The bridge uses {@link DefaultMetricsRegistry} unless
+ * {@link io.github.jython234.matrix.bridge.MatrixBridge#createMetricsRegistry()} is overridden, so an
+ * implementation can forward the metrics to its own monitoring library instead.
+ *
+ * Metric names are dotted, and metrics that are kept per endpoint or per handler append the
+ * key in brackets, for example <code>http.latency[PUT rooms/{roomId}/typing/{userId}]</code>.
+ *
+ * @author jython234
+ * @see DefaultMetricsRegistry
+ */
+public interface MetricsRegistry {
+    /**
+     * Get or create a counter.
+     * @param name The name of the counter.
+     * @return The counter with that name.
+     */
+    Counter counter(String name);
+
+    /**
+     * Get or create a histogram.
+     * @param name The name of the histogram.
+     * @return The histogram with that name.
+     */
+    Histogram histogram(String name);
+
+    /**
+     * Register a gauge, replacing any gauge with the same name.
+     * @param name The name of the gauge.
+     * @param value Supplies the current value of the gauge whenever it is read.
+     */
+    void gauge(String name, LongSupplier value);
+
+    /**
+     * Report every metric to a {@link MetricsReporter}.
+     * @param reporter The reporter.
+     */
+    void report(MetricsReporter reporter);
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import io.github.jython234.matrix.bridge.metrics.Counter;
+import io.github.jython234.matrix.bridge.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests to the homeserver are in flight at once, and how many may wait
+ * for their turn. Both limits are counted in requests and in request body bytes. The request
+ * limit can adapt to the homeserver's latency, see {@link VegasConcurrencyLimit}. Requests
+ * that don't fit in the queue are rejected with an {@link AdmissionRejectedException}.
+ *
+ * Waiting requests are sorted into {@link RequestPriority} lanes. Higher lanes are always
+ * admitted first and lower lanes may only use part of the in-flight limit. Within a lane the
+ * users requests are sent as take turns (see {@link #setSenderWeight(String, double)}), so a single
+ * busy puppet can't starve the others, and each user's requests are admitted in the order they arrived.
+ *
+ * The controller is saturated while any request outside the ephemeral lane is waiting, and stays
+ * saturated until those have been sent and the in-flight requests have dropped to three quarters of the limit.
+ * While saturated, {@link RequestPriority#EPHEMERAL} requests are rejected instead of queued.
+ *
+ * Records the following metrics:
+ * <ul>
+ *     <li><code>http.admission.limit</code>: the current in-flight request limit</li>
+ *     <li><code>http.admission.queued</code>: requests waiting to be sent</li>
+ *     <li><code>http.admission.rejected</code>: requests rejected because the queue was full</li>
+ *     <li><code>http.admission.shed[lane]</code>: requests dropped from a lane because of saturation</li>
+ *     <li><code>http.admission.wait[lane]</code>: time requests waited before being sent, in microseconds</li>
+ * </ul>
+ *
+ * @author jython234
+ */
+public class AdmissionController {
+    private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+
+    private final ConcurrencyLimit limit;
+    private final long maxInFlightBytes;
+    private final int maxQueuedRequests;
+    private final long maxQueuedBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition admitted = this.lock.newCondition();
+    private final List<FairQueue<Waiter>> lanes = new ArrayList<>();
+    private final Map<String, Double> senderWeights = new ConcurrentHashMap<>();
+
+    private int inFlightRequests = 0;
+    private long inFlightBytes = 0;
+    private int queuedRequests = 0;
+    private long queuedBytes = 0;
+    private volatile boolean saturated = false;
+
+    private final List<BackpressureListener> listeners = new CopyOnWriteArrayList<>();
+    private final Queue<Boolean> notifications = new ArrayDeque<>(); // Saturation changes not delivered to the listeners yet
+    private boolean notifying = false; // If a thread is delivering the notifications
+
+    private final MetricsRegistry registry;
+    private final Counter rejected;
+
+    private static class Waiter {
+        final RequestPriority priority;
+        final String sender;
+        final long bytes;
+        boolean admitted = false;
+        boolean shed = false;
+
+        Waiter(RequestPriority priority, String sender, long bytes) {
+            this.priority = priority;
+            this.sender = sender;
+            this.bytes = bytes;
+        }
+    }
+
+    AdmissionController(MetricsRegistry registry, ConcurrencyLimit limit, long maxInFlightBytes, int maxQueuedRequests, long maxQueuedBytes) {
+        this.limit = limit;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.maxQueuedBytes = maxQueuedBytes;
+
+        for(int i = 0; i < PRIORITIES.length; i++) {
+            this.lanes.add(new FairQueue<>(this::getSenderWeight));
+        }
+
+        this.registry = registry;
+        this.rejected = registry.counter("http.admission.rejected");
+        registry.gauge("http.admission.limit", limit::get);
+        registry.gauge("http.admission.queued", this::getQueuedRequests);
+    }
+
+    /**
+     * Waits until a request may be sent. Every call must be followed by a call to {@link #release(long, long, boolean)}
+     * once the request has finished.
+     * @param priority The lane of the request.
+     * @param sender The user ID the request is sent as.
+     * @param bytes The length of the request body.
+     * @throws AdmissionRejectedException If the queue is full, or the request was shed because of saturation.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    void acquire(RequestPriority priority, String sender, long bytes) throws AdmissionRejectedException, InterruptedException {
+        var notify = false;
+        var start = System.nanoTime();
+
+        this.lock.lock();
+        try {
+            if(this.saturated && priority == RequestPriority.EPHEMERAL) {
+                throw this.shed(priority);
+            }
+
+            if(!this.hasWaiting(priority) && this.fits(priority, bytes)) {
+                this.admit(bytes);
+                return;
+            }
+
+            if(this.queuedRequests >= this.maxQueuedRequests || this.queuedBytes + bytes > this.maxQueuedBytes) {
+                this.rejected.increment();
+                throw new AdmissionRejectedException("Too many requests waiting to be sent to the homeserver ("
+                        + this.queuedRequests + " requests, " + this.queuedBytes + " bytes)");
+            }
+
+            var waiter = new Waiter(priority, sender, bytes);
+            this.lane(priority).add(sender, waiter);
+            this.queuedRequests++;
+            this.queuedBytes += bytes;
+            notify = this.updateSaturated();
+
+            try {
+                while(!waiter.admitted && !waiter.shed) {
+                    this.admitted.await();
+                }
+            } catch (InterruptedException e) {
+                if(waiter.admitted) {
+                    this.releaseLocked(bytes); // We were admitted just before the interrupt, give the slot back
+                } else if(!waiter.shed) {
+                    this.dequeue(waiter);
+                    this.admitWaiting();
+                }
+                notify |= this.updateSaturated();
+                throw e;
+            }
+
+            if(waiter.shed) throw this.shed(priority);
+        } finally {
+            this.lock.unlock();
+            if(notify) this.notifyListeners();
+        }
+
+        this.registry.histogram("http.admission.wait[" + priority.name().toLowerCase() + "]").record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Marks a request admitted by {@link #acquire(RequestPriority, String, long)} as finished.
+     * @param bytes The length of the request body, the same as given to {@link #acquire(RequestPriority, String, long)}.
+     * @param rttNanos How long the request took, in nanoseconds, or -1 if its latency should be ignored.
+     * @param dropped If the request failed because of overload, such as a 503 response or a timeout.
+     */
+    void release(long bytes, long rttNanos, boolean dropped) {
+        boolean notify;
+        this.lock.lock();
+        try {
+            this.limit.onSample(rttNanos, this.inFlightRequests, dropped);
+            this.releaseLocked(bytes);
+            notify = this.updateSaturated();
+        } finally {
+            this.lock.unlock();
+        }
+
+        if(notify) this.notifyListeners();
+    }
+
+    private AdmissionRejectedException shed(RequestPriority priority) {
+        this.registry.counter("http.admission.shed[" + priority.name().toLowerCase() + "]").increment();
+        return new AdmissionRejectedException("Dropped " + priority.name().toLowerCase() + " request as the homeserver can't keep up");
+    }
+
+    private void releaseLocked(long bytes) {
+        this.inFlightRequests--;
+        this.inFlightBytes -= bytes;
+        this.admitWaiting();
+    }
+
+    private void admitWaiting() {
+        var any = false;
+        for(var priority : PRIORITIES) {
+            var lane = this.lane(priority);
+            while(!lane.isEmpty() && this.fits(priority, lane.peek().bytes)) {
+                var waiter = lane.poll();
+                this.queuedRequests--;
+                this.queuedBytes -= waiter.bytes;
+                this.admit(waiter.bytes);
+                waiter.admitted = true;
+                any = true;
+            }
+
+            if(!lane.isEmpty()) break; // Lower lanes have to wait until this one has been served
+        }
+        if(any) this.admitted.signalAll();
+    }
+
+    private void dequeue(Waiter waiter) {
+        this.lane(waiter.priority).remove(waiter.sender, waiter);
+        this.queuedRequests--;
+        this.queuedBytes -= waiter.bytes;
+    }
+
+    // Drops every waiting ephemeral request, called when the controller becomes saturated
+    private void shedWaiting() {
+        var lane = this.lane(RequestPriority.EPHEMERAL);
+        if(lane.isEmpty()) return;
+
+        while(!lane.isEmpty()) {
+            var waiter = lane.poll();
+            this.queuedRequests--;
+            this.queuedBytes -= waiter.bytes;
+            waiter.shed = true;
+        }
+        this.admitted.signalAll();
+    }
+
+    private boolean hasWaiting(RequestPriority priority) {
+        for(int i = 0; i <= priority.ordinal(); i++) {
+            if(!this.lanes.get(i).isEmpty()) return true;
+        }
+        return false;
+    }
+
+    private FairQueue<Waiter> lane(RequestPriority priority) {
+        return this.lanes.get(priority.ordinal());
+    }
+
+    private boolean fits(RequestPriority priority, long bytes) {
+        var maxRequests = Math.max(1, (int) (this.limit.get() * priority.getCapacityShare()));
+
+        // A single request larger than the byte budget is still let through when nothing else is in flight
+        return this.inFlightRequests < maxRequests
+                && (this.inFlightBytes + bytes <= this.maxInFlightBytes || this.inFlightRequests == 0);
+    }
+
+    private void admit(long bytes) {
+        this.inFlightRequests++;
+        this.inFlightBytes += bytes;
+    }
+
+    // Returns true if the saturation changed, listeners must then be notified after unlocking
+    private boolean updateSaturated() {
+        // Ephemeral requests waiting for their smaller share of the capacity don't count as saturation
+        var waiting = this.queuedRequests - this.lane(RequestPriority.EPHEMERAL).size();
+
+        boolean saturated;
+        if(waiting > 0) saturated = true;
+        else if(this.saturated) saturated = this.inFlightRequests > this.limit.get() * 3 / 4;
+        else saturated = false;
+
+        if(saturated == this.saturated) return false;
+        this.saturated = saturated;
+        this.notifications.add(saturated);
+        if(saturated) this.shedWaiting();
+        return true;
+    }
+
+    // Delivers the saturation changes in the order they happened. Only one thread delivers them at a time,
+    // and it keeps going until there are none left, including any queued by other threads meanwhile.
+    private void notifyListeners() {
+        this.lock.lock();
+        try {
+            if(this.notifying) return;
+            this.notifying = true;
+        } finally {
+            this.lock.unlock();
+        }
+
+        var done = false;
+        try {
+            while(true) {
+                Boolean saturated;
+                this.lock.lock();
+                try {
+                    saturated = this.notifications.poll();
+                    if(saturated == null) {
+                        this.notifying = false;
+                        done = true;
+                        return;
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+
+                for(var listener : this.listeners) {
+                    if(saturated) listener.onSaturated();
+                    else listener.onRelieved();
+                }
+            }
+        } finally {
+            if(!done) { // A listener threw, let the next change deliver the rest
+                this.lock.lock();
+                try {
+                    this.notifying = false;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set how large a share of the capacity a user gets while requests are waiting, compared to other users
+     * in the same lane. For example a user with weight 2 has twice as many requests sent as a user with weight 1
+     * when both have requests waiting. The bridge user's requests use the ID <code>""</code>.
+     * @param userId The full user ID of the puppet.
+     * @param weight The user's weight, 1 by default.
+     */
+    public void setSenderWeight(String userId, double weight) {
+        if(weight <= 0) throw new IllegalArgumentException("Weight must be positive!");
+
+        if(weight == 1) this.senderWeights.remove(userId);
+        else this.senderWeights.put(userId, weight);
+    }
+
+    /**
+     * Get a user's weight, see {@link #setSenderWeight(String, double)}.
+     * @param userId The full user ID of the puppet.
+     * @return The user's weight.
+     */
+    public double getSenderWeight(String userId) {
+        return this.senderWeights.getOrDefault(userId, 1.0);
+    }
+
+    /**
+     * Returns if requests to the homeserver are currently having to wait before they can be sent.
+     * @return If the homeserver can't keep up with the requests being made.
+     * @see #addListener(BackpressureListener)
+     */
+    public boolean isSaturated() {
+        return this.saturated;
+    }
+
+    /**
+     * Add a listener that is notified whenever {@link #isSaturated()} changes.
+     * @param listener The listener.
+     */
+    public void addListener(BackpressureListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added by {@link #addListener(BackpressureListener)}.
+     * @param listener The listener.
+     */
+    public void removeListener(BackpressureListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Get the amount of requests currently being sent.
+     * @return The amount of requests in flight.
+     */
+    public long getInFlightRequests() {
+        this.lock.lock();
+        try {
+            return this.inFlightRequests;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the amount of requests waiting to be sent.
+     * @return The amount of requests waiting.
+     */
+    public long getQueuedRequests() {
+        this.lock.lock();
+        try {
+            return this.queuedRequests;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+/**
+ * The result of a single user's invite, kick or ban in a bulk membership operation,
+ * such as {@link MatrixUserClient#inviteAll(String, java.util.Collection)}.
+ *
+ * @author jython234
+ */
+public class BulkMembershipResult {
+    /**
+     * The user ID the operation was applied to.
+     */
+    public final String userId;
+
+    /**
+     * The result of the request, or <code>null</code> if the request could not be
+     * completed because of a network error.
+     *
+     * @see #exception
+     */
+    public final MatrixNetworkResult result;
+
+    /**
+     * If there was a network error while performing the request, this will contain it.
+     * Otherwise it will be <code>null</code>.
+     */
+    public final MatrixNetworkException exception;
+
+    public BulkMembershipResult(String userId, MatrixNetworkResult result, MatrixNetworkException exception) {
+        this.userId = userId;
+        this.result = result;
+        this.exception = exception;
+    }
+
+    /**
+     * Returns if the operation succeeded for this user.
+     * @return If the request completed and the server accepted it.
+     */
+    public boolean isSuccessful() {
+        return this.result != null && this.result.successful;
+    }
+}
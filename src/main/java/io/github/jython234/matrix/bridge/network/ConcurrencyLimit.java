@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+/**
+ * Decides how many requests the {@link AdmissionController} lets be in flight at once.
+ *
+ * @author jython234
+ */
+interface ConcurrencyLimit {
+    /**
+     * Get the current limit.
+     * @return The maximum amount of requests in flight.
+     */
+    int get();
+
+    /**
+     * Called every time a request finishes.
+     * @param rttNanos How long the request took, in nanoseconds, or -1 if its latency should be ignored.
+     * @param inFlight How many requests were in flight when it finished, including itself.
+     * @param dropped If the request failed in a way that shows overload, such as a 503 response or a timeout.
+     */
+    void onSample(long rttNanos, int inFlight, boolean dropped);
+
+    /**
+     * A limit that never changes.
+     */
+    static ConcurrencyLimit fixed(int limit) {
+        return new ConcurrencyLimit() {
+            @Override
+            public int get() {
+                return limit;
+            }
+
+            @Override
+            public void onSample(long rttNanos, int inFlight, boolean dropped) {
+
+            }
+        };
+    }
+}
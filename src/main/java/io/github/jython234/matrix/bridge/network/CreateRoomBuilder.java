@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import com.google.gson.JsonObject;
+import io.github.jython234.matrix.bridge.db.DatabaseException;
+import io.github.jython234.matrix.bridge.db.Room;
+import io.github.jython234.matrix.bridge.network.room.CreateRoomData;
+import io.github.jython234.matrix.bridge.network.room.CreateRoomResponseData;
+import io.github.jython234.matrix.bridge.network.room.PowerLevelsData;
+import io.github.jython234.matrix.bridge.network.room.StateEventData;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds a single <code>/createRoom</code> request, which sets the room's name, topic,
+ * alias, power levels and any other initial state in one round-trip, instead of
+ * setting each one after the room has been created.
+ *
+ * Get an instance using {@link MatrixUserClient#createRoom()}.
+ *
+ * @author jython234
+ */
+public class CreateRoomBuilder {
+    private final MatrixUserClient client;
+    private final CreateRoomData data = new CreateRoomData();
+
+    private String bridgedRoomId;
+    private Map<String, Serializable> bridgedRoomData;
+
+    CreateRoomBuilder(MatrixUserClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Set the room's name.
+     * @param name The room name.
+     * @return This builder.
+     */
+    public CreateRoomBuilder name(String name) {
+        this.data.name = name;
+        return this;
+    }
+
+    /**
+     * Set the room's topic.
+     * @param topic The room topic.
+     * @return This builder.
+     */
+    public CreateRoomBuilder topic(String topic) {
+        this.data.topic = topic;
+        return this;
+    }
+
+    /**
+     * Set the room's canonical alias. The server will create the alias and point it at the new room.
+     * @param aliasLocalpart The local part of the alias, for example "myroom" for "#myroom:domain".
+     * @return This builder.
+     */
+    public CreateRoomBuilder alias(String aliasLocalpart) {
+        this.data.roomAliasName = aliasLocalpart;
+        return this;
+    }
+
+    /**
+     * Set if the room is shown in the public room directory.
+     * @param isPublic If the room should be published.
+     * @return This builder.
+     */
+    public CreateRoomBuilder publish(boolean isPublic) {
+        this.data.visibility = isPublic ? "public" : "private";
+        return this;
+    }
+
+    /**
+     * Set the room's preset, which controls its default join rules and history visibility.
+     * @param preset One of "private_chat", "trusted_private_chat" or "public_chat".
+     * @return This builder.
+     */
+    public CreateRoomBuilder preset(String preset) {
+        this.data.preset = preset;
+        return this;
+    }
+
+    /**
+     * Invite users to the room as soon as it is created.
+     * @param userIds The full user IDs of the users to invite.
+     * @return This builder.
+     */
+    public CreateRoomBuilder invite(String... userIds) {
+        if(this.data.invite == null) this.data.invite = new ArrayList<>();
+        this.data.invite.addAll(Arrays.asList(userIds));
+        return this;
+    }
+
+    /**
+     * Set the room's power levels. Only the levels that differ from a new {@link PowerLevelsData}, and the
+     * users and events that were added to it, replace the server's default power levels. Use
+     * {@link #powerLevel(String, int)} to set a level to the same value as {@link PowerLevelsData}'s default.
+     * @param powerLevels The room's power levels.
+     * @return This builder.
+     */
+    public CreateRoomBuilder powerLevels(PowerLevelsData powerLevels) {
+        var gson = MatrixClientManager.gson;
+        var defaults = gson.toJsonTree(new PowerLevelsData()).getAsJsonObject();
+        for(var entry : gson.toJsonTree(powerLevels).getAsJsonObject().entrySet()) {
+            var value = entry.getValue();
+            if(value.isJsonObject()) {
+                // Merge the users and events, an empty map would wipe the server's defaults
+                for(var level : value.getAsJsonObject().entrySet()) {
+                    this.getOverride(entry.getKey()).add(level.getKey(), level.getValue());
+                }
+            } else if(!value.equals(defaults.get(entry.getKey()))) {
+                this.getOverride(null).add(entry.getKey(), value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Set one of the room's power levels, replacing the server's default for it.
+     * @param key The key of the level in the <code>m.room.power_levels</code> event, for example "invite" or "state_default".
+     * @param level The minimum power level.
+     * @return This builder.
+     */
+    public CreateRoomBuilder powerLevel(String key, int level) {
+        this.getOverride(null).addProperty(key, level);
+        return this;
+    }
+
+    /**
+     * Set a user's power level in the room.
+     * @param userId The full user ID of the user.
+     * @param level The user's power level.
+     * @return This builder.
+     */
+    public CreateRoomBuilder userPowerLevel(String userId, int level) {
+        this.getOverride("users").addProperty(userId, level);
+        return this;
+    }
+
+    /**
+     * Set the power level needed to send a specific event type in the room.
+     * @param eventType The event type, for example "m.room.name".
+     * @param level The minimum power level.
+     * @return This builder.
+     */
+    public CreateRoomBuilder eventPowerLevel(String eventType, int level) {
+        this.getOverride("events").addProperty(eventType, level);
+        return this;
+    }
+
+    // The power level override, or one of its nested maps if key isn't null
+    private JsonObject getOverride(String key) {
+        if(this.data.powerLevelContentOverride == null) this.data.powerLevelContentOverride = new JsonObject();
+        if(key == null) return this.data.powerLevelContentOverride;
+
+        if(!this.data.powerLevelContentOverride.has(key)) this.data.powerLevelContentOverride.add(key, new JsonObject());
+        return this.data.powerLevelContentOverride.getAsJsonObject(key);
+    }
+
+    /**
+     * Add a state event to the room's initial state.
+     * @param type The event type, for example "m.room.avatar".
+     * @param stateKey The state key of the event, usually an empty string.
+     * @param content The content of the event. It is serialized using GSON.
+     * @return This builder.
+     */
+    public CreateRoomBuilder initialState(String type, String stateKey, Object content) {
+        this.data.initialState.add(new StateEventData(type, stateKey, content));
+        return this;
+    }
+
+    /**
+     * Store a {@link Room} entry for the new room in the bridge database once it has been created.
+     * @param id The remote ID of the room, see {@link Room#id}
+     * @param additionalData Any additional data to store with the room, can be <code>null</code>
+     * @return This builder.
+     */
+    public CreateRoomBuilder bridgedRoom(String id, Map<String, Serializable> additionalData) {
+        this.bridgedRoomId = id;
+        this.bridgedRoomData = additionalData;
+        return this;
+    }
+
+    /**
+     * Create the room.
+     * @return A {@link MatrixNetworkResult} object containing information about the results of the request, such as failure or success.
+     *         The new room's ID is stored in {@link MatrixNetworkResult#result}.
+     * @throws MatrixNetworkException If there was an error while performing the network request.
+     * @throws DatabaseException If the room was created but the {@link Room} entry could not be stored.
+     */
+    public MatrixNetworkResult<String> create() throws MatrixNetworkException {
+        var result = this.client.createRoom(this.data);
+        if(result.successful && this.bridgedRoomId != null) {
+            var db = this.client.getManager().bridge.getDatabase();
+            var additionalData = new ConcurrentHashMap<String, Serializable>();
+            if(this.bridgedRoomData != null) additionalData.putAll(this.bridgedRoomData);
+
+            try {
+                // putRoom writes the room and its matrix ID mapping together
+                db.putRoom(new Room(db, this.bridgedRoomId, result.result, additionalData));
+            } catch (IOException e) {
+                throw new DatabaseException(e);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import java.net.URI;
+
+/**
+ * Turns a request URI into its endpoint template by replacing the IDs in the path with placeholders, for
+ * example <code>/_matrix/client/r0/rooms/!abc:localhost/typing/@bob:localhost</code> becomes
+ * <code>rooms/{roomId}/typing/{userId}</code>. This keeps per-endpoint metrics to a fixed set of names.
+ *
+ * @author jython234
+ */
+class EndpointTemplate {
+    private static final String CLIENT_PREFIX = "/_matrix/client/r0/";
+    private static final String MEDIA_PREFIX = "/_matrix/";
+
+    private EndpointTemplate() {
+
+    }
+
+    /**
+     * Get the endpoint template of a request.
+     * @param method The HTTP method, for example "PUT".
+     * @param uri The request URI.
+     * @return The method followed by the templated path.
+     */
+    static String of(String method, URI uri) {
+        var path = uri.getRawPath();
+        if(path.startsWith(CLIENT_PREFIX)) {
+            path = path.substring(CLIENT_PREFIX.length());
+        } else if(path.startsWith(MEDIA_PREFIX)) {
+            path = path.substring(MEDIA_PREFIX.length());
+        }
+
+        var segments = path.split("/");
+        var sb = new StringBuilder(method).append(' ');
+        for(int i = 0; i < segments.length; i++) {
+            if(i > 0) sb.append('/');
+
+            var segment = segments[i];
+            var previous = i > 0 ? segments[i - 1] : "";
+            var beforePrevious = i > 1 ? segments[i - 2] : "";
+
+            if(previous.equals("download") || previous.equals("thumbnail")) {
+                sb.append("{serverName}");
+            } else if(beforePrevious.equals("download") || beforePrevious.equals("thumbnail")) {
+                sb.append("{mediaId}");
+            } else if(beforePrevious.equals("send")) {
+                sb.append("{txnId}");
+            } else {
+                sb.append(placeholder(segment));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String placeholder(String segment) {
+        if(segment.startsWith("!")) return "{roomId}";
+        if(segment.startsWith("@") || segment.startsWith("%40")) return "{userId}";
+        if(segment.startsWith("#") || segment.startsWith("%23")) return "{roomAlias}";
+        if(segment.startsWith("$") || segment.startsWith("%24")) return "{eventId}";
+        return segment;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A queue that is fair between flows, using deficit round-robin. Each flow (for example a sender's user ID)
+ * has its own FIFO queue, and the flows with waiting items take turns. On each turn a flow may take as
+ * many items as its weight allows, so a flow with weight 2 gets twice the share of one with weight 1,
+ * and a single busy flow can't starve the others.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <T> The item type.
+ * @author jython234
+ */
+class FairQueue<T> {
+    private final ToDoubleFunction<String> weights;
+
+    private final Map<String, Flow<T>> flows = new HashMap<>();
+    private final Deque<Flow<T>> active = new ArrayDeque<>();
+    private int size = 0;
+
+    private static class Flow<T> {
+        final String id;
+        final Deque<T> items = new ArrayDeque<>();
+        double deficit = 0;
+
+        Flow(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param weights Returns the weight of a flow, which must be positive.
+     */
+    FairQueue(ToDoubleFunction<String> weights) {
+        this.weights = weights;
+    }
+
+    void add(String flowId, T item) {
+        var flow = this.flows.get(flowId);
+        if(flow == null) {
+            flow = new Flow<>(flowId);
+            this.flows.put(flowId, flow);
+            this.active.addLast(flow);
+        }
+        flow.items.addLast(item);
+        this.size++;
+    }
+
+    /**
+     * Get the item that {@link #poll()} will return next, without removing it.
+     * @return The next item, or <code>null</code> if the queue is empty.
+     */
+    T peek() {
+        if(this.size == 0) return null;
+        return this.current().items.peekFirst();
+    }
+
+    /**
+     * Remove the next item.
+     * @return The next item, or <code>null</code> if the queue is empty.
+     */
+    T poll() {
+        if(this.size == 0) return null;
+
+        var flow = this.current();
+        var item = flow.items.pollFirst();
+        flow.deficit -= 1;
+        this.size--;
+
+        if(flow.items.isEmpty()) {
+            this.active.pollFirst();
+            this.flows.remove(flow.id);
+        } else if(flow.deficit < 1) {
+            this.active.addLast(this.active.pollFirst()); // Turn is over
+        }
+        return item;
+    }
+
+    /**
+     * Remove a specific item, for example one whose caller gave up waiting.
+     * @param flowId The flow the item was added to.
+     * @param item The item.
+     * @return If the item was found and removed.
+     */
+    boolean remove(String flowId, T item) {
+        var flow = this.flows.get(flowId);
+        if(flow == null || !flow.items.remove(item)) return false;
+
+        this.size--;
+        if(flow.items.isEmpty()) {
+            this.active.remove(flow);
+            this.flows.remove(flowId);
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    // The flow at the front of the round, after giving it (and any flows it skips) their quantum
+    private Flow<T> current() {
+        var flow = this.active.peekFirst();
+        while(flow.deficit < 1) {
+            flow.deficit += this.weights.applyAsDouble(flow.id);
+            if(flow.deficit < 1) {
+                this.active.addLast(this.active.pollFirst());
+                flow = this.active.peekFirst();
+            }
+        }
+        return flow;
+    }
+}
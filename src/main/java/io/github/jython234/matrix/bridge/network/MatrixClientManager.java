@@ -28,24 +28,35 @@ package io.github.jython234.matrix.bridge.network;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import io.github.jython234.matrix.bridge.MatrixBridge;
+import io.github.jython234.matrix.bridge.network.error.MatrixErrorData;
 import io.github.jython234.matrix.bridge.network.media.MediaUploadData;
-import jdk.incubator.http.HttpClient;
-import jdk.incubator.http.HttpRequest;
-import jdk.incubator.http.HttpResponse;
-import org.apache.commons.io.FileUtils;
+import io.github.jython234.matrix.bridge.network.media.ThumbnailMethod;
+import io.github.jython234.matrix.bridge.network.room.EventResponseData;
+import io.github.jython234.matrix.bridge.network.transport.JdkHttpTransport;
+import io.github.jython234.matrix.bridge.network.transport.MatrixHttpRequest;
+import io.github.jython234.matrix.bridge.network.transport.MatrixHttpResponse;
+import io.github.jython234.matrix.bridge.network.transport.MatrixTransport;
+import jdk.incubator.http.HttpTimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -64,16 +75,59 @@ public class MatrixClientManager {
 
     protected final Random random = new Random();
 
-    private HttpClient httpClient;
+    // How many of the event IDs the bridge has sent are remembered, to recognize their echoes
+    private static final int SENT_EVENTS_REMEMBERED = 4096;
+    // How long a user's requests are held back after a 429 response that doesn't say how long to wait
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+    private static final int MAX_UPLOAD_ATTEMPTS = 3;
+
+    private final MatrixTransport transport;
+    private final NetworkMetrics networkMetrics;
+    private final RateLimiter bulkRateLimiter;
+    private final Map<String, RateLimiter> senderRateLimiters = new ConcurrentHashMap<>(); // Only users that are being rate limited
+    private final AdmissionController admissionController;
+    private final PowerLevelsCache powerLevelsCache = new PowerLevelsCache();
+    private final Map<String, PowerLevelsPatcher> powerLevelsPatchers = new ConcurrentHashMap<>(); // Only rooms with patches in progress
+    private final boolean compression;
 
     private Map<String, MatrixUserClient> bridgeUsers = new ConcurrentHashMap<>(); // Map of 'bot created' users by the appservice
+    private final SingleFlight<String, String> thumbnailFetches = new SingleFlight<>();
+    private final ThumbnailCache thumbnailCache;
+    private final SingleFlight<String, MatrixHttpResponse> getRequests;
     private MatrixUserClient bridgeClient;
+    private final Set<String> sentEvents = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return this.size() > SENT_EVENTS_REMEMBERED;
+        }
+    }));
 
     public MatrixClientManager(MatrixBridge bridge) {
+        this(bridge, new JdkHttpTransport());
+    }
+
+    /**
+     * Creates a new client manager that sends its requests through a specific transport.
+     * @param bridge The bridge.
+     * @param transport The transport all requests to the homeserver are sent through.
+     */
+    public MatrixClientManager(MatrixBridge bridge, MatrixTransport transport) {
         this.logger = LoggerFactory.getLogger("MatrixBridge-Client");
         this.bridge = bridge;
 
-        this.httpClient = HttpClient.newBuilder().build();
+        this.transport = transport;
+        this.networkMetrics = new NetworkMetrics(bridge.getMetrics());
+        this.getRequests = new SingleFlight<>(() -> this.networkMetrics.coalesced(1));
+        var networkInfo = bridge.getConfig().getNetworkInfo();
+        this.compression = networkInfo.compression;
+        var mediaInfo = bridge.getConfig().getMediaInfo();
+        this.thumbnailCache = new ThumbnailCache(Paths.get(mediaInfo.cacheDirectory), mediaInfo.cacheSize * 1024L * 1024L, this.logger);
+        this.bulkRateLimiter = new RateLimiter(networkInfo.bulkRequestsPerSecond);
+        var limit = networkInfo.adaptiveConcurrency
+                ? new VegasConcurrencyLimit(Math.max(4, networkInfo.maxInFlightRequests / 4), Math.min(4, networkInfo.maxInFlightRequests), networkInfo.maxInFlightRequests)
+                : ConcurrencyLimit.fixed(networkInfo.maxInFlightRequests);
+        this.admissionController = new AdmissionController(bridge.getMetrics(), limit, networkInfo.maxInFlightSize * 1024L * 1024L,
+                networkInfo.maxQueuedRequests, networkInfo.maxQueuedSize * 1024L * 1024L);
 
         try {
             bridgeClient = new MatrixUserClient(this, "@" + this.bridge.getAppservice().getRegistration().getSenderLocalpart() + ":" + this.bridge.getConfig().getMatrixDomain());
@@ -175,7 +229,9 @@ public class MatrixClientManager {
 
     /**
      * Uploads a file to the Matrix Content Repository. The "Content-Type" will be inferred using the method
-     * {@link URLConnection#guessContentTypeFromName(String)}.
+     * {@link URLConnection#guessContentTypeFromName(String)}, falling back to <code>application/octet-stream</code>.
+     *
+     * If the homeserver rate limits the upload, it is retried a few times once the delay it asked for has passed.
      * @param path The path to the file to be uploaded.
      * @return The MXC URL of the uploaded file.
      * @throws MatrixNetworkException If there was an error while processing the upload.
@@ -183,101 +239,334 @@ public class MatrixClientManager {
     public synchronized String uploadMatrixFromFile(String path) throws MatrixNetworkException {
         try {
             var uri = new URI(this.bridge.getConfig().getServerURL() + "/_matrix/media/r0/upload?access_token=" + this.bridge.getAppservice().getRegistration().getAsToken());
-            var request = HttpRequest.newBuilder()
-                    .uri(uri)
-                    .header("Content-Type", URLConnection.guessContentTypeFromName(path))
-                    .POST(HttpRequest.BodyPublisher.fromFile(Paths.get(path)))
-                    .timeout(Duration.ofSeconds(20))
-                    .build();
-
-            var response = this.httpClient.send(request, HttpResponse.BodyHandler.asString());
-            switch (response.statusCode()) {
-                case 200:
-                    return MatrixClientManager.gson.fromJson(response.body(), MediaUploadData.class).contentUri;
-                case 429:
-                    // TODO Rate limiting support
-                default:
-                    System.out.println(response.body());
-                    throw new MatrixNetworkException("Non-200 status code while uploading file: " + response.statusCode());
+            var contentType = URLConnection.guessContentTypeFromName(path);
+            var request = new MatrixHttpRequest("POST", uri, Collections.singletonMap("Content-Type", contentType != null ? contentType : "application/octet-stream"),
+                    Files.readAllBytes(Paths.get(path)), Duration.ofSeconds(20));
+
+            for(int attempt = 1; ; attempt++) {
+                // After a 429 the next send() waits until the bridge user may send again
+                var response = this.send(request);
+                if(response.statusCode() == 200) {
+                    var data = fromJson(response, MediaUploadData.class);
+                    if(data == null || data.contentUri == null) throw new MatrixNetworkException("Upload response did not contain a content URI");
+                    return data.contentUri;
+                }
+                if(response.statusCode() == 429 && attempt < MAX_UPLOAD_ATTEMPTS) continue;
+
+                var message = "Non-200 status code while uploading file: " + response.statusCode();
+                try {
+                    var error = fromJson(response, MatrixErrorData.class);
+                    if(error != null && error.errorCode != null) message += " (" + error + ")";
+                } catch (JsonParseException e) {
+                    // Not a Matrix error response, the status code will have to do
+                }
+                throw new MatrixNetworkException(message);
+            }
+        } catch (URISyntaxException | InterruptedException | IOException | JsonParseException e) {
+            throw new MatrixNetworkException(e);
+        }
+    }
 
+    public synchronized void downloadMatrixFile(String mxcURL, String path) throws MatrixNetworkException {
+        try {
+            var target = Paths.get(path).toAbsolutePath();
+            Files.createDirectories(target.getParent());
+            var tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                // No timeout, a large file takes as long as the connection needs
+                var response = this.sendToFile(new MatrixHttpRequest("GET", this.getDownloadURI(mxcURL), null), tmp);
+                if(response.statusCode() != 200) {
+                    throw new MatrixNetworkException("Non-200 status code while downloading file: " + response.statusCode());
+                }
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
             }
         } catch (URISyntaxException | InterruptedException | IOException e) {
             throw new MatrixNetworkException(e);
         }
     }
 
-    public synchronized void downloadMatrixFile(String mxcURL, String path) throws MatrixNetworkException {
-        var mxcURLExtracted = mxcURL.replaceAll("mxc://", "");
+    /**
+     * Downloads a large file from the Matrix Content Repository using parallel HTTP <code>Range</code> requests.
+     * The segment size and number of parallel segments are set in the <code>media</code> section of the bridge config.
+     *
+     * If the download fails part way through, the segments that were already downloaded are kept next to the
+     * destination, and calling this method again with the same arguments will resume from them. If the homeserver
+     * doesn't support Range requests this falls back to {@link #downloadMatrixFile(String, String)}.
+     * @param mxcURL The MXC URL of the file.
+     * @param path The path where the file will be saved.
+     * @throws MatrixNetworkException If there was an error while downloading the file, or the downloaded length didn't match.
+     */
+    public void downloadLargeMatrixFile(String mxcURL, String path) throws MatrixNetworkException {
+        var mediaInfo = this.bridge.getConfig().getMediaInfo();
+        var segmentSize = mediaInfo.segmentSize * 1024L * 1024L;
+
         try {
-            var uri = new URI(this.bridge.getConfig().getServerURL() + "/_matrix/media/v1/download/" + mxcURLExtracted);
+            var downloader = new RangedDownloader(this, this.getDownloadURI(mxcURL), Paths.get(path), segmentSize, mediaInfo.parallelSegments);
+
+            var length = downloader.probe();
+            if(length <= segmentSize) {
+                // Either Range requests aren't supported or the file fits in one segment anyway
+                this.downloadMatrixFile(mxcURL, path);
+                return;
+            }
 
-            FileUtils.copyURLToFile(uri.toURL(), new File(path));
-        } catch (URISyntaxException | IOException e) {
+            downloader.download();
+        } catch (URISyntaxException | InterruptedException | IOException e) {
             throw new MatrixNetworkException(e);
         }
     }
 
-    public HttpResponse<String> sendRawPOSTRequest(URI uri, String json) throws IOException, InterruptedException {
-        var request = HttpRequest.newBuilder()
-                .uri(uri)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublisher.fromString(json))
-                .timeout(Duration.ofSeconds(20))
-                .build();
+    /**
+     * Gets a thumbnail of an image from the Matrix Content Repository, letting the homeserver do the resizing.
+     *
+     * The requested size is snapped to one of the {@link ThumbnailMethod}'s size buckets, and the thumbnail
+     * is cached on disk in the directory set in the <code>media</code> section of the bridge config, so it is
+     * only downloaded once. Once the cache grows past its configured size the least recently used thumbnails
+     * are deleted. If multiple threads request the same thumbnail at once, only one request is made.
+     * @param mxcURL The MXC URL of the image.
+     * @param width The desired width.
+     * @param height The desired height.
+     * @param method How the image should be fit into the size.
+     * @return The path to the cached thumbnail file.
+     * @throws MatrixNetworkException If there was an error while downloading the thumbnail.
+     * @see ThumbnailMethod#snap(int, int)
+     */
+    public String getThumbnail(String mxcURL, int width, int height, ThumbnailMethod method) throws MatrixNetworkException {
+        if(width <= 0 || height <= 0) throw new IllegalArgumentException("Thumbnail width and height must be positive!");
+
+        var mxcURLExtracted = mxcURL.replaceAll("mxc://", "");
+        var size = method.snap(width, height);
+
+        var cached = this.thumbnailCache.getPath(mxcURL, size, method);
+        if(this.thumbnailCache.get(cached)) return cached.toString();
+
+        try {
+            return this.thumbnailFetches.execute(cached.toString(), () -> {
+                if(this.thumbnailCache.get(cached)) return cached.toString(); // Another thread finished downloading it just before us
+
+                try {
+                    var uri = new URI(this.bridge.getConfig().getServerURL() + "/_matrix/media/r0/thumbnail/" + mxcURLExtracted
+                            + "?width=" + size[0] + "&height=" + size[1] + "&method=" + method.getName());
+                    var response = this.send(new MatrixHttpRequest("GET", uri, Duration.ofSeconds(20)));
+                    if(response.statusCode() != 200) {
+                        throw new MatrixNetworkException("Non-200 status code while getting thumbnail: " + response.statusCode());
+                    }
+
+                    this.thumbnailCache.put(cached, response.bodyBytes());
+                    return cached.toString();
+                } catch (URISyntaxException | IOException | InterruptedException e) {
+                    throw new MatrixNetworkException(e);
+                }
+            });
+        } catch (InterruptedException e) {
+            throw new MatrixNetworkException(e);
+        }
+    }
+
+    private URI getDownloadURI(String mxcURL) throws URISyntaxException {
+        return new URI(this.bridge.getConfig().getServerURL() + "/_matrix/media/v1/download/" + mxcURL.replaceAll("mxc://", ""));
+    }
+
+    public MatrixHttpResponse sendRawPOSTRequest(URI uri, String json) throws IOException, InterruptedException {
+        return this.send(MatrixHttpRequest.json("POST", uri, json, Duration.ofSeconds(20)));
+    }
+
+    public MatrixHttpResponse sendRawPOSTRequest(URI uri) throws IOException, InterruptedException {
+        return this.sendRawPOSTRequest(uri, "{}");
+    }
+
+    public MatrixHttpResponse sendRawPUTRequest(URI uri, String json) throws IOException, InterruptedException {
+        var response = this.send(MatrixHttpRequest.json("PUT", uri, json, Duration.ofSeconds(20)));
+
+        // Message and state events are sent with PUT, remember their IDs so their echoes can be recognized
+        var path = uri.getRawPath();
+        if(response.statusCode() == 200 && (path.contains("/send/") || path.contains("/state/"))) {
+            try {
+                var data = fromJson(response, EventResponseData.class);
+                if(data != null && data.eventId != null) this.sentEvents.add(data.eventId);
+            } catch (JsonParseException e) {
+                this.logger.debug("Failed to read event ID from response to " + path);
+            }
+        }
+        return response;
+    }
+
+    public MatrixHttpResponse sendRawGETRequest(URI uri, String json) throws IOException, InterruptedException {
+        return this.send(MatrixHttpRequest.json("GET", uri, json, Duration.ofSeconds(20)));
+    }
+
+    /**
+     * Sends a GET request to the homeserver. If an identical GET request (same URI, including the
+     * user it is sent as) is already in flight, no new request is sent and its response is shared instead.
+     * @param uri The full URI of the request.
+     * @return The response.
+     * @throws IOException If there was an error while sending the request.
+     * @throws InterruptedException If the thread was interrupted while waiting for the response.
+     */
+    public MatrixHttpResponse sendRawGETRequest(URI uri) throws IOException, InterruptedException {
+        // The bridge user's URIs carry a "ts" parameter that differs on every call, so leave it out of the key
+        var key = uri.toString().replaceFirst("&ts=\\d+", "");
+        return this.getRequests.execute(key, () -> this.send(new MatrixHttpRequest("GET", uri, Duration.ofSeconds(20))));
+    }
 
-        return this.httpClient.send(request, HttpResponse.BodyHandler.asString());
+    public MatrixHttpResponse sendRawDELETERequest(URI uri) throws IOException, InterruptedException {
+        return this.send(new MatrixHttpRequest("DELETE", uri, Duration.ofSeconds(20)));
     }
 
-    public HttpResponse<String> sendRawPOSTRequest(URI uri) throws IOException, InterruptedException {
-        var request = HttpRequest.newBuilder()
-                .uri(uri)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublisher.fromString("{}"))
-                .timeout(Duration.ofSeconds(20))
-                .build();
+    // Every request to the homeserver goes through here, so it can be limited and measured
+    MatrixHttpResponse send(MatrixHttpRequest request) throws IOException, InterruptedException {
+        return this.exchange(request, null);
+    }
 
-        return this.httpClient.send(request, HttpResponse.BodyHandler.asString());
+    // Like send, but the body is written to a file as it arrives
+    MatrixHttpResponse sendToFile(MatrixHttpRequest request, Path file) throws IOException, InterruptedException {
+        return this.exchange(request, file);
     }
 
-    public HttpResponse<String> sendRawPUTRequest(URI uri, String json) throws IOException, InterruptedException {
-        var request = HttpRequest.newBuilder()
-                .uri(uri)
-                .header("Content-Type", "application/json")
-                .PUT(HttpRequest.BodyPublisher.fromString(json))
-                .timeout(Duration.ofSeconds(20))
-                .build();
+    private MatrixHttpResponse exchange(MatrixHttpRequest request, Path file) throws IOException, InterruptedException {
+        var endpoint = EndpointTemplate.of(request.method(), request.uri());
+        var bytesOut = request.body().length;
+
+        // Media is mostly already compressed, and compressing it would break Range requests
+        var media = endpoint.contains(" media/");
+        if(this.compression && !media && !request.headers().containsKey("Accept-Encoding")) {
+            request = request.withHeader("Accept-Encoding", "gzip, deflate");
+        }
+
+        // The homeserver rate limits each user on its own, so a 429 only holds back that user's requests
+        var sender = getSender(request.uri());
+        var senderRateLimiter = this.senderRateLimiters.get(sender);
+        if(senderRateLimiter != null) {
+            senderRateLimiter.acquire();
+            this.senderRateLimiters.computeIfPresent(sender, (key, limiter) -> limiter.isPaused() ? limiter : null);
+        }
 
-        return this.httpClient.send(request, HttpResponse.BodyHandler.asString());
+        this.admissionController.acquire(RequestPriority.of(endpoint), sender, bytesOut);
+        var start = System.nanoTime();
+        var dropped = false;
+        try {
+            var sample = this.networkMetrics.start(endpoint, bytesOut);
+            try {
+                var response = file == null ? this.transport.send(request) : this.transport.sendToFile(request, file);
+                var bytesIn = file == null ? response.bodyBytes().length : Files.size(file);
+                sample.success(response.statusCode(), bytesIn);
+                if(response.isCompressed()) {
+                    response = response.withDecodeListener(decompressed -> this.networkMetrics.decompressed(bytesIn, decompressed));
+                }
+
+                if(response.statusCode() == 429) this.rateLimited(sender, response);
+                dropped = response.statusCode() == 503; // Only this and timeouts say the homeserver itself is overloaded
+                return response;
+            } catch (IOException e) {
+                sample.failure();
+                dropped = e instanceof HttpTimeoutException || e instanceof SocketTimeoutException;
+                throw e;
+            } catch (InterruptedException | RuntimeException e) {
+                sample.failure();
+                throw e;
+            }
+        } finally {
+            // Media transfers take as long as their size needs, so their latency says nothing about load
+            var rtt = media ? -1 : System.nanoTime() - start;
+            this.admissionController.release(bytesOut, rtt, dropped);
+        }
     }
 
-    public HttpResponse<String> sendRawGETRequest(URI uri, String json) throws IOException, InterruptedException {
-        var request = HttpRequest.newBuilder()
-                .uri(uri)
-                .header("Content-Type", "application/json")
-                .method("GET", HttpRequest.BodyPublisher.fromString(json))
-                .timeout(Duration.ofSeconds(20))
-                .build();
+    // Holds back a user's requests for as long as the homeserver asked
+    private void rateLimited(String sender, MatrixHttpResponse response) {
+        var retryAfter = 0L;
+        try {
+            var error = fromJson(response, MatrixErrorData.class);
+            if(error != null) retryAfter = error.retryAfterMs;
+        } catch (IOException | JsonParseException e) {
+            this.logger.debug("Failed to read the retry delay from a 429 response");
+        }
 
-        return this.httpClient.send(request, HttpResponse.BodyHandler.asString());
+        this.senderRateLimiters.computeIfAbsent(sender, key -> new RateLimiter(0)).pause(retryAfter > 0 ? retryAfter : DEFAULT_RETRY_AFTER_MILLIS);
     }
 
-    public HttpResponse<String> sendRawGETRequest(URI uri) throws IOException, InterruptedException {
-        var request = HttpRequest.newBuilder()
-                .uri(uri)
-                .GET()
-                .timeout(Duration.ofSeconds(20))
-                .build();
+    // The puppet a request is sent as, or "" for the bridge user
+    private static String getSender(URI uri) {
+        var query = uri.getRawQuery();
+        if(query == null) return "";
 
-        return this.httpClient.send(request, HttpResponse.BodyHandler.asString());
+        for(var parameter : query.split("&")) {
+            if(parameter.startsWith("user_id=")) return parameter.substring("user_id=".length());
+        }
+        return "";
     }
 
-    public HttpResponse<String> sendRawDELETERequest(URI uri) throws IOException, InterruptedException {
-        var request = HttpRequest.newBuilder()
-                .uri(uri)
-                .DELETE(HttpRequest.BodyPublisher.noBody())
-                .timeout(Duration.ofSeconds(20))
-                .build();
+    /**
+     * Returns the admission controller that limits how many requests are sent to the homeserver at once.
+     * Bridge implementations can use {@link AdmissionController#isSaturated()} or a {@link BackpressureListener}
+     * to stop reading from their remote network while the homeserver can't keep up.
+     * @return The admission controller.
+     */
+    public AdmissionController getAdmissionController() {
+        return this.admissionController;
+    }
+
+    /**
+     * Returns the cache of each room's power levels. It is kept up to date from
+     * <code>m.room.power_levels</code> events and from power levels set using this client.
+     * @return The power levels cache.
+     */
+    public PowerLevelsCache getPowerLevelsCache() {
+        return this.powerLevelsCache;
+    }
+
+    // Patches are applied through one patcher per room, which is dropped again once nobody is using it
+    MatrixNetworkResult patchPowerLevels(MatrixUserClient client, String roomId, String userId, int level) throws MatrixNetworkException {
+        var patcher = this.powerLevelsPatchers.compute(roomId, (key, existing) -> (existing != null ? existing : new PowerLevelsPatcher(this, key)).retain());
+        try {
+            return patcher.patch(client, userId, level);
+        } catch (InterruptedException e) {
+            throw new MatrixNetworkException(e);
+        } finally {
+            this.powerLevelsPatchers.computeIfPresent(roomId, (key, existing) -> existing.release() ? null : existing);
+        }
+    }
+
+    /**
+     * Returns the transport that all requests to the homeserver are sent through.
+     * @return The transport.
+     * @see MatrixBridge#createTransport()
+     */
+    public MatrixTransport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Parses a JSON response body, decompressing it while it is parsed if it was compressed.
+     * @param response The response.
+     * @param type The class to parse the body into.
+     * @param <T> The type of the class.
+     * @return The parsed body.
+     * @throws IOException If the body could not be decompressed.
+     */
+    static <T> T fromJson(MatrixHttpResponse response, Class<T> type) throws IOException {
+        try(var reader = response.bodyReader()) {
+            return gson.fromJson(reader, type);
+        }
+    }
+
+    /**
+     * Checks if an event was recently sent by the bridge, either as the bridge user or as one of its puppets.
+     * Only the most recent few thousand events are remembered.
+     * @param eventId The event's ID.
+     * @return If the bridge sent the event.
+     */
+    public boolean wasSentByBridge(String eventId) {
+        return this.sentEvents.contains(eventId);
+    }
+
+    NetworkMetrics getNetworkMetrics() {
+        return this.networkMetrics;
+    }
 
-        return this.httpClient.send(request, HttpResponse.BodyHandler.asString());
+    RateLimiter getBulkRateLimiter() {
+        return this.bulkRateLimiter;
     }
 }
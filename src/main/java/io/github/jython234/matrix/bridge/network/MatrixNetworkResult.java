@@ -27,7 +27,7 @@
 package io.github.jython234.matrix.bridge.network;
 
 import io.github.jython234.matrix.bridge.network.error.MatrixErrorData;
-import jdk.incubator.http.HttpResponse;
+import io.github.jython234.matrix.bridge.network.transport.MatrixHttpResponse;
 
 /**
  * Represents the result of a network operation for Matrix.
@@ -43,7 +43,7 @@ public class MatrixNetworkResult<T> {
     /**
      * The raw HTTP response of the operation.
      */
-    public final HttpResponse<String> httpResponse;
+    public final MatrixHttpResponse httpResponse;
 
     /**
      * If the operation was not successful then this will contain
@@ -62,14 +62,14 @@ public class MatrixNetworkResult<T> {
      */
     public final T result;
 
-    public MatrixNetworkResult(boolean successful, HttpResponse<String> response, MatrixErrorData errorResponse, T result) {
+    public MatrixNetworkResult(boolean successful, MatrixHttpResponse response, MatrixErrorData errorResponse, T result) {
         this.successful = successful;
         this.httpResponse = response;
         this.error = errorResponse;
         this.result = result;
     }
 
-    public MatrixNetworkResult(boolean successful, HttpResponse<String> response, T result) {
+    public MatrixNetworkResult(boolean successful, MatrixHttpResponse response, T result) {
         this(successful, response, successful ? null : MatrixClientManager.gson.fromJson(response.body(), MatrixErrorData.class), result);
     }
 }
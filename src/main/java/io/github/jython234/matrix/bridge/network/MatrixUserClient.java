@@ -26,6 +26,7 @@
  */
 package io.github.jython234.matrix.bridge.network;
 
+import com.google.gson.JsonObject;
 import io.github.jython234.matrix.appservice.Util;
 import io.github.jython234.matrix.appservice.event.presence.Presence;
 import io.github.jython234.matrix.appservice.event.room.message.MessageContent;
@@ -43,6 +44,12 @@ import io.github.jython234.matrix.bridge.network.room.*;
 import io.github.jython234.matrix.bridge.network.typing.TypingData;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
  * A helper class that allows the bridge to control a "bot user"
@@ -52,6 +59,8 @@ import java.io.IOException;
  * @author jython234
  */
 public class MatrixUserClient {
+    private static final int MAX_BULK_ATTEMPTS = 5;
+
     private MatrixClientManager client;
     private String userId;
 
@@ -76,7 +85,7 @@ public class MatrixUserClient {
                 case 200:
                     break;
                 case 400:
-                    var error = MatrixClientManager.gson.fromJson(response.body(), MatrixErrorData.class);
+                    var error = MatrixClientManager.fromJson(response, MatrixErrorData.class);
                     switch (error.errorCode) {
                         case "M_USER_IN_USE":
                             return; // Silent ignore, as the user is already registered
@@ -118,7 +127,8 @@ public class MatrixUserClient {
      * @param duration If the user is typing, then this is how long the user should show as typing. If <code>typing</code> is false
      *                 then this doesn't matter.
      * @return A {@link MatrixNetworkResult} object containing information about the results of the request, such as failure or success.
-     * @throws MatrixNetworkException If there was any network exception while processing the request
+     * @throws MatrixNetworkException If there was any network exception while processing the request, or the request was
+     *                                dropped because the homeserver can't keep up (see {@link AdmissionController})
      */
     public MatrixNetworkResult setTyping(String roomId, boolean typing, int duration) throws MatrixNetworkException {
         if(duration < 0) throw new IllegalArgumentException("Duration must be positive!");
@@ -150,7 +160,8 @@ public class MatrixUserClient {
      * @param presence The user's presence state.
      * @param statusMessage A status message accompanying the presence state, for example: "Idle" or "Working Remotely"
      * @return A {@link MatrixNetworkResult} object containing information about the results of the request, such as failure or success.
-     * @throws MatrixNetworkException If there was any network exception while processing the request
+     * @throws MatrixNetworkException If there was any network exception while processing the request, or the request was
+     *                                dropped because the homeserver can't keep up (see {@link AdmissionController})
      */
     public MatrixNetworkResult setPresence(Presence presence, String statusMessage) throws MatrixNetworkException {
         var uri = this.client.getURI("presence/" + this.userId + "/status", this.userId);
@@ -184,7 +195,7 @@ public class MatrixUserClient {
             var response = this.client.sendRawGETRequest(uri);
             switch (response.statusCode()) {
                 case 200:
-                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.gson.fromJson(response.body(), RetrievedPresenceData.class));
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, RetrievedPresenceData.class));
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
             }
@@ -258,7 +269,7 @@ public class MatrixUserClient {
             switch (response.statusCode()) {
                 case 200:
                     // DisplaynameData is the same format as getting  the displayname
-                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.gson.fromJson(response.body(), DisplaynameData.class).displayName);
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, DisplaynameData.class).displayName);
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
             }
@@ -279,7 +290,7 @@ public class MatrixUserClient {
             var response = this.client.sendRawGETRequest(uri);
             switch (response.statusCode()) {
                 case 200:
-                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.gson.fromJson(response.body(), DisplaynameData.class).displayName);
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, DisplaynameData.class).displayName);
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
             }
@@ -301,7 +312,7 @@ public class MatrixUserClient {
             switch (response.statusCode()) {
                 case 200:
                     // AvatarURLData is the same format as getting the avatar URL
-                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.gson.fromJson(response.body(), AvatarURLData.class).avatarURL);
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, AvatarURLData.class).avatarURL);
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
             }
@@ -322,7 +333,7 @@ public class MatrixUserClient {
             var response = this.client.sendRawGETRequest(uri);
             switch (response.statusCode()) {
                 case 200:
-                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.gson.fromJson(response.body(), AvatarURLData.class).avatarURL);
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, AvatarURLData.class).avatarURL);
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
             }
@@ -393,6 +404,36 @@ public class MatrixUserClient {
         return sendMessage(roomId, msg);
     }
 
+    /**
+     * Starts building a new room. The room's name, topic, alias, power levels and other initial
+     * state are all sent in a single request when {@link CreateRoomBuilder#create()} is called.
+     * This user will be the room's creator.
+     * @return A new {@link CreateRoomBuilder}
+     */
+    public CreateRoomBuilder createRoom() {
+        return new CreateRoomBuilder(this);
+    }
+
+    MatrixNetworkResult<String> createRoom(CreateRoomData data) throws MatrixNetworkException {
+        var uri = this.client.getURI("createRoom", this.userId);
+        try {
+            var response = this.client.sendRawPOSTRequest(uri, MatrixClientManager.gson.toJson(data));
+            switch (response.statusCode()) {
+                case 200:
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, CreateRoomResponseData.class).roomId);
+                case 400: // Invalid initial state or alias already in use
+                default:
+                    return new MatrixNetworkResult<>(false, response, null);
+            }
+        } catch(IOException | InterruptedException e) {
+            throw new MatrixNetworkException(e);
+        }
+    }
+
+    MatrixClientManager getManager() {
+        return this.client;
+    }
+
     /**
      * Invites another user to a room. You must be in the room to invite someone to it.
      * @param roomId The full room ID (no aliases) of the room that the user will be invited to.
@@ -513,6 +554,98 @@ public class MatrixUserClient {
         return this.kickOrBan(roomId, userId, reason, false);
     }
 
+    /**
+     * Invites a list of users to a room. The invites are sent concurrently, limited by the
+     * <code>network.bulkConcurrency</code> and <code>network.bulkRequestsPerSecond</code> config values.
+     * Requests that are rate limited by the server are retried.
+     * @param roomId The full room ID (no aliases) of the room that the users will be invited to.
+     * @param userIds The full User IDs of the users to be invited.
+     * @return A map of each user ID to the {@link BulkMembershipResult} of their invite, in the same order as <code>userIds</code>.
+     * @throws InterruptedException If the thread was interrupted while waiting for the requests to finish.
+     * @see #invite(String, String)
+     */
+    public Map<String, BulkMembershipResult> inviteAll(String roomId, Collection<String> userIds) throws InterruptedException {
+        return this.bulk(userIds, userId -> this.invite(roomId, userId));
+    }
+
+    /**
+     * Kicks a list of users from a room. The kicks are sent concurrently, limited by the
+     * <code>network.bulkConcurrency</code> and <code>network.bulkRequestsPerSecond</code> config values.
+     * Requests that are rate limited by the server are retried.
+     * @param roomId The full room ID of the room.
+     * @param userIds The full user IDs of the users to be kicked.
+     * @param reason A reason for the kicks.
+     * @return A map of each user ID to the {@link BulkMembershipResult} of their kick, in the same order as <code>userIds</code>.
+     * @throws InterruptedException If the thread was interrupted while waiting for the requests to finish.
+     * @see #kick(String, String, String)
+     */
+    public Map<String, BulkMembershipResult> kickAll(String roomId, Collection<String> userIds, String reason) throws InterruptedException {
+        return this.bulk(userIds, userId -> this.kickOrBan(roomId, userId, reason, true));
+    }
+
+    /**
+     * Bans a list of users from a room. The bans are sent concurrently, limited by the
+     * <code>network.bulkConcurrency</code> and <code>network.bulkRequestsPerSecond</code> config values.
+     * Requests that are rate limited by the server are retried.
+     * @param roomId The full room ID of the room.
+     * @param userIds The full user IDs of the users to be banned.
+     * @param reason A reason for the bans.
+     * @return A map of each user ID to the {@link BulkMembershipResult} of their ban, in the same order as <code>userIds</code>.
+     * @throws InterruptedException If the thread was interrupted while waiting for the requests to finish.
+     * @see #ban(String, String, String)
+     */
+    public Map<String, BulkMembershipResult> banAll(String roomId, Collection<String> userIds, String reason) throws InterruptedException {
+        return this.bulk(userIds, userId -> this.kickOrBan(roomId, userId, reason, false));
+    }
+
+    private interface MembershipOperation {
+        MatrixNetworkResult apply(String userId) throws MatrixNetworkException;
+    }
+
+    // Internal method that runs a membership operation for every user with bounded parallelism
+    private Map<String, BulkMembershipResult> bulk(Collection<String> userIds, MembershipOperation operation) throws InterruptedException {
+        var results = new LinkedHashMap<String, BulkMembershipResult>();
+        if(userIds.isEmpty()) return results;
+
+        var tasks = new ArrayList<Callable<BulkMembershipResult>>();
+        for(var userId : userIds) {
+            tasks.add(() -> this.bulkSingle(userId, operation));
+        }
+
+        var parallelism = this.client.bridge.getConfig().getNetworkInfo().bulkConcurrency;
+        try {
+            // runAll() rather than supplyAll(), this may be called from a handler that is itself running on the pool
+            for(var future : this.client.bridge.getExecutor().runAll(tasks, parallelism)) {
+                var result = future.get();
+                results.put(result.userId, result);
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause()); // bulkSingle() catches everything it expects
+        }
+
+        return results;
+    }
+
+    private BulkMembershipResult bulkSingle(String userId, MembershipOperation operation) throws InterruptedException {
+        for(int attempt = 1; ; attempt++) {
+            this.client.getBulkRateLimiter().acquire();
+
+            MatrixNetworkResult result;
+            try {
+                result = operation.apply(userId);
+            } catch (MatrixNetworkException e) {
+                return new BulkMembershipResult(userId, null, e);
+            }
+
+            if(result.successful || result.httpResponse.statusCode() != 429 || attempt >= MAX_BULK_ATTEMPTS) {
+                return new BulkMembershipResult(userId, result, null);
+            }
+
+            // The client manager holds back this user's next request for as long as the homeserver asked
+            this.client.getNetworkMetrics().retried();
+        }
+    }
+
     /**
      * Gets a map of members of a specific room.
      * @param roomId The full room ID of the room.
@@ -527,7 +660,7 @@ public class MatrixUserClient {
             var response = this.client.sendRawGETRequest(uri);
             switch (response.statusCode()) {
                 case 200:
-                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.gson.fromJson(response.body(), JoinedMembersData.class));
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, JoinedMembersData.class));
                 case 403: // Not a member of the room
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
@@ -581,13 +714,79 @@ public class MatrixUserClient {
         }
     }
 
+    /**
+     * Sets a room's power levels, replacing all of them. The user must have permission to do so, or else the request will fail.
+     * To change a single user's level use {@link #patchPowerLevels(String, String, int)} instead.
+     * @param roomId The matrix room ID of the room.
+     * @param powerLevels The room's new power levels.
+     * @return A {@link MatrixNetworkResult} object containing information about the results of the request, such as failure or success.
+     * @throws MatrixNetworkException If there was an error while performing the network request
+     */
     public MatrixNetworkResult setRoomPowerLevels(String roomId, PowerLevelsData powerLevels) throws MatrixNetworkException {
-        var uri = this.client.getURI("rooms/" + roomId + "/state/m.room.power_levels", this.userId);
+        return this.setRoomPowerLevelsContent(roomId, MatrixClientManager.gson.toJsonTree(powerLevels).getAsJsonObject());
+    }
+
+    /**
+     * Gets a room's power levels. If they are cached they are returned without a request,
+     * in which case {@link MatrixNetworkResult#httpResponse} is <code>null</code>.
+     * @param roomId The matrix room ID of the room.
+     * @return A {@link MatrixNetworkResult} object containing information about the results of the request, such as failure or success.
+     *         The power levels are stored in {@link MatrixNetworkResult#result}, and may be freely modified.
+     * @throws MatrixNetworkException If there was an error while performing the network request
+     * @see PowerLevelsCache
+     */
+    public MatrixNetworkResult<PowerLevelsData> getRoomPowerLevels(String roomId) throws MatrixNetworkException {
+        var content = this.getRoomPowerLevelsContent(roomId);
+        var powerLevels = content.successful ? MatrixClientManager.gson.fromJson(content.result, PowerLevelsData.class) : null;
+        return new MatrixNetworkResult<>(content.successful, content.httpResponse, content.error, powerLevels);
+    }
+
+    /**
+     * Changes a single user's power level in a room, keeping the rest of the room's power levels.
+     * The change is merged into the cached power levels, and changes made at the same time for the same
+     * room are combined into a single request.
+     * @param roomId The matrix room ID of the room.
+     * @param userId The full user ID of the user whose power level is changed.
+     * @param level The user's new power level.
+     * @return A {@link MatrixNetworkResult} object containing information about the results of the request, such as failure or success.
+     *         If the change was combined with others, they all share the same result.
+     * @throws MatrixNetworkException If there was an error while performing the network request
+     */
+    public MatrixNetworkResult patchPowerLevels(String roomId, String userId, int level) throws MatrixNetworkException {
+        return this.client.patchPowerLevels(this, roomId, userId, level);
+    }
+
+    // The raw content is used internally so keys PowerLevelsData doesn't know about survive a patch
+    MatrixNetworkResult setRoomPowerLevelsContent(String roomId, JsonObject content) throws MatrixNetworkException {
+        var uri = this.client.getURI("rooms/" + roomId + "/state/" + PowerLevelsCache.EVENT_TYPE, this.userId);
         try {
-            var response = this.client.sendRawPUTRequest(uri, MatrixClientManager.gson.toJson(powerLevels));
+            var response = this.client.sendRawPUTRequest(uri, MatrixClientManager.gson.toJson(content));
             switch (response.statusCode()) {
                 case 200:
+                    this.client.getPowerLevelsCache().putContent(roomId, content);
                     return new MatrixNetworkResult<>(true, response, null);
+                default:
+                    this.client.getPowerLevelsCache().invalidate(roomId); // Our copy might be out of date
+                    return new MatrixNetworkResult<>(false, response, null);
+            }
+        } catch(IOException | InterruptedException e) {
+            throw new MatrixNetworkException(e);
+        }
+    }
+
+    MatrixNetworkResult<JsonObject> getRoomPowerLevelsContent(String roomId) throws MatrixNetworkException {
+        var cached = this.client.getPowerLevelsCache().getContent(roomId);
+        if(cached != null) return new MatrixNetworkResult<>(true, null, cached);
+
+        var uri = this.client.getURI("rooms/" + roomId + "/state/" + PowerLevelsCache.EVENT_TYPE, this.userId);
+        try {
+            var response = this.client.sendRawGETRequest(uri);
+            switch (response.statusCode()) {
+                case 200:
+                    var content = MatrixClientManager.fromJson(response, JsonObject.class);
+                    this.client.getPowerLevelsCache().putContent(roomId, content);
+                    return new MatrixNetworkResult<>(true, response, content);
+                case 403: // Not a member of the room
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
             }
@@ -652,7 +851,7 @@ public class MatrixUserClient {
             var response = this.client.sendRawGETRequest(uri);
             switch (response.statusCode()) {
                 case 200:
-                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.gson.fromJson(response.body(), RoomAliasInfo.class));
+                    return new MatrixNetworkResult<>(true, response, MatrixClientManager.fromJson(response, RoomAliasInfo.class));
                 case 404: // Not found
                 default:
                     return new MatrixNetworkResult<>(false, response, null);
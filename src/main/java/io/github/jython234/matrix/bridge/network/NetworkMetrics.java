@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import io.github.jython234.matrix.bridge.metrics.Counter;
+import io.github.jython234.matrix.bridge.metrics.Histogram;
+import io.github.jython234.matrix.bridge.metrics.MetricsRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the network layer's metrics into the bridge's {@link MetricsRegistry}:
+ * <ul>
+ *     <li><code>http.latency[endpoint]</code>: request latency in microseconds</li>
+ *     <li><code>http.responses[endpoint status]</code>: responses by status code</li>
+ *     <li><code>http.errors[endpoint]</code>: requests that failed without a response</li>
+ *     <li><code>http.bytes.sent</code>, <code>http.bytes.received</code>: body bytes in and out</li>
+ *     <li><code>http.inflight</code>: requests currently waiting for a response</li>
+ *     <li><code>http.throttled</code>: responses with status 429</li>
+ *     <li><code>http.retries</code>: requests that were retried after a failure</li>
+ *     <li><code>http.coalesced</code>: requests that were saved by merging them into another request</li>
+ *     <li><code>http.bytes.compressed</code>, <code>http.bytes.decompressed</code>: compressed response bodies before and after decompression</li>
+ *     <li><code>http.compression.ratio</code>: size of each compressed response body, in percent of its decompressed size</li>
+ * </ul>
+ *
+ * @author jython234
+ */
+class NetworkMetrics {
+    private final MetricsRegistry registry;
+
+    private final AtomicLong inFlight = new AtomicLong();
+    private final Counter bytesSent;
+    private final Counter bytesReceived;
+    private final Counter throttled;
+    private final Counter retries;
+    private final Counter coalesced;
+    private final Counter bytesCompressed;
+    private final Counter bytesDecompressed;
+    private final Histogram compressionRatio;
+
+    NetworkMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+
+        this.bytesSent = registry.counter("http.bytes.sent");
+        this.bytesReceived = registry.counter("http.bytes.received");
+        this.throttled = registry.counter("http.throttled");
+        this.retries = registry.counter("http.retries");
+        this.coalesced = registry.counter("http.coalesced");
+        this.bytesCompressed = registry.counter("http.bytes.compressed");
+        this.bytesDecompressed = registry.counter("http.bytes.decompressed");
+        this.compressionRatio = registry.histogram("http.compression.ratio");
+        registry.gauge("http.inflight", this.inFlight::get);
+    }
+
+    /**
+     * Called right before a request is sent.
+     * @param endpoint The endpoint template of the request, see {@link EndpointTemplate}.
+     * @param bytesOut The length of the request body.
+     * @return A {@link Sample} that must be completed when the request finishes.
+     */
+    Sample start(String endpoint, long bytesOut) {
+        this.inFlight.incrementAndGet();
+        this.bytesSent.add(bytesOut);
+        return new Sample(endpoint);
+    }
+
+    /**
+     * Count a request that is being retried.
+     */
+    void retried() {
+        this.retries.increment();
+    }
+
+    /**
+     * Count requests that were not sent because they were merged into another request.
+     * @param requests How many requests were saved.
+     */
+    void coalesced(long requests) {
+        this.coalesced.add(requests);
+    }
+
+    /**
+     * Record a compressed response body once it has been decompressed.
+     * @param compressedBytes The length of the body as it was received.
+     * @param decompressedBytes The length of the body after decompression.
+     */
+    void decompressed(long compressedBytes, long decompressedBytes) {
+        this.bytesCompressed.add(compressedBytes);
+        this.bytesDecompressed.add(decompressedBytes);
+        if(decompressedBytes > 0) this.compressionRatio.record(compressedBytes * 100 / decompressedBytes);
+    }
+
+    /**
+     * A single request being measured.
+     */
+    class Sample {
+        private final String endpoint;
+        private final long startTime = System.nanoTime();
+
+        private Sample(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Complete the sample with the server's response.
+         * @param statusCode The response status code.
+         * @param bytesIn The length of the response body.
+         */
+        void success(int statusCode, long bytesIn) {
+            this.finish();
+            bytesReceived.add(bytesIn);
+            registry.counter("http.responses[" + this.endpoint + " " + statusCode + "]").increment();
+            if(statusCode == 429) throttled.increment();
+        }
+
+        /**
+         * Complete the sample when the request failed without a response.
+         */
+        void failure() {
+            this.finish();
+            registry.counter("http.errors[" + this.endpoint + "]").increment();
+        }
+
+        private void finish() {
+            inFlight.decrementAndGet();
+            registry.histogram("http.latency[" + this.endpoint + "]").record((System.nanoTime() - this.startTime) / 1000);
+        }
+    }
+}
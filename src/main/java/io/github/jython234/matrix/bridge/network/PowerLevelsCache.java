@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import com.google.gson.JsonObject;
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import io.github.jython234.matrix.bridge.network.room.PowerLevelsData;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the current <code>m.room.power_levels</code> state of each room the bridge
+ * knows about. It is filled from power level events received by the appservice and from
+ * power levels the bridge fetches or sets itself.
+ *
+ * Copies are always handed out, so modifying a returned {@link PowerLevelsData} does not change the cache.
+ *
+ * @author jython234
+ * @see MatrixUserClient#patchPowerLevels(String, String, int)
+ */
+public class PowerLevelsCache {
+    /**
+     * The event type of power level events.
+     */
+    public static final String EVENT_TYPE = "m.room.power_levels";
+
+    // The raw event content, so keys PowerLevelsData doesn't know about (such as "notifications") are kept
+    private final Map<String, JsonObject> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Get a copy of a room's cached power levels.
+     * @param roomId The matrix room ID.
+     * @return A copy of the power levels, or <code>null</code> if the room's power levels are not cached.
+     */
+    public PowerLevelsData get(String roomId) {
+        var content = this.rooms.get(roomId);
+        return content != null ? MatrixClientManager.gson.fromJson(content, PowerLevelsData.class) : null;
+    }
+
+    /**
+     * Replace a room's cached power levels.
+     * @param roomId The matrix room ID.
+     * @param powerLevels The room's current power levels.
+     */
+    public void put(String roomId, PowerLevelsData powerLevels) {
+        this.rooms.put(roomId, MatrixClientManager.gson.toJsonTree(powerLevels).getAsJsonObject());
+    }
+
+    /**
+     * Remove a room's power levels from the cache, so they are fetched again the next time they are needed.
+     * @param roomId The matrix room ID.
+     */
+    public void invalidate(String roomId) {
+        this.rooms.remove(roomId);
+    }
+
+    /**
+     * Updates the cache from a <code>m.room.power_levels</code> event. Any other events are ignored.
+     * @param roomId The ID of the room the event was sent in, or <code>null</code> if it isn't known.
+     * @param event The event received by the appservice.
+     */
+    public void onEvent(String roomId, MatrixEvent event) {
+        if(roomId == null || !EVENT_TYPE.equals(event.getType())) return;
+
+        // The event classes don't expose the content in a common way, so read it from the event's JSON form
+        var content = MatrixClientManager.gson.toJsonTree(event).getAsJsonObject().get("content");
+        if(content != null && content.isJsonObject()) {
+            this.putContent(roomId, content.getAsJsonObject());
+        } else this.invalidate(roomId); // We can't read the new power levels, so make sure a stale copy isn't used
+    }
+
+    // A copy of the raw content of a room's power levels event, or null if it isn't cached
+    JsonObject getContent(String roomId) {
+        var content = this.rooms.get(roomId);
+        return content != null ? content.deepCopy() : null;
+    }
+
+    void putContent(String roomId, JsonObject content) {
+        this.rooms.put(roomId, content.deepCopy());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Applies power level patches for a single room, coalescing patches that arrive while a PUT is in
+ * progress into the next PUT (group commit). The first caller becomes the leader and keeps sending
+ * batches until no patches are pending; everyone else waits for the batch containing their patch.
+ *
+ * There is one patcher per room shared by every user, so patches from different puppets are applied one
+ * after another instead of overwriting each other. The patches in a batch are sent in one PUT per user that made them.
+ * Only the <code>users</code> map of the raw event content is changed, every other key is kept as it is.
+ *
+ * @author jython234
+ * @see MatrixClientManager#patchPowerLevels(MatrixUserClient, String, String, int)
+ */
+class PowerLevelsPatcher {
+    private final MatrixClientManager manager;
+    private final String roomId;
+
+    private List<Patch> pending = new ArrayList<>();
+    private boolean committing = false;
+
+    private int users = 0; // Only changed inside the manager's map operations, to know when the patcher can be evicted
+
+    private static class Patch {
+        final MatrixUserClient client;
+        final String userId;
+        final int level;
+        final CompletableFuture<MatrixNetworkResult> result = new CompletableFuture<>();
+
+        Patch(MatrixUserClient client, String userId, int level) {
+            this.client = client;
+            this.userId = userId;
+            this.level = level;
+        }
+    }
+
+    PowerLevelsPatcher(MatrixClientManager manager, String roomId) {
+        this.manager = manager;
+        this.roomId = roomId;
+    }
+
+    PowerLevelsPatcher retain() {
+        this.users++;
+        return this;
+    }
+
+    /**
+     * @return If nobody is using the patcher anymore.
+     */
+    boolean release() {
+        return --this.users == 0;
+    }
+
+    MatrixNetworkResult patch(MatrixUserClient client, String userId, int level) throws MatrixNetworkException, InterruptedException {
+        var patch = new Patch(client, userId, level);
+        boolean leader;
+        synchronized (this) {
+            this.pending.add(patch);
+            leader = !this.committing;
+            this.committing = true;
+        }
+
+        if(leader) this.commitAll();
+
+        try {
+            return patch.result.get();
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if(cause instanceof MatrixNetworkException) throw (MatrixNetworkException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new MatrixNetworkException((Exception) cause);
+        }
+    }
+
+    private void commitAll() {
+        while(true) {
+            List<Patch> batch;
+            synchronized (this) {
+                if(this.pending.isEmpty()) {
+                    this.committing = false;
+                    return;
+                }
+                batch = this.pending;
+                this.pending = new ArrayList<>();
+            }
+
+            // Only the latest patch for each user matters. Each PUT has to be sent by the user that asked
+            // for the patch since their permissions may differ, so the batch is split up by client.
+            var latest = new LinkedHashMap<String, Patch>();
+            for(var patch : batch) {
+                latest.remove(patch.userId);
+                latest.put(patch.userId, patch);
+            }
+            var groups = new LinkedHashMap<MatrixUserClient, List<Patch>>();
+            for(var patch : latest.values()) {
+                groups.computeIfAbsent(patch.client, key -> new ArrayList<>()).add(patch);
+            }
+
+            this.manager.getNetworkMetrics().coalesced(batch.size() - groups.size());
+            for(var group : groups.values()) {
+                try {
+                    var result = this.commit(group);
+                    group.forEach(patch -> patch.result.complete(result));
+                } catch (Exception e) {
+                    group.forEach(patch -> patch.result.completeExceptionally(e));
+                }
+            }
+
+            // Patches that were overridden share the result of the patch that replaced them
+            for(var patch : batch) {
+                var winner = latest.get(patch.userId);
+                if(winner == patch) continue;
+
+                winner.result.whenComplete((result, error) -> {
+                    if(error == null) patch.result.complete(result);
+                    else patch.result.completeExceptionally(error);
+                });
+            }
+        }
+    }
+
+    private MatrixNetworkResult commit(List<Patch> group) throws MatrixNetworkException {
+        var client = group.get(0).client;
+        var current = client.getRoomPowerLevelsContent(this.roomId);
+        if(!current.successful) return current;
+
+        var content = current.result;
+        var users = content.get("users");
+        if(users == null || !users.isJsonObject()) {
+            users = new JsonObject();
+            content.add("users", users);
+        }
+        for(var patch : group) {
+            users.getAsJsonObject().addProperty(patch.userId, patch.level);
+        }
+
+        return client.setRoomPowerLevelsContent(this.roomId, content);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import io.github.jython234.matrix.bridge.network.transport.MatrixHttpRequest;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Downloads a single large file from the media repository using parallel HTTP <code>Range</code>
+ * requests, writing each segment directly into a preallocated <code>.part</code> file.
+ *
+ * Completed segments are recorded in a small <code>.part.state</code> file next to the download, so if
+ * the download fails part way through, calling it again will only fetch the segments that are missing.
+ * Once every segment is present the length is verified and the file is moved to its final location.
+ *
+ * @author jython234
+ */
+class RangedDownloader {
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+
+    private final MatrixClientManager manager;
+    private final URI uri;
+
+    private final Path target;
+    private final Path partFile;
+    private final Path stateFile;
+
+    private final long segmentSize;
+    private final int parallelSegments;
+
+    private long length;
+    private BitSet completed;
+
+    RangedDownloader(MatrixClientManager manager, URI uri, Path target, long segmentSize, int parallelSegments) {
+        this.manager = manager;
+        this.uri = uri;
+
+        this.target = target;
+        this.partFile = target.resolveSibling(target.getFileName() + ".part");
+        this.stateFile = target.resolveSibling(target.getFileName() + ".part.state");
+
+        this.segmentSize = segmentSize;
+        this.parallelSegments = parallelSegments;
+    }
+
+    /**
+     * Asks the server for the length of the file and if it accepts Range requests.
+     * @return The length of the file, or <code>-1</code> if the server doesn't support Range requests.
+     * @throws IOException If there was an error while performing the request.
+     * @throws InterruptedException If the thread was interrupted while waiting for the response.
+     */
+    long probe() throws IOException, InterruptedException {
+        var response = this.manager.send(new MatrixHttpRequest("HEAD", this.uri, Duration.ofSeconds(20)));
+        if(response.statusCode() != 200) return -1;
+
+        var acceptRanges = response.firstHeader("Accept-Ranges").orElse("none");
+        var contentLength = response.firstHeader("Content-Length");
+        if(!acceptRanges.equalsIgnoreCase("bytes") || !contentLength.isPresent()) return -1;
+
+        this.length = Long.parseLong(contentLength.get());
+        return this.length;
+    }
+
+    /**
+     * Downloads all the missing segments of the file. {@link #probe()} must be called first.
+     * @throws IOException If a segment could not be downloaded after retrying, or the file could not be written.
+     * @throws InterruptedException If the thread was interrupted while waiting for the segments.
+     */
+    void download() throws IOException, InterruptedException {
+        var segments = (int) ((this.length + this.segmentSize - 1) / this.segmentSize);
+        this.loadState(segments);
+
+        try(var channel = FileChannel.open(this.partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if(channel.size() != this.length) {
+                // Preallocate so every segment can be written at its own offset
+                channel.write(ByteBuffer.wrap(new byte[1]), this.length - 1);
+                channel.truncate(this.length);
+            }
+
+            var tasks = new ArrayList<Callable<Void>>();
+            for(int i = 0; i < segments; i++) {
+                if(this.isCompleted(i)) continue;
+
+                final var segment = i;
+                tasks.add(() -> {
+                    this.downloadSegment(channel, segment);
+                    return null;
+                });
+            }
+
+            // Once a segment fails for good, runAll() doesn't start any more of them
+            var futures = this.manager.bridge.getExecutor().runAll(tasks, this.parallelSegments);
+            try {
+                for(var future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                var cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } catch (CancellationException e) {
+                throw new IOException("Download of " + this.target + " was cancelled", e);
+            }
+        }
+
+        if(Files.size(this.partFile) != this.length || this.completed.cardinality() != segments) {
+            throw new IOException("Downloaded file length does not match the length reported by the server!");
+        }
+
+        Files.move(this.partFile, this.target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(this.stateFile);
+    }
+
+    private void downloadSegment(FileChannel channel, int segment) throws IOException, InterruptedException {
+        var start = segment * this.segmentSize;
+        var end = Math.min(start + this.segmentSize, this.length) - 1;
+
+        var request = new MatrixHttpRequest("GET", this.uri, Collections.singletonMap("Range", "bytes=" + start + "-" + end), null, Duration.ofSeconds(60));
+
+        for(int attempt = 1; ; attempt++) {
+            try {
+                var response = this.manager.send(request);
+                if(response.statusCode() != 206) {
+                    throw new IOException("Non-206 status code while downloading segment " + segment + ": " + response.statusCode());
+                }
+
+                var body = response.bodyBytes();
+                if(body.length != end - start + 1) {
+                    throw new IOException("Segment " + segment + " was " + body.length + " bytes, expected " + (end - start + 1));
+                }
+
+                var buffer = ByteBuffer.wrap(body);
+                var position = start;
+                while(buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+
+                // The segment's bytes must be on disk before the state file says they are
+                channel.force(false);
+                this.markCompleted(segment);
+                return;
+            } catch (IOException e) {
+                if(attempt >= MAX_SEGMENT_ATTEMPTS) throw e;
+
+                this.manager.getNetworkMetrics().retried();
+                this.manager.logger.warn("Failed to download segment " + segment + " of " + this.uri.getPath() + " (attempt " + attempt + "), retrying: " + e.getMessage());
+                Thread.sleep(500L * attempt);
+            }
+        }
+    }
+
+    private synchronized boolean isCompleted(int segment) {
+        return this.completed.get(segment);
+    }
+
+    private synchronized void markCompleted(int segment) throws IOException {
+        this.completed.set(segment);
+
+        // Write to a temporary file first so a crash never leaves a corrupt state file behind
+        var tmp = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+        try(var file = new FileOutputStream(tmp.toFile());
+            var out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeLong(this.length);
+            out.writeLong(this.segmentSize);
+
+            var bits = this.completed.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, this.stateFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void loadState(int segments) throws IOException {
+        this.completed = new BitSet(segments);
+        if(!Files.exists(this.stateFile) || !Files.exists(this.partFile)) return;
+
+        try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.stateFile)))) {
+            var length = in.readLong();
+            var segmentSize = in.readLong();
+            if(length != this.length || segmentSize != this.segmentSize) {
+                // The file changed or the segment size was reconfigured, we have to start over
+                this.manager.logger.info("Discarding partial download state for " + this.target + ", it doesn't match the remote file");
+                return;
+            }
+
+            var bits = new byte[in.readInt()];
+            in.readFully(bits);
+            this.completed = BitSet.valueOf(bits);
+            this.manager.logger.info("Resuming download of " + this.target + ", " + this.completed.cardinality() + "/" + segments + " segments already present");
+        } catch (EOFException e) {
+            this.manager.logger.warn("Partial download state for " + this.target + " is truncated, starting over");
+        }
+    }
+}
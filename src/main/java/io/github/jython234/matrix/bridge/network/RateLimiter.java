@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A simple token bucket rate limiter. Tokens are refilled continuously at
+ * a fixed rate, up to a burst of one second's worth of tokens. It can also be
+ * paused for a while, for example when the homeserver asks to retry later.
+ *
+ * @author jython234
+ */
+class RateLimiter {
+    private final double permitsPerNano;
+    private final double maxPermits;
+
+    private double permits;
+    private long lastRefill;
+    private volatile long pausedUntil;
+
+    /**
+     * Creates a new rate limiter.
+     * @param permitsPerSecond How many permits are handed out per second. If this is 0 or less then
+     *                         {@link #acquire()} never blocks.
+     */
+    RateLimiter(int permitsPerSecond) {
+        this.permitsPerNano = permitsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.maxPermits = Math.max(1, permitsPerSecond);
+        this.permits = this.maxPermits;
+        this.lastRefill = System.nanoTime();
+        this.pausedUntil = this.lastRefill;
+    }
+
+    /**
+     * Takes a single permit, blocking until one is available.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    void acquire() throws InterruptedException {
+        var pause = this.pausedUntil - System.nanoTime();
+        if(pause > 0) TimeUnit.NANOSECONDS.sleep(pause);
+
+        if(this.permitsPerNano <= 0) return;
+
+        long wait;
+        synchronized (this) {
+            var now = System.nanoTime();
+            this.permits = Math.min(this.maxPermits, this.permits + (now - this.lastRefill) * this.permitsPerNano);
+            this.lastRefill = now;
+
+            // Reserve the permit now, even if it goes negative, so waiting threads queue up fairly
+            this.permits -= 1;
+            wait = this.permits >= 0 ? 0 : (long) Math.ceil(-this.permits / this.permitsPerNano);
+        }
+
+        if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Makes {@link #acquire()} block until some time has passed, even if there are permits left.
+     * Pausing again while already paused only extends the pause.
+     * @param millis How long to pause for, in milliseconds.
+     */
+    synchronized void pause(long millis) {
+        var until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if(until - this.pausedUntil > 0) this.pausedUntil = until;
+    }
+
+    /**
+     * @return If {@link #acquire()} is currently blocking because of {@link #pause(long)}.
+     */
+    boolean isPaused() {
+        return this.pausedUntil - System.nanoTime() > 0;
+    }
+}
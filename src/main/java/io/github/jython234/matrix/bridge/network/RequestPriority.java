@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+/**
+ * The priority lanes requests to the homeserver are sorted into by the {@link AdmissionController}.
+ * Waiting requests in a higher lane are always sent first, and each lane may only use part of the
+ * in-flight capacity, so there is always room left for the lanes above it.
+ *
+ * @author jython234
+ */
+public enum RequestPriority {
+    /**
+     * Sending messages and other room events.
+     */
+    MESSAGE(1.0),
+    /**
+     * Membership changes, room state, room creation and everything not in another lane.
+     */
+    STATE(0.9),
+    /**
+     * Profile changes and media uploads and downloads.
+     */
+    PROFILE(0.75),
+    /**
+     * Typing notifications, presence and read receipts. These are dropped while the
+     * {@link AdmissionController} is saturated.
+     */
+    EPHEMERAL(0.5);
+
+    private final double capacityShare;
+
+    RequestPriority(double capacityShare) {
+        this.capacityShare = capacityShare;
+    }
+
+    /**
+     * Get the share of the in-flight request limit this lane may use.
+     * @return A fraction between 0 and 1.
+     */
+    public double getCapacityShare() {
+        return this.capacityShare;
+    }
+
+    /**
+     * Sorts a request into its lane.
+     * @param endpoint The request's endpoint template, as created by {@link EndpointTemplate}.
+     * @return The request's lane.
+     */
+    static RequestPriority of(String endpoint) {
+        if(endpoint.contains("/send/") || endpoint.contains("/redact/")) return MESSAGE;
+        if(endpoint.contains("/typing/") || endpoint.contains("/receipt/") || endpoint.contains("/read_markers")
+                || endpoint.contains(" presence/")) return EPHEMERAL;
+        if(endpoint.contains(" profile/") || endpoint.contains(" media/")) return PROFILE;
+        return STATE;
+    }
+}
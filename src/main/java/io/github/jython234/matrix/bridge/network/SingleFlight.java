@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller for a key runs the
+ * loader, and every caller that arrives while it is still running waits for and shares its result
+ * (or its exception) instead of starting a second call.
+ *
+ * Nothing is cached: once the loader finishes, the next call for that key will run it again.
+ *
+ * @param <K> The key type.
+ * @param <V> The result type.
+ * @author jython234
+ */
+class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onShared;
+
+    SingleFlight() {
+        this(() -> {});
+    }
+
+    /**
+     * @param onShared Called every time a caller shares the result of a call that was already in flight.
+     */
+    SingleFlight(Runnable onShared) {
+        this.onShared = onShared;
+    }
+
+    /**
+     * Loads a value, possibly throwing a checked exception.
+     */
+    @FunctionalInterface
+    interface Loader<V, E extends Exception> {
+        V load() throws E, InterruptedException;
+    }
+
+    /**
+     * Runs the loader, or waits for the loader that is already running for this key.
+     * @param key The key identifying the call.
+     * @param loader The loader to run if no call for the key is in flight.
+     * @param <E> The checked exception the loader may throw.
+     * @return The result of the loader.
+     * @throws E If the loader threw an exception.
+     * @throws InterruptedException If the thread was interrupted while running the loader or waiting for another caller's loader.
+     */
+    @SuppressWarnings("unchecked")
+    <E extends Exception> V execute(K key, Loader<V, E> loader) throws E, InterruptedException {
+        var future = new CompletableFuture<V>();
+        CompletableFuture<V> existing;
+
+        while((existing = this.inFlight.putIfAbsent(key, future)) != null) {
+            this.onShared.run();
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                var cause = e.getCause();
+                // The leader's thread was interrupted, not ours, so try again and run the loader ourselves if needed
+                if(cause instanceof InterruptedException) continue;
+                if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if(cause instanceof Error) throw (Error) cause;
+                throw (E) cause;
+            }
+        }
+
+        try {
+            var value = loader.load();
+            future.complete(value);
+            return value;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            this.inFlight.remove(key, future);
+        }
+    }
+}
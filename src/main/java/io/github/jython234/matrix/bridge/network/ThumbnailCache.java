@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import io.github.jython234.matrix.bridge.network.media.ThumbnailMethod;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The on-disk cache of downloaded thumbnails.
+ *
+ * Each thumbnail is stored in a file named after the SHA-256 hash of its MXC URL, so different URLs
+ * never share a file. A file's modification time is updated whenever it is used, and once the cache
+ * grows past its size limit the least recently used files are deleted until it is back under 90% of it.
+ *
+ * @author jython234
+ */
+class ThumbnailCache {
+    private static final String SUFFIX = ".thumbnail";
+
+    private final Path directory;
+    private final long maxSize;
+    private final Logger logger;
+
+    private long size = -1; // Not known until the directory is first scanned
+
+    /**
+     * @param directory The directory the thumbnails are stored in.
+     * @param maxSize The maximum total size of the thumbnails in bytes, or <code>0</code> for no limit.
+     * @param logger The logger to report failures to.
+     */
+    ThumbnailCache(Path directory, long maxSize, Logger logger) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.logger = logger;
+    }
+
+    /**
+     * Gets the file a thumbnail is cached in. The file might not exist yet.
+     * @param mxcURL The MXC URL of the image.
+     * @param size The snapped width and height of the thumbnail.
+     * @param method How the image was fit into the size.
+     * @return The path of the file.
+     */
+    Path getPath(String mxcURL, int[] size, ThumbnailMethod method) {
+        return this.directory.resolve(hash(mxcURL) + "_" + size[0] + "x" + size[1] + "_" + method.getName() + SUFFIX);
+    }
+
+    /**
+     * Checks if a thumbnail is cached, marking it as recently used if it is.
+     * @param cached The file returned by {@link #getPath(String, int[], ThumbnailMethod)}.
+     * @return If the file exists.
+     */
+    boolean get(Path cached) {
+        try {
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            return Files.exists(cached);
+        }
+    }
+
+    /**
+     * Stores a downloaded thumbnail in the cache, evicting old thumbnails if the cache is now too large.
+     * @param cached The file returned by {@link #getPath(String, int[], ThumbnailMethod)}.
+     * @param data The thumbnail.
+     * @throws IOException If the thumbnail could not be written.
+     */
+    void put(Path cached, byte[] data) throws IOException {
+        Files.createDirectories(this.directory);
+        var tmp = Files.createTempFile(this.directory, "thumbnail", ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        if(this.maxSize > 0) this.added(data.length);
+    }
+
+    private synchronized void added(long bytes) throws IOException {
+        if(this.size < 0) {
+            this.size = this.list().stream().mapToLong(ThumbnailCache::sizeOf).sum();
+        } else this.size += bytes;
+
+        if(this.size <= this.maxSize) return;
+
+        // Delete the least recently used thumbnails until there is some room left again
+        var files = this.list();
+        files.sort(Comparator.comparing(ThumbnailCache::lastUsed));
+        var target = this.maxSize - this.maxSize / 10;
+        for(var file : files) {
+            if(this.size <= target) break;
+
+            var length = sizeOf(file);
+            try {
+                Files.deleteIfExists(file);
+                this.size -= length;
+            } catch (IOException e) {
+                this.logger.warn("Failed to delete cached thumbnail " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private List<Path> list() throws IOException {
+        try(var stream = Files.list(this.directory)) {
+            return stream.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static FileTime lastUsed(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static String hash(String mxcURL) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(mxcURL.getBytes(StandardCharsets.UTF_8));
+            var sb = new StringBuilder(digest.length * 2);
+            for(var b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Every JVM has to support SHA-256
+        }
+    }
+}
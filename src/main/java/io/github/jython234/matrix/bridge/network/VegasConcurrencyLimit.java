@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+/**
+ * A concurrency limit based on TCP Vegas. It keeps track of the lowest latency seen (the baseline),
+ * and estimates how many requests are queueing at the homeserver from how far each request's latency
+ * is above it. While the estimated queue is small the limit grows, and once requests start queueing
+ * it shrinks. Overload responses shrink it by 10% straight away.
+ *
+ * The baseline is measured again every {@value #BASELINE_RESET_SAMPLES} requests, so the limit follows
+ * the homeserver if it gets permanently slower or faster.
+ *
+ * @author jython234
+ */
+class VegasConcurrencyLimit implements ConcurrencyLimit {
+    private static final int BASELINE_RESET_SAMPLES = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private volatile double limit;
+    private long baselineRtt = Long.MAX_VALUE;
+    private int samples = 0;
+
+    VegasConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    @Override
+    public int get() {
+        return (int) this.limit;
+    }
+
+    @Override
+    public synchronized void onSample(long rttNanos, int inFlight, boolean dropped) {
+        if(dropped) {
+            this.limit = Math.max(this.minLimit, this.limit * 0.9);
+            return;
+        }
+        if(rttNanos < 0) return;
+
+        if(++this.samples >= BASELINE_RESET_SAMPLES) {
+            this.samples = 0;
+            this.baselineRtt = rttNanos;
+        } else this.baselineRtt = Math.min(this.baselineRtt, rttNanos);
+
+        // If we aren't using most of the limit, the latency says nothing about whether it's too high
+        var limit = this.limit;
+        if(inFlight * 2 < limit) return;
+
+        var queued = limit * (1 - this.baselineRtt / (double) Math.max(1, rttNanos));
+        var log = Math.max(1, Math.log10(limit));
+        if(queued < 3 * log) {
+            this.limit = Math.min(this.maxLimit, limit + log);
+        } else if(queued > 6 * log) {
+            this.limit = Math.max(this.minLimit, limit - log);
+        }
+    }
+}
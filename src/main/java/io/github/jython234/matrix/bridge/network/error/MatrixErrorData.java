@@ -49,6 +49,13 @@ public class MatrixErrorData {
     @SerializedName("error")
     public String message;
 
+    /**
+     * If the error is <code>M_LIMIT_EXCEEDED</code>, this is how long (in milliseconds)
+     * the client should wait before trying the request again.
+     */
+    @SerializedName("retry_after_ms")
+    public long retryAfterMs;
+
     @Override
     public String toString() {
         return this.errorCode + ": " + this.message;
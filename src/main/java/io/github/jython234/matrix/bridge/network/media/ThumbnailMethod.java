@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network.media;
+
+/**
+ * How the homeserver should fit an image into the requested thumbnail size.
+ *
+ * Each method has a fixed set of size buckets matching the thumbnail sizes homeservers
+ * generate by default, and requested sizes are snapped up to one of them so
+ * that thumbnails are shared between similar requests.
+ *
+ * @author jython234
+ */
+public enum ThumbnailMethod {
+    /**
+     * Crop the image to exactly the thumbnail size.
+     */
+    CROP("crop", new int[][] {{32, 32}, {96, 96}}),
+    /**
+     * Scale the image to fit within the thumbnail size, keeping the aspect ratio.
+     */
+    SCALE("scale", new int[][] {{320, 240}, {640, 480}, {800, 600}});
+
+    private final String name;
+    private final int[][] buckets;
+
+    ThumbnailMethod(String name, int[][] buckets) {
+        this.name = name;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Snaps a requested size to the smallest bucket that is at least as large in
+     * both dimensions, or to the largest bucket if none are.
+     * @param width The requested width.
+     * @param height The requested height.
+     * @return An array containing the bucket's width and height.
+     */
+    public int[] snap(int width, int height) {
+        for(var bucket : this.buckets) {
+            if(bucket[0] >= width && bucket[1] >= height) return bucket.clone();
+        }
+        return this.buckets[this.buckets.length - 1].clone();
+    }
+
+    /**
+     * @return The name of the method used in the thumbnail API, for example "crop".
+     */
+    public String getName() {
+        return this.name;
+    }
+}
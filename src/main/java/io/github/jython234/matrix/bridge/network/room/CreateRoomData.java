@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network.room;
+
+import com.google.gson.JsonObject;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Internal GSON class used to create a room. Any <code>null</code>
+ * fields are left out of the request.
+ *
+ * @author jython234
+ */
+public class CreateRoomData {
+    /**
+     * Either "public" or "private", controls if the room is shown in the room directory.
+     */
+    public String visibility;
+    /**
+     * The local part of the room's canonical alias, for example "myroom" for "#myroom:domain".
+     */
+    @SerializedName("room_alias_name")
+    public String roomAliasName;
+    public String name;
+    public String topic;
+    /**
+     * One of "private_chat", "trusted_private_chat" or "public_chat".
+     */
+    public String preset;
+    /**
+     * User IDs to invite to the room.
+     */
+    public List<String> invite;
+    @SerializedName("initial_state")
+    public List<StateEventData> initialState = new ArrayList<>();
+    /**
+     * Only the power levels that are set here replace the server's defaults.
+     */
+    @SerializedName("power_level_content_override")
+    public JsonObject powerLevelContentOverride;
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network.transport;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link MatrixTransport} that never touches the network. Requests are answered by handlers
+ * registered with {@link #route(String, String, Handler)}, on the thread that sent them, and requests
+ * that no handler matches are answered with 404 <code>M_UNRECOGNIZED</code>.
+ *
+ * This is meant for tests, and for benchmarking the bridge without the noise of a real homeserver:
+ * <pre>
+ * transport.route("PUT", "rooms/.*&#47;send/.*", request -&gt; InMemoryTransport.json(200, "{\"event_id\":\"$1\"}"));
+ * </pre>
+ *
+ * @author jython234
+ */
+public class InMemoryTransport implements MatrixTransport {
+    private static final MatrixHttpResponse NOT_FOUND = json(404, "{\"errcode\":\"M_UNRECOGNIZED\",\"error\":\"Unrecognized request\"}");
+
+    /**
+     * Answers a request sent to an {@link InMemoryTransport}.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param request The request.
+         * @return The response to the request.
+         * @throws IOException To make the request fail as if there was a network error.
+         */
+        MatrixHttpResponse handle(MatrixHttpRequest request) throws IOException;
+    }
+
+    private static class Route {
+        private final String method;
+        private final Pattern path;
+        private final Handler handler;
+
+        private Route(String method, Pattern path, Handler handler) {
+            this.method = method;
+            this.path = path;
+            this.handler = handler;
+        }
+    }
+
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Adds a handler for every request matching a method and path. Routes are checked in the order
+     * they were added, and the first match wins.
+     * @param method The HTTP method to match, or <code>null</code> for any.
+     * @param pathRegex A regex the whole path must match. The path is the part after <code>/_matrix/client/r0/</code>
+     *                  (or after <code>/_matrix/</code> for the other APIs), without the query string.
+     * @param handler The handler.
+     * @return This transport, for chaining.
+     */
+    public InMemoryTransport route(String method, String pathRegex, Handler handler) {
+        this.routes.add(new Route(method, Pattern.compile(pathRegex), handler));
+        return this;
+    }
+
+    /**
+     * Removes all the handlers.
+     */
+    public void clearRoutes() {
+        this.routes.clear();
+    }
+
+    /**
+     * Returns how many requests this transport has been sent, including those no handler matched.
+     * @return The amount of requests.
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    @Override
+    public MatrixHttpResponse send(MatrixHttpRequest request) throws IOException {
+        this.requestCount.incrementAndGet();
+
+        var rawPath = request.uri().getRawPath();
+        var path = rawPath.startsWith("/_matrix/client/r0/") ? rawPath.substring("/_matrix/client/r0/".length())
+                : rawPath.startsWith("/_matrix/") ? rawPath.substring("/_matrix/".length()) : rawPath;
+
+        for(var route : this.routes) {
+            if((route.method == null || route.method.equals(request.method())) && route.path.matcher(path).matches()) {
+                return route.handler.handle(request);
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    @Override
+    public CompletableFuture<MatrixHttpResponse> sendAsync(MatrixHttpRequest request) {
+        try {
+            return CompletableFuture.completedFuture(this.send(request));
+        } catch (IOException e) {
+            var future = new CompletableFuture<MatrixHttpResponse>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Creates a response with a JSON body.
+     * @param statusCode The HTTP status code.
+     * @param json The JSON body.
+     * @return The response.
+     */
+    public static MatrixHttpResponse json(int statusCode, String json) {
+        var body = json.getBytes(StandardCharsets.UTF_8);
+        return new MatrixHttpResponse(statusCode, Map.of(
+                "Content-Type", Collections.singletonList("application/json"),
+                "Content-Length", Collections.singletonList(String.valueOf(body.length))), body);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network.transport;
+
+import jdk.incubator.http.HttpClient;
+import jdk.incubator.http.HttpRequest;
+import jdk.incubator.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The default {@link MatrixTransport}, which sends requests using the JDK's {@link HttpClient}.
+ *
+ * @author jython234
+ */
+public class JdkHttpTransport implements MatrixTransport {
+    private final HttpClient httpClient;
+
+    public JdkHttpTransport() {
+        this(HttpClient.newBuilder().build());
+    }
+
+    /**
+     * Creates a new transport that sends requests using an existing client, for example one
+     * configured with a different connection pool or HTTP version.
+     * @param httpClient The client.
+     */
+    public JdkHttpTransport(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public MatrixHttpResponse send(MatrixHttpRequest request) throws IOException, InterruptedException {
+        return convert(this.httpClient.send(convert(request), HttpResponse.BodyHandler.asByteArray()));
+    }
+
+    @Override
+    public MatrixHttpResponse sendToFile(MatrixHttpRequest request, Path file) throws IOException, InterruptedException {
+        var response = this.httpClient.send(convert(request), HttpResponse.BodyHandler.asFile(file));
+        return new MatrixHttpResponse(response.statusCode(), response.headers().map(), null);
+    }
+
+    @Override
+    public CompletableFuture<MatrixHttpResponse> sendAsync(MatrixHttpRequest request) {
+        return this.httpClient.sendAsync(convert(request), HttpResponse.BodyHandler.asByteArray()).thenApply(JdkHttpTransport::convert);
+    }
+
+    private static HttpRequest convert(MatrixHttpRequest request) {
+        var body = request.body().length == 0 ? HttpRequest.BodyPublisher.noBody() : HttpRequest.BodyPublisher.fromByteArray(request.body());
+        var builder = HttpRequest.newBuilder()
+                .uri(request.uri())
+                .method(request.method(), body);
+        if(request.timeout() != null) builder.timeout(request.timeout());
+
+        request.headers().forEach(builder::header);
+        return builder.build();
+    }
+
+    private static MatrixHttpResponse convert(HttpResponse<byte[]> response) {
+        return new MatrixHttpResponse(response.statusCode(), response.headers().map(), response.body());
+    }
+}
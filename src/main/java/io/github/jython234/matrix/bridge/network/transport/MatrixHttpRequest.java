@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network.transport;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An HTTP request to the homeserver, with its body already in memory.
+ *
+ * @author jython234
+ */
+public class MatrixHttpRequest {
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final String method;
+    private final URI uri;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final Duration timeout;
+
+    /**
+     * Creates a new request.
+     * @param method The HTTP method, for example "GET".
+     * @param uri The full URI.
+     * @param headers The request headers. Header names are case insensitive.
+     * @param body The body, or <code>null</code> for no body.
+     * @param timeout How long to wait for the response before failing, or <code>null</code> to wait as long as it takes.
+     */
+    public MatrixHttpRequest(String method, URI uri, Map<String, String> headers, byte[] body, Duration timeout) {
+        this.method = method;
+        this.uri = uri;
+        this.body = body == null ? NO_BODY : body;
+        this.timeout = timeout;
+
+        var map = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        map.putAll(headers);
+        this.headers = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Creates a new request without a body.
+     * @param method The HTTP method, for example "GET".
+     * @param uri The full URI.
+     * @param timeout How long to wait for the response before failing, or <code>null</code> to wait as long as it takes.
+     */
+    public MatrixHttpRequest(String method, URI uri, Duration timeout) {
+        this(method, uri, Collections.emptyMap(), null, timeout);
+    }
+
+    /**
+     * Creates a new request with a JSON body.
+     * @param method The HTTP method, for example "PUT".
+     * @param uri The full URI.
+     * @param json The JSON body.
+     * @param timeout How long to wait for the response before failing, or <code>null</code> to wait as long as it takes.
+     * @return The request.
+     */
+    public static MatrixHttpRequest json(String method, URI uri, String json, Duration timeout) {
+        return new MatrixHttpRequest(method, uri, Collections.singletonMap("Content-Type", "application/json"), json.getBytes(StandardCharsets.UTF_8), timeout);
+    }
+
+    /**
+     * Returns a copy of this request with a header added, replacing any header with the same name.
+     * @param name The header's name.
+     * @param value The header's value.
+     * @return The copy.
+     */
+    public MatrixHttpRequest withHeader(String name, String value) {
+        var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(this.headers);
+        headers.put(name, value);
+        return new MatrixHttpRequest(this.method, this.uri, headers, this.body, this.timeout);
+    }
+
+    public String method() {
+        return this.method;
+    }
+
+    public URI uri() {
+        return this.uri;
+    }
+
+    public Map<String, String> headers() {
+        return this.headers;
+    }
+
+    public byte[] body() {
+        return this.body;
+    }
+
+    public Duration timeout() {
+        return this.timeout;
+    }
+}
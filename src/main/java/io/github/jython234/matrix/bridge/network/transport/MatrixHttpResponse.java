@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network.transport;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An HTTP response from the homeserver, with its whole body in memory.
+ *
+ * If the body was compressed (<code>Content-Encoding: gzip</code> or <code>deflate</code>) it is kept compressed,
+ * and only decompressed when it is read through {@link #body()}, {@link #bodyStream()} or {@link #bodyReader()}.
+ *
+ * @author jython234
+ */
+public class MatrixHttpResponse {
+    private final int statusCode;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+    private final LongConsumer decodeListener;
+    private final AtomicBoolean decodeReported;
+
+    private String bodyString;
+
+    /**
+     * Creates a new response.
+     * @param statusCode The HTTP status code.
+     * @param headers The response headers. Header names are case insensitive.
+     * @param body The body, or <code>null</code> if it was empty.
+     */
+    public MatrixHttpResponse(int statusCode, Map<String, List<String>> headers, byte[] body) {
+        this.statusCode = statusCode;
+        this.body = body == null ? new byte[0] : body;
+        this.decodeListener = null;
+        this.decodeReported = null;
+
+        var map = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        map.putAll(headers);
+        this.headers = Collections.unmodifiableMap(map);
+    }
+
+    private MatrixHttpResponse(MatrixHttpResponse response, LongConsumer decodeListener) {
+        this.statusCode = response.statusCode;
+        this.headers = response.headers;
+        this.body = response.body;
+        this.decodeListener = decodeListener;
+        this.decodeReported = new AtomicBoolean();
+    }
+
+    /**
+     * Returns a copy of this response that reports the decompressed length of its body, the first
+     * time the body is read to the end or its stream is closed. Does nothing if the body isn't compressed.
+     * @param listener Called with the decompressed length.
+     * @return The copy.
+     */
+    public MatrixHttpResponse withDecodeListener(LongConsumer listener) {
+        return new MatrixHttpResponse(this, listener);
+    }
+
+    public int statusCode() {
+        return this.statusCode;
+    }
+
+    public Map<String, List<String>> headers() {
+        return this.headers;
+    }
+
+    /**
+     * Returns the first value of a header.
+     * @param name The header's name, case insensitive.
+     * @return The first value, or empty if the response didn't have the header.
+     */
+    public Optional<String> firstHeader(String name) {
+        var values = this.headers.get(name);
+        return values == null || values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+
+    /**
+     * Returns if the body is compressed, according to the <code>Content-Encoding</code> header.
+     * @return If the body is compressed.
+     */
+    public boolean isCompressed() {
+        var encoding = this.firstHeader("Content-Encoding").orElse("identity").trim();
+        return !encoding.isEmpty() && !encoding.equalsIgnoreCase("identity");
+    }
+
+    /**
+     * Returns the body decompressed and decoded as UTF-8, which is what the homeserver's JSON responses are in.
+     * @return The body as a String.
+     * @throws UncheckedIOException If the body could not be decompressed.
+     */
+    public synchronized String body() {
+        if(this.bodyString == null) {
+            try(var in = this.bodyStream()) {
+                this.bodyString = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return this.bodyString;
+    }
+
+    /**
+     * Returns a new stream of the body, decompressing it while it is read.
+     * @return The stream.
+     * @throws IOException If the body is compressed with an unsupported encoding, or its header is corrupt.
+     */
+    public InputStream bodyStream() throws IOException {
+        InputStream in = new ByteArrayInputStream(this.body);
+        if(!this.isCompressed()) return in;
+
+        var encoding = this.firstHeader("Content-Encoding").get().trim().toLowerCase();
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                in = new GZIPInputStream(in);
+                break;
+            case "deflate":
+                // Should be zlib wrapped, but some servers send raw deflate data
+                in = new InflaterInputStream(in, new Inflater(!isZlibHeader(this.body)));
+                break;
+            default:
+                throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+
+        return this.decodeListener == null ? in : new CountingInputStream(in);
+    }
+
+    /**
+     * Returns a new UTF-8 reader of the body, decompressing it while it is read. This lets the JSON
+     * parser read a compressed body without it ever being fully decompressed in memory.
+     * @return The reader.
+     * @throws IOException If the body is compressed with an unsupported encoding, or its header is corrupt.
+     */
+    public Reader bodyReader() throws IOException {
+        return new InputStreamReader(this.bodyStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the body exactly as it was received, so still compressed if it was.
+     * @return The raw body.
+     * @see #isCompressed()
+     */
+    public byte[] bodyBytes() {
+        return this.body;
+    }
+
+    private static boolean isZlibHeader(byte[] data) {
+        return data.length >= 2 && (data[0] & 0x0F) == 8 && (((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) % 31 == 0;
+    }
+
+    // Counts the decompressed bytes and reports them once, at the end of the stream
+    private class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+            if(b < 0) this.report();
+            else this.count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var read = super.read(b, off, len);
+            if(read < 0) this.report();
+            else this.count += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!decodeReported.get()) {
+                // The JSON parser stops right after the value, read whatever is left so the count is complete
+                var buffer = new byte[1024];
+                while(this.read(buffer, 0, buffer.length) >= 0);
+            }
+            super.close();
+        }
+
+        private void report() {
+            if(decodeReported.compareAndSet(false, true)) decodeListener.accept(this.count);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network.transport;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Sends HTTP requests to the homeserver. Every request the bridge makes goes through
+ * its {@link io.github.jython234.matrix.bridge.network.MatrixClientManager}, which limits and measures it
+ * and then hands it to a transport, so the transport only has to deal with the HTTP itself.
+ *
+ * The default is {@link JdkHttpTransport}. Override {@link io.github.jython234.matrix.bridge.MatrixBridge#createTransport()}
+ * to use a different HTTP stack, or an {@link InMemoryTransport} for tests and benchmarks.
+ *
+ * Implementations must be safe to use from multiple threads at once.
+ *
+ * @author jython234
+ */
+public interface MatrixTransport {
+    /**
+     * Sends a request and waits for the whole response.
+     * @param request The request.
+     * @return The response, whatever its status code.
+     * @throws IOException If the request could not be sent or the response could not be read, including timeouts.
+     * @throws InterruptedException If the thread was interrupted while waiting for the response.
+     */
+    MatrixHttpResponse send(MatrixHttpRequest request) throws IOException, InterruptedException;
+
+    /**
+     * Sends a request and writes the response's body to a file as it arrives, instead of keeping it in memory.
+     * This is used for media downloads, which can be far larger than the heap. The body is written whatever the status code.
+     *
+     * By default this calls {@link #send(MatrixHttpRequest)} and writes the body once all of it has arrived,
+     * implementations that can stream the body should override it.
+     * @param request The request.
+     * @param file The file to write the body to. It is created if it doesn't exist, and must be empty if it does.
+     * @return The response, without its body.
+     * @throws IOException If the request could not be sent or the body could not be written, including timeouts.
+     * @throws InterruptedException If the thread was interrupted while waiting for the response.
+     */
+    default MatrixHttpResponse sendToFile(MatrixHttpRequest request, Path file) throws IOException, InterruptedException {
+        var response = this.send(request);
+        try(var in = response.bodyStream()) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new MatrixHttpResponse(response.statusCode(), response.headers(), null);
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     *
+     * By default this calls {@link #send(MatrixHttpRequest)} on the common pool, implementations
+     * that can send requests asynchronously should override it.
+     * @param request The request.
+     * @return A future completed with the response, or exceptionally with the exception {@link #send(MatrixHttpRequest)} would have thrown.
+     */
+    default CompletableFuture<MatrixHttpResponse> sendAsync(MatrixHttpRequest request) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.send(request);
+            } catch (IOException | InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+}
@@ -49,8 +49,10 @@ module matrixjava.bridge {
     requires spring.boot.autoconfigure;
 
     exports io.github.jython234.matrix.bridge;
+    exports io.github.jython234.matrix.bridge.concurrent;
     exports io.github.jython234.matrix.bridge.configuration;
     exports io.github.jython234.matrix.bridge.db;
+    exports io.github.jython234.matrix.bridge.metrics;
     exports io.github.jython234.matrix.bridge.network;
     exports io.github.jython234.matrix.bridge.network.registration;
     exports io.github.jython234.matrix.bridge.network.profile;
@@ -60,4 +62,5 @@ module matrixjava.bridge {
     exports io.github.jython234.matrix.bridge.network.media;
     exports io.github.jython234.matrix.bridge.network.typing;
     exports io.github.jython234.matrix.bridge.network.presence;
+    exports io.github.jython234.matrix.bridge.network.transport;
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.bridge.configuration.BridgeConfig;
+import io.github.jython234.matrix.bridge.db.leveldb.LevelDBDatabaseImpl;
+import org.apache.commons.io.FileUtils;
+import org.iq80.leveldb.CompressionType;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Checks which event IDs the deduplicator remembers, and that they survive a restart.
+/// This lives in the bridge package because the class is package-private.
+class EventDeduplicatorTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Test
+    @DisplayName("The oldest IDs are forgotten first, and IDs expire after the window")
+    void testEviction() throws Exception {
+        var deduplicator = new EventDeduplicator(3, HOUR, null, Runnable::run, LoggerFactory.getLogger("EventDeduplicatorTest"));
+        for(var eventId : new String[] {"$a", "$b", "$c", "$d"}) {
+            assertFalse(deduplicator.isDuplicate(eventId));
+        }
+
+        // Seeing an ID again doesn't make it newer, so $b is the oldest once $a is back
+        assertTrue(deduplicator.isDuplicate("$d"));
+        assertTrue(deduplicator.isDuplicate("$c"));
+        assertFalse(deduplicator.isDuplicate("$a"));
+        assertTrue(deduplicator.isDuplicate("$c"));
+        assertFalse(deduplicator.isDuplicate("$b"));
+        assertFalse(deduplicator.isDuplicate(null));
+
+        var expiring = new EventDeduplicator(10, 50, null, Runnable::run, LoggerFactory.getLogger("EventDeduplicatorTest"));
+        assertFalse(expiring.isDuplicate("$e"));
+        assertTrue(expiring.isDuplicate("$e"));
+        Thread.sleep(100);
+        assertFalse(expiring.isDuplicate("$e"));
+    }
+
+    @Test
+    @DisplayName("An event that failed to be processed is handled when the homeserver sends it again")
+    void testRedelivery() {
+        var deduplicator = new EventDeduplicator(10, HOUR, null, Runnable::run, LoggerFactory.getLogger("EventDeduplicatorTest"));
+        assertFalse(deduplicator.isDuplicate("$a"));
+        assertFalse(deduplicator.isDuplicate("$b"));
+
+        deduplicator.forget("$b"); // The transaction failed after $a was queued
+        assertTrue(deduplicator.isDuplicate("$a"));
+        assertFalse(deduplicator.isDuplicate("$b"));
+        assertTrue(deduplicator.isDuplicate("$b"));
+    }
+
+    @Test
+    @DisplayName("IDs are saved on the executor and loaded again after a restart")
+    void testPersistence() throws Exception {
+        var databaseDir = new File(System.getProperty("java.io.tmpdir") + File.separator + "matrix-bridge-java-dedupdb");
+        if(databaseDir.exists()) FileUtils.deleteDirectory(databaseDir);
+
+        var dbInfo = new BridgeConfig.LevelDBInfo();
+        dbInfo.directory = databaseDir.getAbsolutePath();
+        dbInfo.cacheSize = 8;
+        dbInfo.compressionType = CompressionType.NONE;
+
+        var saves = new ArrayList<Runnable>();
+        var database = new LevelDBDatabaseImpl(null, dbInfo);
+        var deduplicator = new EventDeduplicator(20, HOUR, database, saves::add, LoggerFactory.getLogger("EventDeduplicatorTest"));
+        for(int i = 0; i < 5; i++) {
+            assertFalse(deduplicator.isDuplicate("$" + i));
+        }
+
+        // Every second ID asks for a save, but only one waits on the executor at a time
+        assertEquals(1, saves.size());
+        assertNull(database.getExtraData(EventDeduplicator.DATABASE_KEY));
+        saves.remove(0).run();
+        assertNotNull(database.getExtraData(EventDeduplicator.DATABASE_KEY));
+
+        assertFalse(deduplicator.isDuplicate("$5"));
+        assertEquals(1, saves.size());
+        saves.remove(0).run();
+        database.close();
+
+        database = new LevelDBDatabaseImpl(null, dbInfo);
+        try {
+            var restarted = new EventDeduplicator(20, HOUR, database, saves::add, LoggerFactory.getLogger("EventDeduplicatorTest"));
+            restarted.load();
+            for(int i = 0; i < 6; i++) {
+                assertTrue(restarted.isDuplicate("$" + i));
+            }
+            assertFalse(restarted.isDuplicate("$6"));
+        } finally {
+            database.close();
+            FileUtils.deleteDirectory(databaseDir);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge;
+
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import io.github.jython234.matrix.appservice.event.TypingMatrixEvent;
+import io.github.jython234.matrix.bridge.concurrent.BridgeExecutor;
+import io.github.jython234.matrix.bridge.concurrent.ExecutorMode;
+import io.github.jython234.matrix.bridge.concurrent.LaneExecutor;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Checks that events written to disk are read back in order, across segments and restarts,
+/// and that the queue in front of the log keeps events in the order they arrived.
+/// These live in the bridge package because the classes are package-private.
+class EventSpillLogTest {
+    private static final Logger logger = LoggerFactory.getLogger("EventSpillLogTest");
+
+    private File directory;
+
+    @BeforeEach
+    void init() throws IOException {
+        this.directory = Files.createTempDirectory("matrix-bridge-java-spill").toFile();
+    }
+
+    @AfterEach
+    void deinit() throws IOException {
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    private static TypingMatrixEvent event(int i) {
+        var event = new TypingMatrixEvent();
+        event.roomId = "!" + i + ":localhost";
+        return event;
+    }
+
+    private static String roomId(MatrixEvent event) {
+        return ((TypingMatrixEvent) event).roomId;
+    }
+
+    private File[] segments() {
+        var files = this.directory.listFiles((dir, name) -> name.endsWith(".log"));
+        return files == null ? new File[0] : files;
+    }
+
+    @Test
+    @DisplayName("Events are read back in order across segments, which are deleted once handled")
+    void testSegments() throws IOException {
+        try(var log = new EventSpillLog(this.directory, 64, logger)) {
+            for(int i = 0; i < 10; i++) {
+                log.append(event(i));
+            }
+            assertEquals(10, log.size());
+            assertTrue(this.segments().length > 1);
+
+            for(int i = 0; i < 10; i++) {
+                var entry = log.next();
+                assertEquals("!" + i + ":localhost", roomId(entry.event));
+                log.commit(entry);
+            }
+            assertNull(log.next());
+            assertEquals(0, log.size());
+            assertEquals(0, log.sizeBytes());
+            assertEquals(0, this.segments().length);
+
+            // Empty again, so the next event starts over
+            log.append(event(10));
+            assertEquals("!10:localhost", roomId(log.next().event));
+        }
+    }
+
+    @Test
+    @DisplayName("A partly written event is cut off when the log is opened again")
+    void testTruncation() throws IOException {
+        try(var log = new EventSpillLog(this.directory, logger)) {
+            for(int i = 0; i < 3; i++) {
+                log.append(event(i));
+            }
+        }
+
+        var segment = this.segments()[0];
+        var length = segment.length();
+        try(var out = new DataOutputStream(new FileOutputStream(segment, true))) {
+            out.writeInt(100);
+            out.write(new byte[] {1, 2, 3});
+        }
+
+        try(var log = new EventSpillLog(this.directory, logger)) {
+            assertEquals(3, log.size());
+            assertEquals(length, segment.length());
+            for(int i = 0; i < 3; i++) {
+                assertEquals("!" + i + ":localhost", roomId(log.next().event));
+            }
+            assertNull(log.next());
+        }
+    }
+
+    @Test
+    @DisplayName("After a restart, only the events that weren't handled are read again")
+    void testRestart() throws IOException {
+        var entries = new ArrayList<EventSpillLog.Entry>();
+        try(var log = new EventSpillLog(this.directory, logger)) {
+            for(int i = 0; i < 6; i++) {
+                log.append(event(i));
+            }
+            for(int i = 0; i < 4; i++) {
+                entries.add(log.next());
+            }
+
+            // Handlers finish out of order, so only the first two are done without a gap
+            log.commit(entries.get(0));
+            log.commit(entries.get(1));
+            log.commit(entries.get(3));
+            assertEquals(4, log.size());
+            assertEquals(1, this.segments().length);
+        }
+
+        try(var log = new EventSpillLog(this.directory, logger)) {
+            assertEquals(4, log.size());
+
+            var recovered = new ArrayList<String>();
+            log.forEach(event -> recovered.add(roomId(event)));
+            assertEquals(List.of("!2:localhost", "!3:localhost", "!4:localhost", "!5:localhost"), recovered);
+
+            for(int i = 2; i < 6; i++) {
+                var entry = log.next();
+                assertEquals("!" + i + ":localhost", roomId(entry.event));
+                log.commit(entry);
+            }
+            assertEquals(0, log.size());
+        }
+        assertEquals(0, this.segments().length);
+        assertFalse(new File(this.directory, "committed.offset").exists());
+    }
+
+    @Test
+    @DisplayName("Events written to disk are handled before the ones offered after them")
+    void testQueueOrder() throws Exception {
+        var executor = new BridgeExecutor(ExecutorMode.FIXED, 2);
+        try {
+            var lanes = new LaneExecutor(executor, 1, 1);
+            var queue = new SpillingEventQueue(lanes, new EventSpillLog(this.directory, 64, logger), logger);
+            var handled = Collections.synchronizedList(new ArrayList<String>());
+            var done = new CountDownLatch(6);
+            queue.setDispatcher((event, onHandled) -> lanes.execute(roomId(event), () -> {
+                handled.add(roomId(event));
+                onHandled.run();
+                done.countDown();
+            }));
+
+            var release = new CountDownLatch(1);
+            assertTrue(queue.offer(event(0), () -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handled.add("!0:localhost");
+                done.countDown();
+            }, null));
+
+            // The lanes are full, and once one event is on disk every later one is too
+            var callbacks = Collections.synchronizedList(new ArrayList<String>());
+            for(int i = 1; i < 4; i++) {
+                final var room = "!" + i + ":localhost";
+                assertFalse(queue.offer(event(i), () -> fail("Spilled events are dispatched when they're read back"), () -> callbacks.add(room)));
+            }
+            assertEquals(3, queue.getSpilled());
+            release.countDown();
+
+            // Written to disk too while the ones before them aren't handled, queued right away otherwise
+            for(int i = 4; i < 6; i++) {
+                final var room = "!" + i + ":localhost";
+                queue.offer(event(i), () -> {
+                    handled.add(room);
+                    done.countDown();
+                }, null);
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(List.of("!0:localhost", "!1:localhost", "!2:localhost", "!3:localhost", "!4:localhost", "!5:localhost"), handled);
+            assertEquals(List.of("!1:localhost", "!2:localhost", "!3:localhost"), callbacks);
+            assertEquals(0, queue.getSpilled());
+            assertEquals(0, this.segments().length);
+            queue.close();
+        } finally {
+            executor.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import io.github.jython234.matrix.bridge.metrics.DefaultMetricsRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Deterministic tests of the admission controller, its fair queues and the Vegas limit.
+/// These live in the network package because the classes are package-private.
+class AdmissionControlTest {
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    @DisplayName("Higher lanes are admitted first, ephemeral requests are shed while saturated")
+    void testLanes() throws Exception {
+        var controller = new AdmissionController(new DefaultMetricsRegistry(), ConcurrencyLimit.fixed(1), Long.MAX_VALUE, 100, Long.MAX_VALUE);
+        var notifications = Collections.synchronizedList(new ArrayList<String>());
+        controller.addListener(new BackpressureListener() {
+            @Override
+            public void onSaturated() {
+                notifications.add("saturated");
+            }
+
+            @Override
+            public void onRelieved() {
+                notifications.add("relieved");
+            }
+        });
+
+        controller.acquire(RequestPriority.MESSAGE, "", 0); // Uses the only slot
+        assertFalse(controller.isSaturated());
+
+        // An ephemeral request waiting for its share doesn't saturate the controller, but is shed once it is
+        var shed = new boolean[1];
+        var ephemeral = new Thread(() -> {
+            try {
+                controller.acquire(RequestPriority.EPHEMERAL, "", 0);
+            } catch (AdmissionRejectedException e) {
+                shed[0] = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ephemeral.start();
+        waitForQueued(controller, 1);
+        assertFalse(controller.isSaturated());
+
+        // Queue the lanes from lowest to highest, one at a time so their arrival order is known
+        var admitted = Collections.synchronizedList(new ArrayList<RequestPriority>());
+        var threads = new ArrayList<Thread>();
+        var queued = 0;
+        for(var priority : new RequestPriority[] {RequestPriority.PROFILE, RequestPriority.STATE, RequestPriority.MESSAGE}) {
+            var thread = new Thread(() -> {
+                try {
+                    controller.acquire(priority, "@user:localhost", 0);
+                    admitted.add(priority);
+                    controller.release(0, -1, false);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+
+            // The first one saturates the controller and sheds the ephemeral request
+            if(queued == 0) {
+                ephemeral.join(10000);
+                assertTrue(shed[0]);
+            }
+            waitForQueued(controller, ++queued);
+            assertTrue(controller.isSaturated());
+        }
+
+        assertThrows(AdmissionRejectedException.class, () -> controller.acquire(RequestPriority.EPHEMERAL, "", 0));
+
+        controller.release(0, -1, false);
+        for(var thread : threads) {
+            thread.join(10000);
+        }
+
+        assertEquals(List.of(RequestPriority.MESSAGE, RequestPriority.STATE, RequestPriority.PROFILE), admitted);
+        assertFalse(controller.isSaturated());
+        assertEquals(0, controller.getInFlightRequests());
+        assertEquals(List.of("saturated", "relieved"), notifications);
+
+        // Not saturated anymore, so ephemeral requests are let through again
+        controller.acquire(RequestPriority.EPHEMERAL, "", 0);
+        controller.release(0, -1, false);
+    }
+
+    @Test
+    @DisplayName("Fair queues give each flow turns in proportion to its weight")
+    void testFairQueue() {
+        var queue = new FairQueue<String>(flow -> flow.equals("a") ? 2 : 1);
+        for(int i = 0; i < 6; i++) {
+            queue.add("a", "a" + i);
+            queue.add("b", "b" + i);
+        }
+        assertEquals(12, queue.size());
+
+        var order = new ArrayList<String>();
+        while(!queue.isEmpty()) {
+            var next = queue.peek();
+            assertEquals(next, queue.poll());
+            order.add(next);
+        }
+        assertEquals(List.of("a0", "a1", "b0", "a2", "a3", "b1", "a4", "a5", "b2", "b3", "b4", "b5"), order);
+        assertNull(queue.poll());
+
+        // Fractional weights get a turn every few rounds
+        var fractional = new FairQueue<String>(flow -> flow.equals("slow") ? 0.5 : 1);
+        for(int i = 0; i < 20; i++) {
+            fractional.add("slow", "slow");
+            fractional.add("fast", "fast");
+        }
+        var fast = 0;
+        for(int i = 0; i < 15; i++) {
+            if(fractional.poll().equals("fast")) fast++;
+        }
+        assertEquals(10, fast);
+
+        // Removing the last item of a flow ends its turns
+        assertTrue(fractional.remove("fast", "fast"));
+        assertFalse(fractional.remove("missing", "fast"));
+        while(fractional.size() > 0) {
+            fractional.poll();
+        }
+        assertTrue(fractional.isEmpty());
+    }
+
+    @Test
+    @DisplayName("The Vegas limit grows while latency is flat and shrinks when it rises or requests are dropped")
+    void testVegasLimit() {
+        var limit = new VegasConcurrencyLimit(10, 4, 20);
+
+        // Latency at the baseline with most of the limit in use, grows by log10(limit) per sample
+        for(int i = 0; i < 5; i++) {
+            limit.onSample(10 * MILLIS, limit.get(), false);
+        }
+        assertEquals(15, limit.get());
+
+        // Samples that say nothing about the load don't change it
+        limit.onSample(-1, 15, false);
+        limit.onSample(50 * MILLIS, 2, false);
+        assertEquals(15, limit.get());
+
+        // Capped at the maximum
+        for(int i = 0; i < 20; i++) {
+            limit.onSample(10 * MILLIS, limit.get(), false);
+        }
+        assertEquals(20, limit.get());
+
+        // Twice the baseline latency means half of the requests are queueing, so it shrinks
+        for(int i = 0; i < 3; i++) {
+            limit.onSample(20 * MILLIS, limit.get(), false);
+        }
+        assertEquals(16, limit.get());
+
+        // Overload responses cut it by 10% at once, down to the minimum
+        limit.onSample(-1, 16, true);
+        assertEquals(14, limit.get());
+        for(int i = 0; i < 20; i++) {
+            limit.onSample(-1, 1, true);
+        }
+        assertEquals(4, limit.get());
+    }
+
+    private static void waitForQueued(AdmissionController controller, int queued) throws InterruptedException {
+        for(int i = 0; i < 1000 && controller.getQueuedRequests() < queued; i++) {
+            Thread.sleep(5);
+        }
+        assertEquals(queued, controller.getQueuedRequests());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.network;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests how callers share one in-flight call.
+/// These live in the network package because SingleFlight is package-private.
+class SingleFlightTest {
+
+    @Test
+    @DisplayName("A caller waiting on an interrupted leader runs the loader itself")
+    void testLeaderInterrupted() throws Exception {
+        var loading = new CountDownLatch(1);
+        var shared = new CountDownLatch(1);
+        var flight = new SingleFlight<String, String>(shared::countDown);
+        var leaderInterrupted = new boolean[1];
+
+        var leader = new Thread(() -> {
+            try {
+                flight.execute("key", () -> {
+                    loading.countDown();
+                    Thread.sleep(Long.MAX_VALUE);
+                    return "leader";
+                });
+            } catch (InterruptedException e) {
+                leaderInterrupted[0] = true;
+            }
+        });
+        leader.start();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        var result = new String[1];
+        var follower = new Thread(() -> {
+            try {
+                result[0] = flight.execute("key", () -> "follower");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        follower.start();
+
+        assertTrue(shared.await(5, TimeUnit.SECONDS));
+        leader.interrupt();
+        leader.join(5000);
+        follower.join(5000);
+
+        assertTrue(leaderInterrupted[0]);
+        assertEquals("follower", result[0]);
+    }
+}
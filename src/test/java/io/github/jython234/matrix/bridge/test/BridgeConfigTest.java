@@ -27,6 +27,7 @@
 package io.github.jython234.matrix.bridge.test;
 
 import io.github.jython234.matrix.appservice.exception.KeyNotFoundException;
+import io.github.jython234.matrix.bridge.concurrent.ExecutorMode;
 import io.github.jython234.matrix.bridge.configuration.BridgeConfig;
 import io.github.jython234.matrix.bridge.configuration.BridgeConfigLoader;
 import org.iq80.leveldb.CompressionType;
@@ -69,6 +70,33 @@ class BridgeConfigTest {
         assertEquals(appservicePort, config.getAppservicePort());
 
         assertNotNull(config.getDbInfo());
+
+        // The media section is optional, so the defaults should be used
+        assertNotNull(config.getMediaInfo());
+        assertEquals(8, config.getMediaInfo().segmentSize);
+        assertEquals(4, config.getMediaInfo().parallelSegments);
+        assertEquals(256, config.getMediaInfo().cacheSize);
+
+        assertNotNull(config.getNetworkInfo());
+        assertEquals(8, config.getNetworkInfo().bulkConcurrency);
+        assertEquals(20, config.getNetworkInfo().bulkRequestsPerSecond);
+        assertEquals(64, config.getNetworkInfo().maxInFlightRequests);
+        assertTrue(config.getNetworkInfo().adaptiveConcurrency);
+        assertTrue(config.getNetworkInfo().compression);
+        assertEquals(1024, config.getNetworkInfo().maxQueuedRequests);
+
+        assertNotNull(config.getThreadingInfo());
+        assertEquals(ExecutorMode.FIXED, config.getThreadingInfo().mode);
+        assertTrue(config.getThreadingInfo().poolSize > 0);
+        assertFalse(config.getThreadingInfo().asyncDispatch);
+        assertEquals(10000, config.getThreadingInfo().maxQueuedEvents);
+        assertTrue(config.getThreadingInfo().spillEvents);
+
+        assertNotNull(config.getEventInfo());
+        assertEquals(10000, config.getEventInfo().dedupCapacity);
+        assertTrue(config.getEventInfo().persistDedup);
+        assertTrue(config.getEventInfo().suppressEchoes);
+        assertEquals(1000, config.getEventInfo().slowHandlerThreshold);
     }
 
     @Test
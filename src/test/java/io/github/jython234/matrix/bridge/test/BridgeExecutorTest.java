@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.test;
+
+import io.github.jython234.matrix.bridge.concurrent.BridgeExecutor;
+import io.github.jython234.matrix.bridge.concurrent.ExecutorMode;
+import io.github.jython234.matrix.bridge.concurrent.LaneExecutor;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Checks that every executor mode runs tasks, that supplyAll and runAll bound parallelism,
+/// and that LaneExecutor keeps tasks with the same key in order.
+class BridgeExecutorTest {
+
+    @Test
+    @DisplayName("Every mode runs tasks, virtual threads fall back when unsupported")
+    void testModes() throws Exception {
+        for(var mode : ExecutorMode.values()) {
+            var executor = new BridgeExecutor(mode, 4);
+            try {
+                assertEquals(42, (int) executor.supply(() -> 42).get());
+                assertEquals("done", executor.submit(() -> "done").get());
+
+                if(mode != ExecutorMode.VIRTUAL) assertEquals(mode, executor.getMode());
+                else assertTrue(executor.getMode() == ExecutorMode.VIRTUAL || executor.getMode() == ExecutorMode.FIXED);
+            } finally {
+                executor.close();
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("supplyAll never runs more tasks at once than allowed")
+    void testSupplyAll() throws Exception {
+        var executor = new BridgeExecutor(ExecutorMode.FIXED, 16);
+        try {
+            var running = new AtomicInteger();
+            var maxRunning = new AtomicInteger();
+
+            var tasks = new ArrayList<Callable<Integer>>();
+            for(int i = 0; i < 40; i++) {
+                final var value = i;
+                tasks.add(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    return value;
+                });
+            }
+
+            var futures = executor.supplyAll(tasks, 3);
+            for(int i = 0; i < futures.size(); i++) {
+                assertEquals(i, (int) futures.get(i).get());
+            }
+            assertTrue(maxRunning.get() <= 3);
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    @DisplayName("runAll completes from inside a saturated pool and stops after a failure")
+    void testRunAll() throws Exception {
+        var executor = new BridgeExecutor(ExecutorMode.FIXED, 1);
+        try {
+            var running = new AtomicInteger();
+            var maxRunning = new AtomicInteger();
+
+            var tasks = new ArrayList<Callable<Integer>>();
+            for(int i = 0; i < 20; i++) {
+                final var value = i;
+                tasks.add(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(1);
+                    running.decrementAndGet();
+                    return value;
+                });
+            }
+
+            // The only pool thread is the one waiting, so the calling thread has to run every task itself
+            var futures = executor.supply(() -> executor.runAll(tasks, 4)).get(10, TimeUnit.SECONDS);
+            for(int i = 0; i < futures.size(); i++) {
+                assertEquals(i, (int) futures.get(i).get());
+            }
+            assertEquals(1, maxRunning.get());
+
+            var started = new AtomicInteger();
+            var failing = new ArrayList<Callable<Integer>>();
+            for(int i = 0; i < 10; i++) {
+                final var value = i;
+                failing.add(() -> {
+                    started.incrementAndGet();
+                    if(value == 2) throw new IllegalStateException("Segment failed");
+                    return value;
+                });
+            }
+
+            futures = executor.runAll(failing, 1);
+            assertEquals(3, started.get());
+            assertTrue(futures.get(2).isCompletedExceptionally());
+            assertTrue(futures.get(9).isCancelled());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Lanes run tasks with the same key in order and different keys in parallel")
+    void testLanes() throws Exception {
+        var executor = new BridgeExecutor(ExecutorMode.FIXED, 8);
+        try {
+            var lanes = new LaneExecutor(executor, 4, 100);
+            var order = new ConcurrentHashMap<String, List<Integer>>();
+            var running = new AtomicInteger();
+            var maxRunning = new AtomicInteger();
+            var done = new CountDownLatch(200);
+
+            for(int i = 0; i < 50; i++) {
+                for(var room : new String[] {"!a:localhost", "!b:localhost", "!c:localhost", "!d:localhost"}) {
+                    final var value = i;
+                    lanes.execute(room, () -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        order.computeIfAbsent(room, key -> Collections.synchronizedList(new ArrayList<>())).add(value);
+                        running.decrementAndGet();
+                        done.countDown();
+                    });
+                }
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for(Map.Entry<String, List<Integer>> entry : order.entrySet()) {
+                for(int i = 0; i < 50; i++) {
+                    assertEquals(i, (int) entry.getValue().get(i));
+                }
+            }
+            assertTrue(maxRunning.get() <= 4);
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    @DisplayName("tryExecute refuses tasks when the lanes are full")
+    void testTryExecute() throws Exception {
+        var executor = new BridgeExecutor(ExecutorMode.FIXED, 2);
+        try {
+            var lanes = new LaneExecutor(executor, 2, 2);
+            var release = new CountDownLatch(1);
+            Runnable blocked = () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            };
+
+            assertTrue(lanes.tryExecute("!a:localhost", blocked));
+            assertTrue(lanes.tryExecute("!b:localhost", blocked));
+            assertFalse(lanes.tryExecute("!c:localhost", blocked));
+            assertEquals(2, lanes.getQueued());
+
+            release.countDown();
+            var ran = new CountDownLatch(1);
+            lanes.execute("!c:localhost", ran::countDown);
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Executor modes are parsed from their config names")
+    void testFromName() {
+        assertEquals(ExecutorMode.WORK_STEALING, ExecutorMode.fromName("work-stealing"));
+        assertEquals(ExecutorMode.VIRTUAL, ExecutorMode.fromName("virtual"));
+        assertThrows(IllegalArgumentException.class, () -> ExecutorMode.fromName("threads"));
+    }
+}
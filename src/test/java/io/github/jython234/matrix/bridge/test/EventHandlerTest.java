@@ -27,15 +27,24 @@
 package io.github.jython234.matrix.bridge.test;
 
 import io.github.jython234.matrix.appservice.Util;
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
 import io.github.jython234.matrix.appservice.event.TypingMatrixEvent;
 import io.github.jython234.matrix.bridge.MatrixBridge;
 import io.github.jython234.matrix.bridge.MatrixBridgeEventHandler;
 import io.github.jython234.matrix.bridge.MatrixEventHandler;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -98,8 +107,321 @@ class EventHandlerTest {
         }
     }
 
+    public static class HierarchyBridge extends MatrixBridge {
+        final List<String> calls = new ArrayList<>();
+
+        HierarchyBridge(String configDirectory) {
+            super(configDirectory);
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+
+        @MatrixEventHandler
+        public void onAnyEvent(MatrixEvent event) {
+            this.calls.add("any");
+        }
+
+        @MatrixEventHandler
+        public void onTypingEvent(TypingMatrixEvent event) {
+            this.calls.add("typing");
+        }
+    }
+
+    public static class FilterBridge extends MatrixBridge {
+        final List<String> calls = new ArrayList<>();
+
+        FilterBridge(String configDirectory) {
+            super(configDirectory);
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+
+        @MatrixEventHandler(priority = 10, roomIdPattern = "!a:.*")
+        public void onRoomA(TypingMatrixEvent event) {
+            this.calls.add("a");
+        }
+
+        @MatrixEventHandler(priority = 5)
+        public void onAnyEvent(MatrixEvent event) {
+            this.calls.add("any");
+        }
+
+        @MatrixEventHandler
+        public void onTypingEvent(TypingMatrixEvent event) {
+            this.calls.add("typing");
+        }
+    }
+
+    public static class InvalidPatternBridge extends MatrixBridge {
+        InvalidPatternBridge(String configDirectory) {
+            super(configDirectory);
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+
+        @MatrixEventHandler(senderPattern = "[unclosed")
+        public void onTypingEvent(TypingMatrixEvent event) {
+
+        }
+    }
+
+    public static class StaticBridge extends MatrixBridge {
+        static final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+        StaticBridge(String configDirectory) {
+            super(configDirectory);
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+
+        @MatrixEventHandler
+        public static void onTypingEvent(TypingMatrixEvent event) {
+            calls.add(event.roomId);
+        }
+    }
+
+    public static class RoomEvent extends MatrixEvent {
+        public String roomId = "!spill:localhost";
+        public String eventId;
+
+        public RoomEvent() {
+            this.type = "m.room.message";
+        }
+    }
+
+    public static class SpillBridge extends MatrixBridge {
+        final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SpillBridge(String configDirectory) {
+            super(configDirectory);
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+
+        @MatrixEventHandler
+        public void onRoomEvent(RoomEvent event) throws InterruptedException {
+            this.release.await(10, TimeUnit.SECONDS);
+            this.handled.add(event.eventId);
+        }
+    }
+
+    public static class BatchBridge extends MatrixBridge {
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        int singles = 0;
+
+        BatchBridge(String configDirectory) {
+            super(configDirectory);
+
+            // Batch handlers aren't single event handlers
+            assertEquals(1, this.eventHandlers.size());
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+
+        @MatrixEventHandler
+        public void onTypingEvents(List<TypingMatrixEvent> events) throws InterruptedException {
+            this.batches.add(events.size());
+            this.firstBatch.countDown();
+            this.release.await(10, TimeUnit.SECONDS); // Busy, so the events that arrive meanwhile form the next batch
+        }
+
+        @MatrixEventHandler
+        public void onTypingEvent(TypingMatrixEvent event) {
+            this.singles++;
+        }
+    }
+
+    @Test
+    void test() throws IOException {
+        new DummyBridge(".").getDatabase().close(); // Every test opens the same database, so each closes it again
+    }
+
+    @Test
+    void testSupertypeHandlers() throws IOException {
+        var bridge = new HierarchyBridge(".");
+        try {
+            var handler = new MatrixBridgeEventHandler(bridge);
+
+            handler.onMatrixEvent(new TypingMatrixEvent());
+            handler.onMatrixEvent(new TypingMatrixEvent());
+
+            // The most specific handler first, every time
+            assertEquals(List.of("typing", "any", "typing", "any"), bridge.calls);
+
+            // Each handler is measured separately
+            assertEquals(2, bridge.getMetrics().counter("handler.invocations[HierarchyBridge.onTypingEvent(TypingMatrixEvent) TypingMatrixEvent]").get());
+            assertEquals(2, bridge.getMetrics().histogram("handler.latency[HierarchyBridge.onAnyEvent(MatrixEvent) TypingMatrixEvent]").getCount());
+            assertEquals(0, bridge.getMetrics().counter("handler.errors[HierarchyBridge.onAnyEvent(MatrixEvent) TypingMatrixEvent]").get());
+
+            // The event's type is chosen by its sender, so it doesn't get metrics of its own
+            var custom = new TypingMatrixEvent();
+            custom.type = "com.example.custom";
+            handler.onMatrixEvent(custom);
+            assertEquals(3, bridge.getMetrics().counter("handler.invocations[HierarchyBridge.onAnyEvent(MatrixEvent) TypingMatrixEvent]").get());
+        } finally {
+            bridge.getDatabase().close();
+        }
+    }
+
+    @Test
+    void testBatchHandlers() throws Exception {
+        var bridge = new BatchBridge(".");
+        try {
+            var handler = new MatrixBridgeEventHandler(bridge);
+            handler.onMatrixEvent(new TypingMatrixEvent());
+            assertTrue(bridge.firstBatch.await(10, TimeUnit.SECONDS));
+
+            for(int i = 0; i < 3; i++) {
+                handler.onMatrixEvent(new TypingMatrixEvent());
+            }
+            assertEquals(4, bridge.singles); // Single event handlers don't wait for the batch handler
+            bridge.release.countDown();
+
+            var deadline = System.currentTimeMillis() + 10000;
+            while(bridge.batches.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of(1, 3), bridge.batches);
+        } finally {
+            bridge.getDatabase().close();
+        }
+    }
+
+    @Test
+    void testHandlerAttributes() throws IOException {
+        var bridge = new FilterBridge(".");
+        try {
+            var handler = new MatrixBridgeEventHandler(bridge);
+
+            var inRoomA = new TypingMatrixEvent();
+            inRoomA.roomId = "!a:localhost";
+            handler.onMatrixEvent(inRoomA);
+            // Priority comes before how specific the event type is
+            assertEquals(List.of("a", "any", "typing"), bridge.calls);
+
+            bridge.calls.clear();
+            var inRoomB = new TypingMatrixEvent();
+            inRoomB.roomId = "!b:localhost";
+            handler.onMatrixEvent(inRoomB);
+            assertEquals(List.of("any", "typing"), bridge.calls);
+        } finally {
+            bridge.getDatabase().close();
+        }
+    }
+
+    @Test
+    void testStaticHandler() throws IOException {
+        var bridge = new StaticBridge(".");
+        try {
+            var event = new TypingMatrixEvent();
+            event.roomId = "!static:localhost";
+            new MatrixBridgeEventHandler(bridge).onMatrixEvent(event);
+            assertEquals(List.of("!static:localhost"), StaticBridge.calls);
+        } finally {
+            bridge.getDatabase().close();
+        }
+    }
+
+    @Test
+    void testSpilledOrder() throws Exception {
+        var directory = Files.createTempDirectory("matrix-bridge-java-spill").toFile();
+        Util.copyResourceTo("testRegistration.yml", new File(directory, "registration.yml"));
+        var config = "serverURL: \"http://localhost:8008\"\n"
+                + "publicServerURL: \"http://localhost:8008\"\n"
+                + "matrixDomain: \"localhost\"\n"
+                + "appservicePort: 9000\n"
+                + "db:\n"
+                + "  type: \"leveldb\"\n"
+                + "  directory: \"" + new File(directory, "db").getAbsolutePath() + "\"\n"
+                + "  compression: false\n"
+                + "  cacheSize: 16\n"
+                + "threads:\n"
+                + "  asyncDispatch: true\n"
+                + "  dispatchLanes: 1\n"
+                + "  maxQueuedEvents: 1\n"
+                + "  spillEvents: true\n";
+        Files.write(new File(directory, "bridge.yml").toPath(), config.getBytes(StandardCharsets.UTF_8));
+
+        var bridge = new SpillBridge(directory.getAbsolutePath());
+        try {
+            var handler = new MatrixBridgeEventHandler(bridge);
+            var events = new ArrayList<RoomEvent>();
+            for(int i = 0; i < 3; i++) {
+                var event = new RoomEvent();
+                event.eventId = "$" + i;
+                events.add(event);
+            }
+
+            // The first fills the only lane, so the second is written to disk, and the async one has to wait behind it
+            handler.onMatrixEvent(events.get(0));
+            handler.onMatrixEvent(events.get(1));
+            var future = handler.onMatrixEventAsync(events.get(2));
+            assertFalse(future.isDone());
+
+            bridge.release.countDown();
+            future.get(10, TimeUnit.SECONDS);
+            assertEquals(List.of("$0", "$1", "$2"), bridge.handled);
+        } finally {
+            bridge.getDatabase().close();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
     @Test
-    void test() {
-        new DummyBridge(".");
+    void testInvalidPattern() {
+        // Handlers are found before the database is opened, so there is nothing to close
+        var e = assertThrows(IllegalArgumentException.class, () -> new InvalidPatternBridge("."));
+        assertTrue(e.getMessage().contains("onTypingEvent"));
     }
 }
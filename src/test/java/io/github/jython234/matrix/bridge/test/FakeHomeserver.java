@@ -0,0 +1,478 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/// An in-process stand-in for a Matrix homeserver, implementing the client-server endpoints
+/// that MatrixUserClient and MatrixClientManager call. Behaviour can be scripted per endpoint
+/// with added latency, injected errors and injected 429 responses, all driven from a seeded
+/// random number generator so runs are reproducible.
+///
+/// Usage: `server.script("PUT", "rooms/.*/send/.*").latency(5).rateLimit(0.1, 100);`
+public class FakeHomeserver {
+    private static final Gson gson = new Gson();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random;
+
+    private final List<Script> scripts = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    // Homeserver state
+    private final Set<String> registeredUsers = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> displayNames = new ConcurrentHashMap<>();
+    private final Map<String, String> avatarURLs = new ConcurrentHashMap<>();
+    private final Map<String, JsonObject> presence = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> roomMembers = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, JsonObject>> roomState = new ConcurrentHashMap<>();
+    private final Map<String, String> aliases = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> media = new ConcurrentHashMap<>();
+    private final AtomicLong eventCounter = new AtomicLong();
+
+    /// A scripted behaviour applied to every request matching a method and path pattern.
+    /// The path is the part after `/_matrix/client/r0/` or `/_matrix/`, without the query string.
+    public static class Script {
+        private final String method;
+        private final Pattern path;
+
+        private volatile long latencyMillis;
+        private volatile double errorProbability;
+        private volatile int errorStatus = 500;
+        private volatile double rateLimitProbability;
+        private volatile long retryAfterMillis;
+
+        private Script(String method, String pathRegex) {
+            this.method = method;
+            this.path = Pattern.compile(pathRegex);
+        }
+
+        /// Delay every matching request by this many milliseconds.
+        public Script latency(long millis) {
+            this.latencyMillis = millis;
+            return this;
+        }
+
+        /// Respond to a fraction of matching requests with an error status instead of handling them.
+        public Script error(double probability, int status) {
+            this.errorProbability = probability;
+            this.errorStatus = status;
+            return this;
+        }
+
+        /// Respond to a fraction of matching requests with 429 M_LIMIT_EXCEEDED.
+        public Script rateLimit(double probability, long retryAfterMillis) {
+            this.rateLimitProbability = probability;
+            this.retryAfterMillis = retryAfterMillis;
+            return this;
+        }
+
+        private boolean matches(String method, String path) {
+            return (this.method == null || this.method.equals(method)) && this.path.matcher(path).matches();
+        }
+    }
+
+    public FakeHomeserver(long seed) throws IOException {
+        this.random = new Random(seed);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newCachedThreadPool();
+
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/_matrix/", this::handle);
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    public String getURL() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /// Add a scripted behaviour. Scripts are checked in the order they were added, and the first match wins.
+    /// @param method The HTTP method to match, or null for any.
+    /// @param pathRegex A regex the whole path must match.
+    public Script script(String method, String pathRegex) {
+        var script = new Script(method, pathRegex);
+        this.scripts.add(script);
+        return script;
+    }
+
+    public void clearScripts() {
+        this.scripts.clear();
+    }
+
+    /// Get how many requests were received for an endpoint, for example "PUT rooms/send".
+    /// The endpoint key is the method followed by the path with every ID segment removed.
+    public long getRequestCount(String endpoint) {
+        var count = this.requestCounts.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    public Set<String> getRoomMembers(String roomId) {
+        return this.roomMembers.getOrDefault(roomId, Collections.emptySet());
+    }
+
+    public JsonObject getRoomState(String roomId, String type) {
+        return this.roomState.getOrDefault(roomId, Collections.emptyMap()).get(type);
+    }
+
+    /// Create a room that already exists on the server, with the given members.
+    public void createRoom(String roomId, String... members) {
+        this.roomMembers.computeIfAbsent(roomId, key -> ConcurrentHashMap.newKeySet()).addAll(Arrays.asList(members));
+    }
+
+    public void putMedia(String serverName, String mediaId, byte[] data) {
+        this.media.put(serverName + "/" + mediaId, data);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            var method = exchange.getRequestMethod();
+            var rawPath = exchange.getRequestURI().getRawPath();
+            var path = rawPath.startsWith("/_matrix/client/r0/") ? rawPath.substring("/_matrix/client/r0/".length()) : rawPath.substring("/_matrix/".length());
+            var segments = path.split("/");
+            for(int i = 0; i < segments.length; i++) {
+                segments[i] = URLDecoder.decode(segments[i], StandardCharsets.UTF_8);
+            }
+            var query = parseQuery(exchange.getRequestURI().getRawQuery());
+            var body = exchange.getRequestBody().readAllBytes();
+
+            this.requestCounts.computeIfAbsent(endpointKey(method, segments), key -> new AtomicLong()).incrementAndGet();
+
+            for(var script : this.scripts) {
+                if(!script.matches(method, path)) continue;
+
+                if(script.latencyMillis > 0) Thread.sleep(script.latencyMillis);
+                if(this.nextDouble() < script.rateLimitProbability) {
+                    var error = error("M_LIMIT_EXCEEDED", "Too many requests");
+                    error.addProperty("retry_after_ms", script.retryAfterMillis);
+                    respond(exchange, 429, error);
+                    return;
+                }
+                if(this.nextDouble() < script.errorProbability) {
+                    respond(exchange, script.errorStatus, error("M_UNKNOWN", "Injected error"));
+                    return;
+                }
+                break;
+            }
+
+            if(!query.containsKey("access_token") && !path.startsWith("media/")) {
+                respond(exchange, 401, error("M_MISSING_TOKEN", "Missing access token"));
+                return;
+            }
+
+            this.route(exchange, method, segments, query, body);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 500, error("M_UNKNOWN", "Interrupted"));
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error("M_UNKNOWN", e.toString()));
+        }
+    }
+
+    private void route(HttpExchange exchange, String method, String[] segments, Map<String, String> query, byte[] body) throws IOException {
+        if(segments[0].equals("media")) {
+            this.media(exchange, method, segments, body);
+            return;
+        }
+
+        var sender = query.getOrDefault("user_id", "@bridge:localhost");
+        var json = body.length == 0 ? new JsonObject() : gson.fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+
+        switch (method + " " + segments[0]) {
+            case "POST register": {
+                var userId = "@" + json.get("username").getAsString() + ":localhost";
+                if(!this.registeredUsers.add(userId)) {
+                    respond(exchange, 400, error("M_USER_IN_USE", "User ID already taken."));
+                    return;
+                }
+                var response = new JsonObject();
+                response.addProperty("user_id", userId);
+                respond(exchange, 200, response);
+                return;
+            }
+            case "PUT presence":
+                this.presence.put(segments[1], json);
+                respond(exchange, 200, new JsonObject());
+                return;
+            case "GET presence": {
+                var response = new JsonObject();
+                var stored = this.presence.get(segments[1]);
+                response.addProperty("presence", stored == null ? "offline" : stored.get("presence").getAsString());
+                response.addProperty("last_active_ago", 0);
+                respond(exchange, 200, response);
+                return;
+            }
+            case "PUT profile":
+                (segments[2].equals("displayname") ? this.displayNames : this.avatarURLs).put(segments[1], json.get(segments[2]).getAsString());
+                respond(exchange, 200, new JsonObject());
+                return;
+            case "GET profile": {
+                var value = (segments[2].equals("displayname") ? this.displayNames : this.avatarURLs).get(segments[1]);
+                if(value == null) {
+                    respond(exchange, 404, error("M_NOT_FOUND", "Profile not found"));
+                    return;
+                }
+                var response = new JsonObject();
+                response.addProperty(segments[2], value);
+                respond(exchange, 200, response);
+                return;
+            }
+            case "POST join": {
+                var roomId = segments[1].startsWith("#") ? this.aliases.get(segments[1]) : segments[1];
+                if(roomId == null) {
+                    respond(exchange, 404, error("M_NOT_FOUND", "Room alias not found"));
+                    return;
+                }
+                this.roomMembers.computeIfAbsent(roomId, key -> ConcurrentHashMap.newKeySet()).add(sender);
+                var response = new JsonObject();
+                response.addProperty("room_id", roomId);
+                respond(exchange, 200, response);
+                return;
+            }
+            case "POST createRoom": {
+                var roomId = "!room" + this.eventCounter.incrementAndGet() + ":localhost";
+                this.roomMembers.computeIfAbsent(roomId, key -> ConcurrentHashMap.newKeySet()).add(sender);
+                if(json.has("room_alias_name")) {
+                    this.aliases.put("#" + json.get("room_alias_name").getAsString() + ":localhost", roomId);
+                }
+                var state = this.roomState.computeIfAbsent(roomId, key -> new ConcurrentHashMap<>());
+                if(json.has("name")) state.put("m.room.name", singleton("name", json.get("name").getAsString()));
+                if(json.has("topic")) state.put("m.room.topic", singleton("topic", json.get("topic").getAsString()));
+                if(json.has("power_level_content_override")) state.put("m.room.power_levels", json.getAsJsonObject("power_level_content_override"));
+                if(json.has("initial_state")) {
+                    for(var event : json.getAsJsonArray("initial_state")) {
+                        var object = event.getAsJsonObject();
+                        state.put(object.get("type").getAsString(), object.getAsJsonObject("content"));
+                    }
+                }
+                var response = new JsonObject();
+                response.addProperty("room_id", roomId);
+                respond(exchange, 200, response);
+                return;
+            }
+            case "GET directory":
+            case "PUT directory":
+            case "DELETE directory":
+                this.directory(exchange, method, segments[2], json);
+                return;
+        }
+
+        if(!segments[0].equals("rooms") || segments.length < 3) {
+            respond(exchange, 404, error("M_UNRECOGNIZED", "Unrecognized request"));
+            return;
+        }
+
+        var roomId = segments[1];
+        var members = this.roomMembers.computeIfAbsent(roomId, key -> ConcurrentHashMap.newKeySet());
+        switch (method + " " + segments[2]) {
+            case "PUT typing":
+                respond(exchange, 200, new JsonObject());
+                return;
+            case "PUT send": {
+                if(!members.contains(sender)) {
+                    respond(exchange, 403, error("M_FORBIDDEN", "User not in room"));
+                    return;
+                }
+                var response = new JsonObject();
+                response.addProperty("event_id", "$event" + this.eventCounter.incrementAndGet() + ":localhost");
+                respond(exchange, 200, response);
+                return;
+            }
+            case "POST invite":
+                members.add(json.get("user_id").getAsString());
+                respond(exchange, 200, new JsonObject());
+                return;
+            case "POST leave":
+                members.remove(sender);
+                respond(exchange, 200, new JsonObject());
+                return;
+            case "POST kick":
+            case "POST ban":
+                members.remove(json.get("user_id").getAsString());
+                respond(exchange, 200, new JsonObject());
+                return;
+            case "GET joined_members": {
+                var joined = new JsonObject();
+                for(var member : members) {
+                    var info = new JsonObject();
+                    info.addProperty("display_name", this.displayNames.get(member));
+                    joined.add(member, info);
+                }
+                var response = new JsonObject();
+                response.add("joined", joined);
+                respond(exchange, 200, response);
+                return;
+            }
+            case "PUT state": {
+                this.roomState.computeIfAbsent(roomId, key -> new ConcurrentHashMap<>()).put(segments[3], json);
+                var response = new JsonObject();
+                response.addProperty("event_id", "$event" + this.eventCounter.incrementAndGet() + ":localhost");
+                respond(exchange, 200, response);
+                return;
+            }
+            case "GET state": {
+                var state = this.getRoomState(roomId, segments[3]);
+                if(state == null) respond(exchange, 404, error("M_NOT_FOUND", "Event not found."));
+                else respond(exchange, 200, state);
+                return;
+            }
+            default:
+                respond(exchange, 404, error("M_UNRECOGNIZED", "Unrecognized request"));
+        }
+    }
+
+    private void directory(HttpExchange exchange, String method, String alias, JsonObject json) throws IOException {
+        switch (method) {
+            case "PUT":
+                if(this.aliases.putIfAbsent(alias, json.get("room_id").getAsString()) != null) {
+                    respond(exchange, 409, error("M_UNKNOWN", "Room alias already exists"));
+                    return;
+                }
+                respond(exchange, 200, new JsonObject());
+                return;
+            case "DELETE":
+                this.aliases.remove(alias);
+                respond(exchange, 200, new JsonObject());
+                return;
+            default:
+                var roomId = this.aliases.get(alias);
+                if(roomId == null) {
+                    respond(exchange, 404, error("M_NOT_FOUND", "Room alias not found"));
+                    return;
+                }
+                var response = new JsonObject();
+                response.addProperty("room_id", roomId);
+                response.add("servers", gson.toJsonTree(List.of("localhost")));
+                respond(exchange, 200, response);
+        }
+    }
+
+    private void media(HttpExchange exchange, String method, String[] segments, byte[] body) throws IOException {
+        // segments: media, r0|v1, upload|download|thumbnail, server, mediaId
+        if(method.equals("POST") && segments[2].equals("upload")) {
+            var mediaId = "media" + this.eventCounter.incrementAndGet();
+            this.media.put("localhost/" + mediaId, body);
+            respond(exchange, 200, singleton("content_uri", "mxc://localhost/" + mediaId));
+            return;
+        }
+
+        var data = segments.length >= 5 ? this.media.get(segments[3] + "/" + segments[4]) : null;
+        if(data == null) {
+            respond(exchange, 404, error("M_NOT_FOUND", "Not found"));
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        var range = exchange.getRequestHeaders().getFirst("Range");
+        if(method.equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(data.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        } else if(range != null && range.startsWith("bytes=")) {
+            var bounds = range.substring("bytes=".length()).split("-");
+            var start = Integer.parseInt(bounds[0]);
+            var end = Math.min(Integer.parseInt(bounds[1]), data.length - 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            respond(exchange, 206, Arrays.copyOfRange(data, start, end + 1));
+        } else {
+            respond(exchange, 200, data);
+        }
+    }
+
+    private synchronized double nextDouble() {
+        return this.random.nextDouble();
+    }
+
+    private static String endpointKey(String method, String[] segments) {
+        var sb = new StringBuilder(method);
+        for(var segment : segments) {
+            if(segment.isEmpty() || "!@#$".indexOf(segment.charAt(0)) >= 0 || segment.matches("-?\\d+")) continue;
+            sb.append(sb.length() == method.length() ? ' ' : '/').append(segment);
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        var query = new HashMap<String, String>();
+        if(rawQuery == null) return query;
+
+        for(var pair : rawQuery.split("&")) {
+            var index = pair.indexOf('=');
+            if(index > 0) {
+                query.put(pair.substring(0, index), URLDecoder.decode(pair.substring(index + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static JsonObject error(String errorCode, String message) {
+        var error = singleton("errcode", errorCode);
+        error.addProperty("error", message);
+        return error;
+    }
+
+    private static JsonObject singleton(String key, String value) {
+        var object = new JsonObject();
+        object.addProperty(key, value);
+        return object;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        respond(exchange, status, gson.toJson(json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try(var out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
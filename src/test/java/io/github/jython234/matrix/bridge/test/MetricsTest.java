@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.test;
+
+import io.github.jython234.matrix.bridge.metrics.DefaultMetricsRegistry;
+import io.github.jython234.matrix.bridge.metrics.Histogram;
+import io.github.jython234.matrix.bridge.metrics.MetricsReporter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Tests the metrics registry and histogram.
+class MetricsTest {
+
+    @Test
+    @DisplayName("Histogram percentiles are within the bucket precision")
+    void testHistogramPercentiles() {
+        var histogram = new Histogram();
+        for(int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+
+        // Buckets are accurate to about 6%, and percentiles never under-report
+        var p50 = histogram.getValueAtPercentile(50.0);
+        assertTrue(p50 >= 5000 && p50 <= 5000 * 1.07, "p50 was " + p50);
+        var p99 = histogram.getValueAtPercentile(99.0);
+        assertTrue(p99 >= 9900 && p99 <= 10000, "p99 was " + p99);
+        assertEquals(10000, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    @DisplayName("Small values are counted exactly")
+    void testHistogramSmallValues() {
+        var histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(99.0));
+
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(-5); // Recorded as zero
+
+        assertEquals(0, histogram.getValueAtPercentile(1.0));
+        assertEquals(3, histogram.getValueAtPercentile(50.0));
+        assertEquals(7, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    @DisplayName("The registry reports every metric in name order")
+    void testRegistryReport() {
+        var registry = new DefaultMetricsRegistry();
+        registry.counter("b.counter").add(5);
+        registry.counter("a.counter").increment();
+        registry.gauge("a.gauge", () -> 42);
+        registry.histogram("a.histogram").record(10);
+
+        assertSame(registry.counter("a.counter"), registry.counter("a.counter"));
+
+        List<String> reported = new ArrayList<>();
+        registry.report(new MetricsReporter() {
+            @Override
+            public void counter(String name, long count) {
+                reported.add(name + "=" + count);
+            }
+
+            @Override
+            public void gauge(String name, long value) {
+                reported.add(name + "=" + value);
+            }
+
+            @Override
+            public void histogram(String name, Histogram histogram) {
+                reported.add(name + "=" + histogram.getCount());
+            }
+        });
+
+        assertEquals(List.of("a.counter=1", "b.counter=5", "a.gauge=42", "a.histogram=1"), reported);
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.test;
+
+import com.google.gson.JsonObject;
+import io.github.jython234.matrix.appservice.Util;
+import io.github.jython234.matrix.bridge.MatrixBridge;
+import io.github.jython234.matrix.bridge.network.BulkMembershipResult;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkResult;
+import io.github.jython234.matrix.bridge.network.media.ThumbnailMethod;
+import io.github.jython234.matrix.bridge.network.room.PowerLevelsData;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Runs the network layer against the in-process FakeHomeserver.
+class NetworkLayerTest {
+    private static File directory;
+    private static FakeHomeserver homeserver;
+    private static TestBridge bridge;
+
+    static class TestBridge extends MatrixBridge {
+        TestBridge(String configDirectory) {
+            super(configDirectory);
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+    }
+
+    @BeforeAll
+    static void init() throws IOException {
+        homeserver = new FakeHomeserver(1234);
+        homeserver.start();
+
+        directory = Files.createTempDirectory("matrix-bridge-java-network").toFile();
+        Util.copyResourceTo("testRegistration.yml", new File(directory, "registration.yml"));
+
+        var config = "serverURL: \"" + homeserver.getURL() + "\"\n"
+                + "publicServerURL: \"" + homeserver.getURL() + "\"\n"
+                + "matrixDomain: \"localhost\"\n"
+                + "appservicePort: 9000\n"
+                + "db:\n"
+                + "  type: \"leveldb\"\n"
+                + "  directory: \"" + new File(directory, "db").getAbsolutePath() + "\"\n"
+                + "  compression: false\n"
+                + "  cacheSize: 16\n"
+                + "media:\n"
+                + "  segmentSize: 1\n"
+                + "  parallelSegments: 2\n"
+                + "  cacheDirectory: \"" + new File(directory, "thumbnails").getAbsolutePath() + "\"\n"
+                + "  cacheSize: 1\n";
+        Files.write(new File(directory, "bridge.yml").toPath(), config.getBytes(StandardCharsets.UTF_8));
+
+        bridge = new TestBridge(directory.getAbsolutePath());
+    }
+
+    @Test
+    @DisplayName("Registers a puppet and round-trips its profile")
+    void testProfile() throws MatrixNetworkException {
+        homeserver.clearScripts();
+        var registrations = homeserver.getRequestCount("POST register");
+        var client = bridge.getClientManager().getClientForUser("@!as_alice:localhost");
+
+        assertEquals(registrations + 1, homeserver.getRequestCount("POST register"));
+        assertTrue(client.setDisplayName("Alice").successful);
+        assertEquals("Alice", client.getDisplayName().result);
+    }
+
+    @Test
+    @DisplayName("Sends messages from many puppets concurrently")
+    void testMessagingUnderLoad() throws Exception {
+        homeserver.clearScripts();
+        homeserver.script("PUT", "rooms/.*/send/.*").latency(2);
+
+        var puppets = 8;
+        var messagesPerPuppet = 25;
+        var roomId = "!load:localhost";
+
+        var users = new String[puppets];
+        for(int i = 0; i < puppets; i++) {
+            users[i] = "@!as_load" + i + ":localhost";
+        }
+        homeserver.createRoom(roomId, users);
+
+        var before = homeserver.getRequestCount("PUT rooms/send/m.room.message");
+        var executor = Executors.newFixedThreadPool(puppets);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for(var user : users) {
+                futures.add(executor.submit((Callable<Integer>) () -> {
+                    var client = bridge.getClientManager().getClientForUser(user);
+                    var sent = 0;
+                    for(int i = 0; i < messagesPerPuppet; i++) {
+                        if(client.sendSimpleMessage(roomId, "Message " + i).successful) sent++;
+                    }
+                    return sent;
+                }));
+            }
+
+            for(var future : futures) {
+                assertEquals(messagesPerPuppet, (int) future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(before + puppets * messagesPerPuppet, homeserver.getRequestCount("PUT rooms/send/m.room.message"));
+        assertTrue(bridge.getMetrics().histogram("http.latency[PUT rooms/{roomId}/send/m.room.message/{txnId}]").getCount() >= puppets * messagesPerPuppet);
+    }
+
+    @Test
+    @DisplayName("Injected 429 responses are reported as throttled and hold back only that user")
+    void testInjectedRateLimit() throws MatrixNetworkException {
+        homeserver.clearScripts();
+        homeserver.script("PUT", "rooms/.*/typing/.*").rateLimit(1.0, 500);
+
+        var throttledBefore = bridge.getMetrics().counter("http.throttled").get();
+        MatrixNetworkResult result = bridge.getClientManager().getClientForUser("@!as_bob:localhost").setTyping("!typing:localhost", true);
+
+        assertFalse(result.successful);
+        assertEquals(429, result.httpResponse.statusCode());
+        assertEquals("M_LIMIT_EXCEEDED", result.error.errorCode);
+        assertEquals(throttledBefore + 1, bridge.getMetrics().counter("http.throttled").get());
+
+        // Bob has to wait for the retry delay, other users don't
+        homeserver.clearScripts();
+        var start = System.nanoTime();
+        assertTrue(bridge.getClientManager().getClientForUser("@!as_alice:localhost").setTyping("!typing:localhost", true).successful);
+        assertTrue(System.nanoTime() - start < 400 * 1000000L);
+        assertTrue(bridge.getClientManager().getClientForUser("@!as_bob:localhost").setTyping("!typing:localhost", true).successful);
+        assertTrue(System.nanoTime() - start >= 400 * 1000000L);
+    }
+
+    @Test
+    @DisplayName("Injected server errors are returned as unsuccessful results")
+    void testInjectedErrors() throws MatrixNetworkException {
+        homeserver.clearScripts();
+        var client = bridge.getClientManager().getClientForUser("@!as_carol:localhost");
+        assertTrue(client.setAvatarURL("mxc://localhost/avatar").successful);
+
+        homeserver.script("GET", "profile/.*").error(1.0, 502);
+        var result = client.getAvatarURL();
+
+        assertFalse(result.successful);
+        assertEquals(502, result.httpResponse.statusCode());
+
+        homeserver.clearScripts();
+        assertEquals("mxc://localhost/avatar", client.getAvatarURL().result);
+    }
+
+    @Test
+    @DisplayName("Bulk invites and bans apply to every user and retry rate limited requests")
+    void testBulkMembership() throws Exception {
+        homeserver.clearScripts();
+        homeserver.script("POST", "rooms/.*/(invite|ban)").latency(2).rateLimit(0.1, 10);
+
+        var roomId = "!bulk:localhost";
+        homeserver.createRoom(roomId, "@!as_moderator:localhost");
+
+        var users = new ArrayList<String>();
+        for(int i = 0; i < 30; i++) {
+            users.add("@remote" + i + ":localhost");
+        }
+
+        var moderator = bridge.getClientManager().getClientForUser("@!as_moderator:localhost");
+        var invites = moderator.inviteAll(roomId, users);
+        assertEquals(users, new ArrayList<>(invites.keySet()));
+        assertTrue(invites.values().stream().allMatch(BulkMembershipResult::isSuccessful));
+        assertTrue(homeserver.getRoomMembers(roomId).containsAll(users));
+
+        var bans = moderator.banAll(roomId, users, "Spam");
+        assertTrue(bans.values().stream().allMatch(BulkMembershipResult::isSuccessful));
+        assertEquals(Set.of("@!as_moderator:localhost"), homeserver.getRoomMembers(roomId));
+    }
+
+    @Test
+    @DisplayName("Creates a room with its initial state in one request and stores it")
+    void testCreateRoom() throws Exception {
+        homeserver.clearScripts();
+        var creates = homeserver.getRequestCount("POST createRoom");
+        var stateChanges = homeserver.getRequestCount("PUT rooms/state/m.room.name") + homeserver.getRequestCount("PUT rooms/state/m.room.topic")
+                + homeserver.getRequestCount("PUT rooms/state/m.room.power_levels");
+
+        var powerLevels = new PowerLevelsData();
+        powerLevels.users.put("@!as_creator:localhost", 100);
+
+        var result = bridge.getClientManager().getClientForUser("@!as_creator:localhost").createRoom()
+                .name("Bridged Room")
+                .topic("Bridged from somewhere else")
+                .alias("bridged_room")
+                .powerLevels(powerLevels)
+                .powerLevel("invite", 0)
+                .eventPowerLevel("m.room.topic", 0)
+                .initialState("m.room.avatar", "", Map.of("url", "mxc://localhost/avatar"))
+                .bridgedRoom("remote-room", Map.of("channel", "general"))
+                .create();
+
+        assertTrue(result.successful);
+        assertEquals(creates + 1, homeserver.getRequestCount("POST createRoom"));
+        assertEquals(stateChanges, homeserver.getRequestCount("PUT rooms/state/m.room.name") + homeserver.getRequestCount("PUT rooms/state/m.room.topic")
+                + homeserver.getRequestCount("PUT rooms/state/m.room.power_levels"));
+
+        var roomId = result.result;
+        assertEquals("Bridged Room", homeserver.getRoomState(roomId, "m.room.name").get("name").getAsString());
+        assertEquals("Bridged from somewhere else", homeserver.getRoomState(roomId, "m.room.topic").get("topic").getAsString());
+        var override = homeserver.getRoomState(roomId, "m.room.power_levels");
+        assertEquals(100, override.getAsJsonObject("users").get("@!as_creator:localhost").getAsInt());
+        assertEquals(0, override.getAsJsonObject("events").get("m.room.topic").getAsInt());
+        assertEquals(0, override.get("invite").getAsInt());
+        // Levels that weren't set are left to the server's defaults
+        assertFalse(override.has("ban"));
+        assertFalse(override.has("users_default"));
+        assertEquals(1, override.getAsJsonObject("events").size());
+        assertEquals("mxc://localhost/avatar", homeserver.getRoomState(roomId, "m.room.avatar").get("url").getAsString());
+
+        var room = bridge.getDatabase().getRoomByMatrixId(roomId);
+        assertNotNull(room);
+        assertEquals("remote-room", room.id);
+        assertEquals("general", room.getAdditionalData().get("channel"));
+    }
+
+    @Test
+    @DisplayName("Concurrent power level patches are merged and coalesced")
+    void testPatchPowerLevels() throws Exception {
+        homeserver.clearScripts();
+        homeserver.script("PUT", "rooms/.*/state/m.room.power_levels").latency(50);
+
+        var admin = bridge.getClientManager().getClientForUser("@!as_admin:localhost");
+        var powerLevels = new PowerLevelsData();
+        powerLevels.users.put("@!as_admin:localhost", 100);
+        var roomId = admin.createRoom().powerLevels(powerLevels).create().result;
+        var moderator = bridge.getClientManager().getClientForUser("@!as_patch_moderator:localhost");
+
+        // A key PowerLevelsData doesn't know about, it must survive the patches
+        var notifications = new JsonObject();
+        notifications.addProperty("room", 20);
+        homeserver.getRoomState(roomId, "m.room.power_levels").add("notifications", notifications);
+
+        var patches = 10;
+        var puts = homeserver.getRequestCount("PUT rooms/state/m.room.power_levels");
+        var executor = Executors.newFixedThreadPool(patches);
+        try {
+            List<Future<MatrixNetworkResult>> futures = new ArrayList<>();
+            for(int i = 0; i < patches; i++) {
+                final var userId = "@user" + i + ":localhost";
+                // Patches from different puppets in the same room must not overwrite each other
+                var client = i % 2 == 0 ? admin : moderator;
+                futures.add(executor.submit(() -> client.patchPowerLevels(roomId, userId, 50)));
+            }
+
+            for(var future : futures) {
+                assertTrue(future.get().successful);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(homeserver.getRequestCount("PUT rooms/state/m.room.power_levels") - puts < patches);
+
+        var state = homeserver.getRoomState(roomId, "m.room.power_levels");
+        assertEquals(20, state.getAsJsonObject("notifications").get("room").getAsInt());
+        var users = state.getAsJsonObject("users");
+        assertEquals(100, users.get("@!as_admin:localhost").getAsInt());
+        for(int i = 0; i < patches; i++) {
+            assertEquals(50, users.get("@user" + i + ":localhost").getAsInt());
+        }
+    }
+
+    @Test
+    @DisplayName("Concurrent identical GETs share one request")
+    void testCollapsedGets() throws Exception {
+        homeserver.clearScripts();
+        homeserver.script("GET", "rooms/.*/joined_members").latency(50);
+
+        var roomId = "!collapse:localhost";
+        homeserver.createRoom(roomId, "@!as_reader:localhost", "@someone:localhost");
+        var client = bridge.getClientManager().getClientForUser("@!as_reader:localhost");
+
+        var readers = 10;
+        var requests = homeserver.getRequestCount("GET rooms/joined_members");
+        var executor = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for(int i = 0; i < readers; i++) {
+                futures.add(executor.submit(() -> client.getRoomMembers(roomId).result.members.size()));
+            }
+
+            for(var future : futures) {
+                assertEquals(2, (int) future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(homeserver.getRequestCount("GET rooms/joined_members") - requests < readers);
+        assertTrue(bridge.getMetrics().counter("http.coalesced").get() > 0);
+    }
+
+    @Test
+    @DisplayName("Uploads a file and reports errors from the homeserver")
+    void testUpload() throws Exception {
+        homeserver.clearScripts();
+
+        var file = new File(directory, "upload.txt");
+        Files.write(file.toPath(), "uploaded".getBytes(StandardCharsets.UTF_8));
+        var contentUri = bridge.getClientManager().uploadMatrixFromFile(file.getAbsolutePath());
+        assertTrue(contentUri.startsWith("mxc://localhost/"));
+
+        var downloaded = new File(directory, "downloaded.txt");
+        bridge.getClientManager().downloadMatrixFile(contentUri, downloaded.getAbsolutePath());
+        assertEquals("uploaded", new String(Files.readAllBytes(downloaded.toPath()), StandardCharsets.UTF_8));
+
+        // Rate limited on every attempt, so it gives up with the homeserver's error
+        homeserver.script("POST", "media/r0/upload").rateLimit(1.0, 10);
+        var uploads = homeserver.getRequestCount("POST media/r0/upload");
+        var e = assertThrows(MatrixNetworkException.class, () -> bridge.getClientManager().uploadMatrixFromFile(file.getAbsolutePath()));
+        assertTrue(e.getMessage().contains("M_LIMIT_EXCEEDED"));
+        assertEquals(uploads + 3, homeserver.getRequestCount("POST media/r0/upload"));
+        homeserver.clearScripts();
+    }
+
+    @Test
+    @DisplayName("Resumes a ranged download from a partial file")
+    void testResumeDownload() throws Exception {
+        homeserver.clearScripts();
+
+        var segmentSize = 1024 * 1024;
+        var data = new byte[3 * segmentSize + 1234];
+        new Random(5678).nextBytes(data);
+        homeserver.putMedia("localhost", "resume", data);
+
+        // Segment 1 was written and recorded before the previous attempt failed, the rest of the file is garbage
+        var target = new File(directory, "resume.bin");
+        var partial = new byte[data.length];
+        Arrays.fill(partial, (byte) 0x55);
+        System.arraycopy(data, segmentSize, partial, segmentSize, segmentSize);
+        Files.write(new File(directory, "resume.bin.part").toPath(), partial);
+
+        var state = new ByteArrayOutputStream();
+        try(var out = new DataOutputStream(state)) {
+            var completed = new BitSet();
+            completed.set(1);
+            out.writeLong(data.length);
+            out.writeLong(segmentSize);
+            out.writeInt(completed.toByteArray().length);
+            out.write(completed.toByteArray());
+        }
+        Files.write(new File(directory, "resume.bin.part.state").toPath(), state.toByteArray());
+
+        var requests = homeserver.getRequestCount("GET media/v1/download/localhost/resume");
+        bridge.getClientManager().downloadLargeMatrixFile("mxc://localhost/resume", target.getAbsolutePath());
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertEquals(3, homeserver.getRequestCount("GET media/v1/download/localhost/resume") - requests);
+        assertFalse(new File(directory, "resume.bin.part").exists());
+        assertFalse(new File(directory, "resume.bin.part.state").exists());
+
+        // Small files are downloaded in one request
+        homeserver.putMedia("localhost", "small", "hello".getBytes(StandardCharsets.UTF_8));
+        var small = new File(directory, "small.txt");
+        bridge.getClientManager().downloadLargeMatrixFile("mxc://localhost/small", small.getAbsolutePath());
+        assertEquals("hello", new String(Files.readAllBytes(small.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Snaps thumbnail sizes to buckets")
+    void testThumbnailSnapping() {
+        assertArrayEquals(new int[] {32, 32}, ThumbnailMethod.CROP.snap(20, 20));
+        assertArrayEquals(new int[] {96, 96}, ThumbnailMethod.CROP.snap(33, 10));
+        assertArrayEquals(new int[] {96, 96}, ThumbnailMethod.CROP.snap(500, 500));
+
+        assertArrayEquals(new int[] {320, 240}, ThumbnailMethod.SCALE.snap(100, 100));
+        assertArrayEquals(new int[] {640, 480}, ThumbnailMethod.SCALE.snap(321, 100));
+        assertArrayEquals(new int[] {800, 600}, ThumbnailMethod.SCALE.snap(641, 100));
+        assertArrayEquals(new int[] {800, 600}, ThumbnailMethod.SCALE.snap(4000, 3000));
+    }
+
+    @Test
+    @DisplayName("Fetches each thumbnail once and caches it")
+    void testThumbnailCache() throws Exception {
+        homeserver.clearScripts();
+        homeserver.script("GET", "media/r0/thumbnail/.*").latency(100);
+        homeserver.putMedia("localhost", "thumb", "thumbnail".getBytes(StandardCharsets.UTF_8));
+
+        var manager = bridge.getClientManager();
+        var threads = 8;
+        var executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for(int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> manager.getThumbnail("mxc://localhost/thumb", 20, 20, ThumbnailMethod.CROP)));
+            }
+
+            var paths = new HashSet<String>();
+            for(var future : futures) {
+                paths.add(future.get());
+            }
+            assertEquals(1, paths.size());
+            assertEquals("thumbnail", new String(Files.readAllBytes(new File(paths.iterator().next()).toPath()), StandardCharsets.UTF_8));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, homeserver.getRequestCount("GET media/r0/thumbnail/localhost/thumb"));
+
+        // Snaps to the same bucket, so it's served from the cache
+        manager.getThumbnail("mxc://localhost/thumb", 30, 30, ThumbnailMethod.CROP);
+        assertEquals(1, homeserver.getRequestCount("GET media/r0/thumbnail/localhost/thumb"));
+        manager.getThumbnail("mxc://localhost/thumb", 30, 30, ThumbnailMethod.SCALE);
+        assertEquals(2, homeserver.getRequestCount("GET media/r0/thumbnail/localhost/thumb"));
+
+        // These used to map to the same file name
+        homeserver.clearScripts();
+        homeserver.putMedia("localhost", "a:b", "first".getBytes(StandardCharsets.UTF_8));
+        homeserver.putMedia("localhost", "a_b", "second".getBytes(StandardCharsets.UTF_8));
+        var first = manager.getThumbnail("mxc://localhost/a:b", 32, 32, ThumbnailMethod.CROP);
+        var second = manager.getThumbnail("mxc://localhost/a_b", 32, 32, ThumbnailMethod.CROP);
+        assertNotEquals(first, second);
+        assertEquals("first", new String(Files.readAllBytes(new File(first).toPath()), StandardCharsets.UTF_8));
+        assertEquals("second", new String(Files.readAllBytes(new File(second).toPath()), StandardCharsets.UTF_8));
+
+        // The cache is limited to 1 megabyte, so the least recently used thumbnails are evicted
+        homeserver.putMedia("localhost", "large1", new byte[600 * 1024]);
+        homeserver.putMedia("localhost", "large2", new byte[600 * 1024]);
+        var large1 = manager.getThumbnail("mxc://localhost/large1", 32, 32, ThumbnailMethod.CROP);
+        Files.setLastModifiedTime(new File(large1).toPath(), FileTime.fromMillis(0));
+        var large2 = manager.getThumbnail("mxc://localhost/large2", 32, 32, ThumbnailMethod.CROP);
+        assertFalse(new File(large1).exists());
+        assertTrue(new File(large2).exists());
+    }
+
+    @AfterAll
+    static void deinit() throws IOException {
+        homeserver.stop();
+        bridge.getDatabase().close();
+        FileUtils.deleteDirectory(directory);
+    }
+}
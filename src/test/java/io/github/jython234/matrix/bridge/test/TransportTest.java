@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2018, jython234
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package io.github.jython234.matrix.bridge.test;
+
+import io.github.jython234.matrix.appservice.Util;
+import io.github.jython234.matrix.appservice.event.MatrixEvent;
+import io.github.jython234.matrix.bridge.MatrixBridge;
+import io.github.jython234.matrix.bridge.MatrixBridgeEventHandler;
+import io.github.jython234.matrix.bridge.MatrixEventHandler;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+import io.github.jython234.matrix.bridge.network.transport.InMemoryTransport;
+import io.github.jython234.matrix.bridge.network.transport.MatrixHttpResponse;
+import io.github.jython234.matrix.bridge.network.transport.MatrixTransport;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/// Runs the bridge's client on an InMemoryTransport, without any homeserver.
+class TransportTest {
+    private static File directory;
+    private static TestBridge bridge;
+    private static InMemoryTransport transport;
+
+    public static class RoomEvent extends MatrixEvent {
+        public String eventId;
+        public String roomId;
+        public String sender;
+
+        RoomEvent(String eventId, String sender) {
+            this.type = "m.room.message";
+            this.eventId = eventId;
+            this.roomId = "!echo:localhost";
+            this.sender = sender;
+        }
+    }
+
+    static class TestBridge extends MatrixBridge {
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+        TestBridge(String configDirectory) {
+            super(configDirectory);
+        }
+
+        @Override
+        protected MatrixTransport createTransport() {
+            return new InMemoryTransport();
+        }
+
+        @Override
+        protected void onStart() {
+
+        }
+
+        @Override
+        protected void onStop() {
+
+        }
+
+        @MatrixEventHandler
+        public void onEvent(MatrixEvent event) {
+            if(event instanceof RoomEvent) this.received.add(((RoomEvent) event).eventId);
+        }
+    }
+
+    @BeforeAll
+    static void init() throws IOException {
+        directory = Files.createTempDirectory("matrix-bridge-java-transport").toFile();
+        Util.copyResourceTo("testRegistration.yml", new File(directory, "registration.yml"));
+
+        var config = "serverURL: \"http://localhost:8008\"\n"
+                + "publicServerURL: \"http://localhost:8008\"\n"
+                + "matrixDomain: \"localhost\"\n"
+                + "appservicePort: 9000\n"
+                + "db:\n"
+                + "  type: \"leveldb\"\n"
+                + "  directory: \"" + new File(directory, "db").getAbsolutePath() + "\"\n"
+                + "  compression: false\n"
+                + "  cacheSize: 16\n";
+        Files.write(new File(directory, "bridge.yml").toPath(), config.getBytes(StandardCharsets.UTF_8));
+
+        bridge = new TestBridge(directory.getAbsolutePath());
+        transport = (InMemoryTransport) bridge.getClientManager().getTransport();
+    }
+
+    @Test
+    @DisplayName("Routes requests to handlers and answers the rest with 404")
+    void testRouting() throws MatrixNetworkException {
+        transport.clearRoutes();
+        transport.route("GET", "profile/.*/displayname", request -> InMemoryTransport.json(200, "{\"displayname\":\"Bridge\"}"));
+        var client = bridge.getClientManager().getBridgeClient();
+        var requests = transport.getRequestCount();
+
+        var result = client.getDisplayName();
+        assertTrue(result.successful);
+        assertEquals("Bridge", result.result);
+        assertEquals(200, result.httpResponse.statusCode());
+
+        var avatar = client.getAvatarURL();
+        assertFalse(avatar.successful);
+        assertEquals(404, avatar.httpResponse.statusCode());
+        assertEquals("M_UNRECOGNIZED", avatar.error.errorCode);
+
+        assertEquals(requests + 2, transport.getRequestCount());
+    }
+
+    @Test
+    @DisplayName("Surfaces transport failures as network exceptions")
+    void testFailure() {
+        transport.clearRoutes();
+        transport.route(null, ".*", request -> {
+            throw new IOException("Connection reset");
+        });
+
+        assertThrows(MatrixNetworkException.class, () -> bridge.getClientManager().getBridgeClient().setDisplayName("Bridge"));
+    }
+
+    @Test
+    @DisplayName("Asks for compressed responses and decompresses them while parsing")
+    void testCompression() throws Exception {
+        var sb = new StringBuilder("{\"joined\":{");
+        for(int i = 0; i < 100; i++) {
+            if(i > 0) sb.append(',');
+            sb.append("\"@user").append(i).append(":localhost\":{\"display_name\":\"User ").append(i).append("\"}");
+        }
+        var json = sb.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+
+        var compressed = new ByteArrayOutputStream();
+        try(var gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(json);
+        }
+
+        transport.clearRoutes();
+        transport.route("GET", "rooms/.*/joined_members", request -> {
+            assertTrue(request.headers().getOrDefault("Accept-Encoding", "").contains("gzip"));
+            return new MatrixHttpResponse(200, Map.of("Content-Encoding", Collections.singletonList("gzip")), compressed.toByteArray());
+        });
+
+        var decompressed = bridge.getMetrics().counter("http.bytes.decompressed").get();
+        var result = bridge.getClientManager().getBridgeClient().getRoomMembers("!compressed:localhost");
+
+        assertTrue(result.successful);
+        assertEquals(100, result.result.members.size());
+        assertEquals(decompressed + json.length, bridge.getMetrics().counter("http.bytes.decompressed").get());
+    }
+
+    @Test
+    @DisplayName("Drops the echoes of events the bridge sent, and nothing else")
+    void testEchoes() throws Exception {
+        transport.clearRoutes();
+        transport.route("PUT", "rooms/.*/send/.*", request -> InMemoryTransport.json(200, "{\"event_id\":\"$sent\"}"));
+        transport.route("PUT", "rooms/.*/state/.*", request -> InMemoryTransport.json(200, "{\"event_id\":\"$state\"}"));
+        transport.route("PUT", "rooms/.*/typing/.*", request -> InMemoryTransport.json(200, "{\"event_id\":\"$typing\"}"));
+
+        var manager = bridge.getClientManager();
+        var userId = "@user:localhost";
+        assertEquals(200, manager.sendRawPUTRequest(manager.getURI("rooms/!echo:localhost/send/m.room.message/1", userId), "{}").statusCode());
+        assertEquals(200, manager.sendRawPUTRequest(manager.getURI("rooms/!echo:localhost/state/m.room.topic/", userId), "{}").statusCode());
+        // Not an event, so its response isn't remembered even though it has an ID
+        assertEquals(200, manager.sendRawPUTRequest(manager.getURI("rooms/!echo:localhost/typing/" + userId, userId), "{}").statusCode());
+
+        var echoes = bridge.getMetrics().counter("events.echoes").get();
+        var handler = new MatrixBridgeEventHandler(bridge);
+        bridge.received.clear();
+        for(var eventId : new String[] {"$sent", "$state", "$typing", "$other"}) {
+            handler.onMatrixEvent(new RoomEvent(eventId, "@someone:localhost"));
+        }
+
+        assertEquals(List.of("$typing", "$other"), bridge.received);
+        assertEquals(echoes + 2, bridge.getMetrics().counter("events.echoes").get());
+    }
+
+    @Test
+    @DisplayName("Writes downloads to disk through the transport and counts their bytes")
+    void testDownload() throws Exception {
+        var content = new byte[256 * 1024];
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        transport.clearRoutes();
+        transport.route("GET", "media/v1/download/localhost/file", request -> new MatrixHttpResponse(200, Collections.emptyMap(), content));
+
+        var received = bridge.getMetrics().counter("http.bytes.received").get();
+        var target = new File(directory, "media" + File.separator + "file.bin");
+        bridge.getClientManager().downloadMatrixFile("mxc://localhost/file", target.getAbsolutePath());
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(received + content.length, bridge.getMetrics().counter("http.bytes.received").get());
+
+        // A failed download leaves neither the file nor its temporary file behind
+        var missing = new File(directory, "media" + File.separator + "missing.bin");
+        assertThrows(MatrixNetworkException.class, () -> bridge.getClientManager().downloadMatrixFile("mxc://localhost/missing", missing.getAbsolutePath()));
+        assertFalse(missing.exists());
+        assertEquals(1, target.getParentFile().list().length);
+    }
+
+    @AfterAll
+    static void deinit() throws IOException {
+        bridge.getDatabase().close();
+        FileUtils.deleteDirectory(directory);
+    }
+}